@@ -17,6 +17,7 @@ import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
 import org.matsim.core.trafficmonitoring.TravelTimeCalculator;
 import org.matsim.core.utils.io.IOUtils;
+import org.matsim.prepare.RouteCacheOptions;
 import picocli.CommandLine;
 import tech.tablesaw.api.ColumnType;
 import tech.tablesaw.api.DoubleColumn;
@@ -52,6 +53,9 @@ public class TravelTimeComparison implements MATSimAppCommand {
 	@CommandLine.Option(names = "--input-ref", description = "File with reference data", required = true)
 	private String apiFile;
 
+	@CommandLine.Mixin
+	private RouteCacheOptions routes = new RouteCacheOptions();
+
 	public static void main(String[] args) {
 		new TravelTimeComparison().execute(args);
 	}
@@ -76,25 +80,33 @@ public class TravelTimeComparison implements MATSimAppCommand {
 		LeastCostPathCalculator congestedRouter = new FastDijkstraFactory(false).createPathCalculator(network, util, tt);
 		LeastCostPathCalculator freeflowRouter = new FastDijkstraFactory(false).createPathCalculator(network, new OnlyTimeDependentTravelDisutility(fs), fs);
 
+		routes.init(network);
+
 		data.addColumns(
 			DoubleColumn.create("simulated", data.rowCount()),
 			DoubleColumn.create("free_flow", data.rowCount())
 		);
 
 		for (Row row : data) {
+			// Congested travel times depend on the run, only free flow routes are cached
 			LeastCostPathCalculator.Path congested = computePath(network, congestedRouter, row);
 			double dist = congested.links.stream().mapToDouble(Link::getLength).sum();
 			double speed = 3.6 * dist / congested.travelTime;
 
 			row.setDouble("simulated", speed);
 
-			LeastCostPathCalculator.Path freeflow = computePath(network, freeflowRouter, row);
+			// Free flow routes do not depend on the time of day
+			Node fromNode = network.getNodes().get(Id.createNodeId(row.getString("from_node")));
+			Node toNode = network.getNodes().get(Id.createNodeId(row.getString("to_node")));
+			LeastCostPathCalculator.Path freeflow = routes.route("freespeed", freeflowRouter, fromNode, toNode, 0);
 			dist = freeflow.links.stream().mapToDouble(Link::getLength).sum();
 			speed = 3.6 * dist / freeflow.travelTime;
 
 			row.setDouble("free_flow", speed);
 		}
 
+		routes.close();
+
 		data.addColumns(
 			data.doubleColumn("simulated").subtract(data.doubleColumn("mean")).setName("bias")
 		);
@@ -31,7 +31,6 @@ import org.apache.commons.math3.distribution.EnumeratedDistribution;
 import org.apache.commons.math3.util.Pair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.locationtech.jts.geom.Point;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
@@ -55,11 +54,11 @@ import org.matsim.core.router.StageActivityTypeIdentifier;
 import org.matsim.core.router.TripStructureUtils;
 import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.core.utils.geometry.CoordinateTransformation;
-import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.core.utils.geometry.transformations.TransformationFactory;
 import org.matsim.facilities.MatsimFacilitiesReader;
 import org.matsim.legacy.run.drt.BerlinShpUtils;
 import org.matsim.legacy.run.drt.RunDrtOpenBerlinScenario;
+import org.matsim.prepare.LinkIndex;
 
 
 /**
@@ -76,6 +75,7 @@ public class DrtVehicleCreator {
 	private final String drtNetworkMode = "drt";
 	private final BerlinShpUtils shpUtils;
 	private final Network drtNetwork;
+	private final LinkIndex drtLinks;
 	private List<Pair<Id<Link>, Double>> links2weights = new ArrayList();
 
 	public static void main(String[] args) {
@@ -145,6 +145,8 @@ public class DrtVehicleCreator {
 		new TransportModeNetworkFilter(scenario.getNetwork()).filter(drtNetwork, filterTransportModes);
 		new NetworkWriter(drtNetwork).write("drtNetwork.xml.gz");
 
+		drtLinks = LinkIndex.create(drtNetwork);
+
 	}
 
 	public final void createVehiclesByWeightedDraw(int amount, int seats, String vehiclesFilePrefix) {
@@ -219,7 +221,7 @@ public class DrtVehicleCreator {
 	private Id<Link> getLinkIdOnDrtNetwork(Activity activity) {
 		Id<Link> linkId = PopulationUtils.decideOnLinkIdForActivity(activity, scenario);
 		if (!drtNetwork.getLinks().containsKey(linkId)) {
-			linkId = NetworkUtils.getNearestLink(drtNetwork, PopulationUtils.decideOnCoordForActivity(activity, scenario)).getId();
+			linkId = drtLinks.query(PopulationUtils.decideOnCoordForActivity(activity, scenario)).getId();
 		}
 		return linkId;
 	}
@@ -238,8 +240,8 @@ public class DrtVehicleCreator {
 			Link link = null;
 
 			while (link == null) {
-				Point p = shpUtils.getRandomPointInServiceArea(random);
-				link = NetworkUtils.getNearestLinkExactly(drtNetwork, ct.transform( MGC.point2Coord(p)));
+				Coord p = shpUtils.getServiceAreaSampler().sample(random);
+				link = drtLinks.query(ct.transform(p));
 				if (shpUtils.isCoordInDrtServiceArea(link.getFromNode().getCoord()) && shpUtils.isCoordInDrtServiceArea(link.getToNode().getCoord())) {
 					if (link.getAllowedModes().contains(drtNetworkMode)) {
 						// ok
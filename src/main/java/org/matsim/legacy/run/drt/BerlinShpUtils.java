@@ -35,10 +35,12 @@ import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.core.utils.gis.ShapeFileReader;
 import org.matsim.core.utils.io.UncheckedIOException;
+import org.matsim.prepare.PolygonSampler;
 import org.opengis.feature.simple.SimpleFeature;
 
 /**
@@ -49,6 +51,7 @@ public final class BerlinShpUtils {
 
 	private Map<Integer, Geometry> serviceAreaGeometries;
 	private Map<Double, Map<Integer, Geometry>> serviceAreaGeometriesWithBuffer = new HashMap<>();
+	private PolygonSampler serviceAreaSampler;
 
 	public BerlinShpUtils(String drtServiceAreaShapeFile) {
 		if (drtServiceAreaShapeFile != null && drtServiceAreaShapeFile != "" && drtServiceAreaShapeFile != "null" ) {
@@ -128,6 +131,16 @@ public final class BerlinShpUtils {
 		}
 	}
 
+	/**
+	 * Sampler for uniformly distributed points in the whole service area.
+	 */
+	public PolygonSampler getServiceAreaSampler() {
+		if (serviceAreaSampler == null) {
+			serviceAreaSampler = PolygonSampler.create(UnaryUnionOp.union(serviceAreaGeometries.values()));
+		}
+		return serviceAreaSampler;
+	}
+
 	public Point getRandomPointInServiceArea(Random random) {
 		return getRandomPointInFeature(random, serviceAreaGeometries.get(random.nextInt(serviceAreaGeometries.size())));
 	}
@@ -5,9 +5,8 @@ import org.matsim.api.core.v01.population.Plan;
 import org.matsim.api.core.v01.population.PlanElement;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
-import org.matsim.core.population.PopulationUtils;
-import org.matsim.core.population.algorithms.ParallelPersonAlgorithmUtils;
 import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.prepare.population.PopulationFiles;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
@@ -21,14 +20,17 @@ public class CleanAttributes implements MATSimAppCommand, PersonAlgorithm {
 	@CommandLine.Option(names = "--output", description = "Desired output path", required = true)
 	private Path output;
 
+	@CommandLine.Mixin
+	private ParallelOptions parallel = new ParallelOptions();
+
 	@Override
 	public Integer call() throws Exception {
 
-		Population population = PopulationUtils.readPopulation(input.toString());
+		Population population = PopulationFiles.read(input);
 
-		ParallelPersonAlgorithmUtils.run(population, 8, this);
+		parallel.run(population, this);
 
-		PopulationUtils.writePopulation(population, output.toString());
+		PopulationFiles.write(population, output);
 
 		return 0;
 	}
@@ -17,12 +17,12 @@ import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
 import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.facilities.*;
+import org.matsim.prepare.population.PersonRandom;
 import org.opengis.feature.simple.SimpleFeature;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -46,6 +46,9 @@ public class CreateMATSimFacilities implements MATSimAppCommand {
 	@CommandLine.Option(names = "--output", required = true, description = "Path to output facility file")
 	private Path output;
 
+	@CommandLine.Option(names = "--seed", description = "Seed used to sample points within features", defaultValue = "1")
+	private long seed;
+
 	@CommandLine.Mixin
 	private ShpOptions shp;
 
@@ -68,31 +71,36 @@ public class CreateMATSimFacilities implements MATSimAppCommand {
 
 		List<SimpleFeature> fts = shp.readFeatures();
 
-		Map<Id<Link>, Holder> data = new ConcurrentHashMap<>();
+		LinkIndex index = LinkIndex.create(carOnlyNetwork);
 
-		fts.parallelStream().forEach(ft -> processFeature(ft, carOnlyNetwork, data));
+		// Features are processed in parallel, partial results are merged in order of the input
+		Map<Id<Link>, List<Assignment>> data = fts.parallelStream()
+				.map(ft -> processFeature(ft, carOnlyNetwork, index))
+				.filter(Objects::nonNull)
+				.collect(Collectors.groupingBy(Assignment::link, LinkedHashMap::new, Collectors.toList()));
 
 		ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
 
 		ActivityFacilitiesFactory f = facilities.getFactory();
 
-		for (Map.Entry<Id<Link>, Holder> e : data.entrySet()) {
-
-			Holder h = e.getValue();
+		for (List<Assignment> assignments : data.values()) {
 
-			Id<ActivityFacility> id = Id.create(String.join("_", h.ids), ActivityFacility.class);
+			Id<ActivityFacility> id = Id.create(assignments.stream().map(Assignment::id).distinct().collect(Collectors.joining("_")), ActivityFacility.class);
 
 			// Create mean coordinate
-			OptionalDouble x = h.coords.stream().mapToDouble(Coord::getX).average();
-			OptionalDouble y = h.coords.stream().mapToDouble(Coord::getY).average();
+			OptionalDouble x = assignments.stream().mapToDouble(a -> a.coord().getX()).average();
+			OptionalDouble y = assignments.stream().mapToDouble(a -> a.coord().getY()).average();
 
 			if (x.isEmpty() || y.isEmpty()) {
 				log.warn("Empty coordinate (Should never happen)");
 				continue;
 			}
 
+			Set<String> activities = new TreeSet<>();
+			assignments.forEach(a -> activities.addAll(a.activities()));
+
 			ActivityFacility facility = f.createActivityFacility(id, CoordUtils.round(new Coord(x.getAsDouble(), y.getAsDouble())));
-			for (String act : h.activities) {
+			for (String act : activities) {
 				facility.addActivityOption(f.createActivityOption(act));
 			}
 
@@ -108,16 +116,19 @@ public class CreateMATSimFacilities implements MATSimAppCommand {
 	}
 
 	/**
-	 * Sample points and choose link with the nearest points. Aggregate everything so there is at most one facility per link.
+	 * Sample points and choose link with the nearest points. Returns the assignment to the main link, or null if all links are filtered.
 	 */
-	private void processFeature(SimpleFeature ft, Network network, Map<Id<Link>, Holder> data) {
+	private Assignment processFeature(SimpleFeature ft, Network network, LinkIndex index) {
 
 		// Actual id is the last part
 		String[] id = ft.getID().split("\\.");
 
+		// Random numbers only depend on the seed and the feature
+		SplittableRandom rnd = PersonRandom.create(seed, "facilities", ft.getID(), 0);
+
 		// Pairs of coords and corresponding links
-		List<Coord> coords = samplePoints((MultiPolygon) ft.getDefaultGeometry(), 23);
-		List<Id<Link>> links = coords.stream().map(coord -> NetworkUtils.getNearestLinkExactly(network, coord).getId()).toList();
+		List<Coord> coords = samplePoints((MultiPolygon) ft.getDefaultGeometry(), 23, rnd);
+		List<Id<Link>> links = coords.stream().map(coord -> index.query(coord).getId()).toList();
 
 		Map<Id<Link>, Long> map = links.stream()
 				.filter(l -> !IGNORED_LINK_TYPES.contains(NetworkUtils.getType(network.getLinks().get(l))))
@@ -125,34 +136,28 @@ public class CreateMATSimFacilities implements MATSimAppCommand {
 
 		// Everything could be filtered and map empty
 		if (map.isEmpty())
-			return;
+			return null;
 
-		List<Map.Entry<Id<Link>, Long>> counts = map.entrySet().stream().sorted(Map.Entry.comparingByValue())
+		List<Map.Entry<Id<Link>, Long>> counts = map.entrySet().stream()
+				.sorted(Map.Entry.<Id<Link>, Long>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
 				.toList();
 
 		// The "main" link of the facility
 		Id<Link> link = counts.get(counts.size() - 1).getKey();
 
-		Holder holder = data.computeIfAbsent(link, k -> new Holder(ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet(), Collections.synchronizedList(new ArrayList<>())));
-
-		holder.ids.add(id[id.length - 1]);
-		holder.activities.addAll(activities(ft));
-
 		// Search for the original drawn coordinate of the associated link
 		for (int i = 0; i < links.size(); i++) {
-			if (links.get(i).equals(link)) {
-				holder.coords.add(coords.get(i));
-				break;
-			}
+			if (links.get(i).equals(link))
+				return new Assignment(link, id[id.length - 1], activities(ft), coords.get(i));
 		}
+
+		return null;
 	}
 
 	/**
 	 * Sample coordinates within polygon.
 	 */
-	private List<Coord> samplePoints(MultiPolygon geometry, int n) {
-
-		SplittableRandom rnd = new SplittableRandom();
+	private List<Coord> samplePoints(MultiPolygon geometry, int n, SplittableRandom rnd) {
 
 		List<Coord> result = new ArrayList<>();
 		Envelope bbox = geometry.getEnvelopeInternal();
@@ -219,9 +224,9 @@ public class CreateMATSimFacilities implements MATSimAppCommand {
 	}
 
 	/**
-	 * Temporary data holder for facilities.
+	 * Link assignment of a single feature.
 	 */
-	private record Holder(Set<String> ids, Set<String> activities, List<Coord> coords) {
+	private record Assignment(Id<Link> link, String id, Set<String> activities, Coord coord) {
 
 	}
 
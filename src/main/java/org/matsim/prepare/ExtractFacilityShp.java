@@ -3,13 +3,16 @@ package org.matsim.prepare;
 import com.fasterxml.jackson.annotation.JsonAnyGetter;
 import com.fasterxml.jackson.annotation.JsonAnySetter;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.slimjars.dist.gnu.trove.iterator.TLongObjectIterator;
-import de.topobyte.osm4j.core.dataset.InMemoryMapDataSet;
-import de.topobyte.osm4j.core.dataset.MapDataSetLoader;
+import de.topobyte.osm4j.core.access.OsmEntityProvider;
 import de.topobyte.osm4j.core.model.iface.*;
+import de.topobyte.osm4j.core.model.impl.Node;
 import de.topobyte.osm4j.core.resolve.EntityNotFoundException;
 import de.topobyte.osm4j.geometry.GeometryBuilder;
 import de.topobyte.osm4j.pbf.seq.PbfIterator;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import it.unimi.dsi.fastutil.objects.Object2IntLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import org.apache.logging.log4j.LogManager;
@@ -26,6 +29,8 @@ import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.CRS;
 import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 import org.locationtech.jts.index.strtree.STRtree;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
@@ -39,6 +44,7 @@ import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
 import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.facilities.*;
+import org.matsim.prepare.population.PersonRandom;
 import org.matsim.run.RunOpenBerlinScenario;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -47,10 +53,11 @@ import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
 import picocli.CommandLine;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -75,7 +82,16 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 	 * Usually large areas such as parks, campus, etc.
 	 */
 	private static final double MAX_ASSIGN = 50_000;
-	private final GeometryBuilder geometryBuilder = new GeometryBuilder();
+
+	/**
+	 * Geometries are prepared if they need to be tested against at least this many candidates.
+	 */
+	private static final int PREPARE_CANDIDATES = 4;
+
+	/**
+	 * Geometry builders are not shared between threads.
+	 */
+	private final ThreadLocal<GeometryBuilder> geometryBuilder = ThreadLocal.withInitial(GeometryBuilder::new);
 	@CommandLine.Option(names = "--input", description = "Path to input .pbf file", required = true)
 	private Path pbf;
 	@CommandLine.Option(names = "--output", description = "Path to output shape file", required = true)
@@ -93,7 +109,7 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 	private List<Feature> landuse;
 	private List<Feature> entities;
 	private MathTransform transform;
-	private InMemoryMapDataSet data;
+	private NodeStore data;
 	private int ignored;
 
 	public static void main(String[] args) {
@@ -103,8 +119,6 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 	@Override
 	public Integer call() throws Exception {
 
-		PbfIterator reader = new PbfIterator(Files.newInputStream(pbf), true);
-
 		config = new ObjectMapper().readerFor(ActivityMapping.class).readValue(mappingPath.toFile());
 
 		CRSAuthorityFactory cFactory = CRS.getAuthorityFactory(true);
@@ -135,29 +149,7 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 		entities = new ArrayList<>();
 		landuse = new ArrayList<>();
 
-		data = MapDataSetLoader.read(reader, true, true, true);
-
-		log.info("Finished loading pbf file.");
-
-		TLongObjectIterator<OsmNode> it = data.getNodes().iterator();
-		while (it.hasNext()) {
-			it.advance();
-			process(it.value());
-		}
-
-		log.info("Collected {} POIs", pois.size());
-
-		TLongObjectIterator<OsmWay> it2 = data.getWays().iterator();
-		while (it2.hasNext()) {
-			it2.advance();
-			process(it2.value());
-		}
-
-		TLongObjectIterator<OsmRelation> it3 = data.getRelations().iterator();
-		while (it3.hasNext()) {
-			it3.advance();
-			process(it3.value());
-		}
+		readPbf();
 
 		log.info("Collected {} landuse shapes", landuse.size());
 		log.info("Collected {} other entities", entities.size());
@@ -168,6 +160,8 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 
 		STRtree index = new STRtree();
 		for (Feature entity : entities) {
+			// Envelopes are cached lazily, they are computed here before the geometries are shared between threads
+			entity.geometry.getEnvelopeInternal();
 			index.insert(entity.geometry.getBoundary().getEnvelopeInternal(), entity);
 		}
 		index.build();
@@ -220,32 +214,55 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 	 */
 	private void processIntersection(List<Feature> list, STRtree index) {
 
-		Iterator<Feature> it = list.iterator();
-		while (it.hasNext()) {
-			Feature ft = it.next();
+		// Intersections are computed in parallel, but assigned in order of the list
+		List<List<Feature>> matches = list.parallelStream()
+			.map(ft -> findIntersecting(ft, index))
+			.toList();
 
-			List<Feature> query = index.query(ft.geometry.getBoundary().getEnvelopeInternal());
+		List<Feature> remaining = new ArrayList<>();
+		for (int i = 0; i < list.size(); i++) {
+			Feature ft = list.get(i);
+			List<Feature> match = matches.get(i);
 
-			boolean used = false;
-			for (Feature other : query) {
-				// Assign other features to the buildings
-				try {
-					if (ft.geometry.intersects(other.geometry) && other.geometry.getArea() < MAX_ASSIGN) {
-						other.assign(ft);
-						used = true;
-					}
-				} catch (TopologyException e) {
-					// some geometries are not well defined
-					if (ft.geometry.getBoundary().intersects(other.geometry.getBoundary()) && other.geometry.getArea() < MAX_ASSIGN) {
-						other.assign(ft);
-						used = true;
-					}
-				}
+			for (Feature other : match) {
+				other.assign(ft);
 			}
 
-			if (used)
-				it.remove();
+			if (match.isEmpty())
+				remaining.add(ft);
+		}
+
+		list.clear();
+		list.addAll(remaining);
+	}
+
+	/**
+	 * Find features from the index, which intersect with the given feature and are small enough to be assigned.
+	 * The index and features are only read, so this can be called from multiple threads.
+	 */
+	private static List<Feature> findIntersecting(Feature ft, STRtree index) {
+
+		List<Feature> query = index.query(ft.geometry.getBoundary().getEnvelopeInternal());
+		List<Feature> result = new ArrayList<>();
+
+		// Large geometries, e.g. landuse, are tested against many buildings
+		PreparedGeometry prepared = query.size() >= PREPARE_CANDIDATES ? PreparedGeometryFactory.prepare(ft.geometry) : null;
+
+		for (Feature other : query) {
+			if (other.geometry.getArea() >= MAX_ASSIGN)
+				continue;
+
+			try {
+				if (prepared != null ? prepared.intersects(other.geometry) : ft.geometry.intersects(other.geometry))
+					result.add(other);
+			} catch (TopologyException e) {
+				// some geometries are not well defined
+				if (ft.geometry.getBoundary().intersects(other.geometry.getBoundary()))
+					result.add(other);
+			}
 		}
+
+		return result;
 	}
 
 	private void addFeatures(List<Feature> fts, SimpleFeatureBuilder featureBuilder, DefaultFeatureCollection collection) {
@@ -257,87 +274,171 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 	}
 
 	/**
-	 * Stores entities and geometries as necessary.
+	 * Read the pbf file in multiple passes, so that only the nodes of relevant ways need to be kept in memory.
 	 */
-	private void process(OsmEntity entity) {
-		boolean filtered = true;
-		int n = entity.getNumberOfTags();
-		for (int i = 0; i < n; i++) {
-			OsmTag tag = entity.getTag(i);
-
-			// Buildings are always kept
-			if (tag.getKey().equals("building")) {
-				filtered = false;
-				break;
+	private void readPbf() throws IOException {
+
+		// Ways referenced by relevant relations
+		LongSet memberWays = new LongOpenHashSet();
+		LongSet nodeIds = new LongOpenHashSet();
+
+		// Relations are at the end of the file, their member ways need another pass
+		try (InputStream in = Files.newInputStream(pbf)) {
+			for (EntityContainer c : new PbfIterator(in, false)) {
+				if (c.getType() == EntityType.Way && isRelevant(c.getEntity())) {
+					addNodes((OsmWay) c.getEntity(), nodeIds);
+				} else if (c.getType() == EntityType.Relation && isRelevant(c.getEntity())) {
+					OsmRelation rel = (OsmRelation) c.getEntity();
+					for (int i = 0; i < rel.getNumberOfMembers(); i++) {
+						if (rel.getMember(i).getType() == EntityType.Way)
+							memberWays.add(rel.getMember(i).getId());
+					}
+				}
 			}
+		}
 
-			MappingConfig c = config.types.get(tag.getKey());
-			if (c != null) {
-				if (c.values.containsKey("*") || c.values.containsKey(tag.getValue())) {
-					filtered = false;
-					break;
+		if (!memberWays.isEmpty()) {
+			try (InputStream in = Files.newInputStream(pbf)) {
+				for (EntityContainer c : new PbfIterator(in, false)) {
+					if (c.getType() == EntityType.Relation)
+						break;
+
+					if (c.getType() == EntityType.Way && memberWays.contains(c.getEntity().getId()))
+						addNodes((OsmWay) c.getEntity(), nodeIds);
 				}
 			}
 		}
 
-		if (filtered)
-			return;
+		log.info("Relevant entities reference {} nodes and {} member ways", nodeIds.size(), memberWays.size());
 
-		if (entity instanceof OsmNode node) {
+		data = new NodeStore(nodeIds);
 
-			Point p = geometryBuilder.build(node);
-			MultiPolygon geometry;
-			try {
-				Polygon polygon = (Polygon) JTS.transform(p, transform).buffer(POI_BUFFER);
-				geometry = geometryBuilder.getGeometryFactory().createMultiPolygon(new Polygon[]{polygon});
-			} catch (TransformException e) {
-				ignored++;
-				return;
-			}
+		// Ways and relations, for which geometries need to be created
+		List<OsmEntity> candidates = new ArrayList<>();
 
-			pois.add(new Feature(entity, types.size(), geometry));
-		} else {
-			boolean landuse = false;
-			for (int i = 0; i < n; i++) {
-				if (entity.getTag(i).getKey().equals("landuse")) {
-					landuse = true;
-					break;
-				}
-			}
+		try (InputStream in = Files.newInputStream(pbf)) {
+			for (EntityContainer c : new PbfIterator(in, false)) {
+				OsmEntity entity = c.getEntity();
 
-			MultiPolygon geometry;
-			try {
-				geometry = createPolygon(entity);
-				if (geometry == null) {
-					ignored++;
-					return;
+				if (c.getType() == EntityType.Node) {
+					OsmNode node = (OsmNode) entity;
+					data.setNode(node);
+					if (isRelevant(node))
+						processNode(node);
+
+				} else if (c.getType() == EntityType.Way) {
+					if (memberWays.contains(entity.getId()))
+						data.addWay((OsmWay) entity);
+					if (isRelevant(entity))
+						candidates.add(entity);
+
+				} else if (c.getType() == EntityType.Relation && isRelevant(entity)) {
+					candidates.add(entity);
 				}
-				geometry = (MultiPolygon) JTS.transform(geometry, transform);
-			} catch (TransformException e) {
-				// Will be ignored
-				geometry = null;
 			}
+		}
+
+		log.info("Collected {} POIs", pois.size());
+		log.info("Creating geometries for {} ways and relations", candidates.size());
+
+		// Geometries are created in parallel, but added in order of the input
+		List<Optional<Feature>> features = candidates.parallelStream()
+			.map(e -> Optional.ofNullable(createFeature(e)))
+			.toList();
 
-			if (geometry == null) {
+		for (Optional<Feature> ft : features) {
+			if (ft.isEmpty()) {
 				ignored++;
-				return;
+				continue;
 			}
 
-			Feature ft = new Feature(entity, types.size(), geometry);
-			if (landuse) {
-				this.landuse.add(ft);
+			Feature f = ft.get();
+			if (f.landuse) {
+				this.landuse.add(f);
 			} else {
 
 				// some non landuse shapes might be too large
-				if (ft.geometry.getArea() < MAX_AREA)
-					entities.add(ft);
+				if (f.geometry.getArea() < MAX_AREA)
+					entities.add(f);
 			}
+		}
+	}
 
+	private static void addNodes(OsmWay way, LongSet nodeIds) {
+		for (int i = 0; i < way.getNumberOfNodes(); i++) {
+			nodeIds.add(way.getNodeId(i));
 		}
 	}
 
+	/**
+	 * Whether an entity is needed for any of the configured types.
+	 */
+	private boolean isRelevant(OsmEntity entity) {
+		int n = entity.getNumberOfTags();
+		for (int i = 0; i < n; i++) {
+			OsmTag tag = entity.getTag(i);
+
+			// Buildings are always kept
+			if (tag.getKey().equals("building"))
+				return true;
+
+			MappingConfig c = config.types.get(tag.getKey());
+			if (c != null && (c.values.containsKey("*") || c.values.containsKey(tag.getValue())))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Stores a buffered point of interest.
+	 */
+	private void processNode(OsmNode node) {
+
+		GeometryBuilder builder = geometryBuilder.get();
+
+		Point p = builder.build(node);
+		MultiPolygon geometry;
+		try {
+			Polygon polygon = (Polygon) JTS.transform(p, transform).buffer(POI_BUFFER);
+			geometry = builder.getGeometryFactory().createMultiPolygon(new Polygon[]{polygon});
+		} catch (TransformException e) {
+			ignored++;
+			return;
+		}
+
+		pois.add(new Feature(node, types.size(), geometry, false));
+	}
+
+	/**
+	 * Create the feature of a way or relation, or null if its geometry is invalid.
+	 */
+	private Feature createFeature(OsmEntity entity) {
+
+		boolean landuse = false;
+		for (int i = 0; i < entity.getNumberOfTags(); i++) {
+			if (entity.getTag(i).getKey().equals("landuse")) {
+				landuse = true;
+				break;
+			}
+		}
+
+		MultiPolygon geometry;
+		try {
+			geometry = createPolygon(entity);
+			if (geometry == null)
+				return null;
+
+			geometry = (MultiPolygon) JTS.transform(geometry, transform);
+		} catch (TransformException e) {
+			return null;
+		}
+
+		return new Feature(entity, types.size(), geometry, landuse);
+	}
 
 	private MultiPolygon createPolygon(OsmEntity entity) {
+		GeometryBuilder geometryBuilder = this.geometryBuilder.get();
 		Geometry geom = null;
 		try {
 			if (entity instanceof OsmWay) {
@@ -418,6 +519,9 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 		@CommandLine.Option(names = "--output", required = true, description = "Path to output facility file")
 		private Path output;
 
+		@CommandLine.Option(names = "--seed", description = "Seed used to sample points within features", defaultValue = "1")
+		private long seed;
+
 		@CommandLine.Mixin
 		private ShpOptions shp;
 
@@ -440,31 +544,36 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 
 			List<SimpleFeature> fts = shp.readFeatures();
 
-			Map<Id<Link>, Holder> data = new ConcurrentHashMap<>();
+			LinkIndex index = LinkIndex.create(carOnlyNetwork);
 
-			fts.parallelStream().forEach(ft -> processFeature(ft, carOnlyNetwork, data));
+			// Features are processed in parallel, partial results are merged in order of the input
+			Map<Id<Link>, List<Assignment>> data = fts.parallelStream()
+				.map(ft -> processFeature(ft, carOnlyNetwork, index))
+				.filter(Objects::nonNull)
+				.collect(Collectors.groupingBy(Assignment::link, LinkedHashMap::new, Collectors.toList()));
 
 			ActivityFacilities facilities = FacilitiesUtils.createActivityFacilities();
 
 			ActivityFacilitiesFactory f = facilities.getFactory();
 
-			for (Map.Entry<Id<Link>, Holder> e : data.entrySet()) {
+			for (List<Assignment> assignments : data.values()) {
 
-				Holder h = e.getValue();
-
-				Id<ActivityFacility> id = Id.create(String.join("_", h.ids), ActivityFacility.class);
+				Id<ActivityFacility> id = Id.create(assignments.stream().map(Assignment::id).distinct().collect(Collectors.joining("_")), ActivityFacility.class);
 
 				// Create mean coordinate
-				OptionalDouble x = h.coords.stream().mapToDouble(Coord::getX).average();
-				OptionalDouble y = h.coords.stream().mapToDouble(Coord::getY).average();
+				OptionalDouble x = assignments.stream().mapToDouble(a -> a.coord().getX()).average();
+				OptionalDouble y = assignments.stream().mapToDouble(a -> a.coord().getY()).average();
 
 				if (x.isEmpty() || y.isEmpty()) {
 					log.warn("Empty coordinate (Should never happen)");
 					continue;
 				}
 
+				Set<String> activities = new TreeSet<>();
+				assignments.forEach(a -> activities.addAll(a.activities()));
+
 				ActivityFacility facility = f.createActivityFacility(id, roundCoord(new Coord(x.getAsDouble(), y.getAsDouble())));
-				for (String act : h.activities) {
+				for (String act : activities) {
 					facility.addActivityOption(f.createActivityOption(act));
 				}
 
@@ -480,16 +589,19 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 		}
 
 		/**
-		 * Sample points and choose link with the nearest points. Aggregate everything so there is at most one facility per link.
+		 * Sample points and choose link with the nearest points. Returns the assignment to the main link, or null if all links are filtered.
 		 */
-		private void processFeature(SimpleFeature ft, Network network, Map<Id<Link>, Holder> data) {
+		private Assignment processFeature(SimpleFeature ft, Network network, LinkIndex index) {
 
 			// Actual id is the last part
 			String[] id = ft.getID().split("\\.");
 
+			// Random numbers only depend on the seed and the feature
+			SplittableRandom rnd = PersonRandom.create(seed, "facilities", ft.getID(), 0);
+
 			// Pairs of coords and corresponding links
-			List<Coord> coords = samplePoints((MultiPolygon) ft.getDefaultGeometry(), 23);
-			List<Id<Link>> links = coords.stream().map(coord -> NetworkUtils.getNearestLinkExactly(network, coord).getId()).toList();
+			List<Coord> coords = samplePoints((MultiPolygon) ft.getDefaultGeometry(), 23, rnd);
+			List<Id<Link>> links = coords.stream().map(coord -> index.query(coord).getId()).toList();
 
 			Map<Id<Link>, Long> map = links.stream()
 				.filter(l -> !IGNORED_LINK_TYPES.contains(NetworkUtils.getType(network.getLinks().get(l))))
@@ -497,34 +609,28 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 
 			// Everything could be filtered and map empty
 			if (map.isEmpty())
-				return;
+				return null;
 
-			List<Map.Entry<Id<Link>, Long>> counts = map.entrySet().stream().sorted(Map.Entry.comparingByValue())
+			List<Map.Entry<Id<Link>, Long>> counts = map.entrySet().stream()
+				.sorted(Map.Entry.<Id<Link>, Long>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
 				.toList();
 
 			// The "main" link of the facility
 			Id<Link> link = counts.get(counts.size() - 1).getKey();
 
-			Holder holder = data.computeIfAbsent(link, k -> new Holder(ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet(), Collections.synchronizedList(new ArrayList<>())));
-
-			holder.ids.add(id[id.length - 1]);
-			holder.activities.addAll(activities(ft));
-
 			// Search for the original drawn coordinate of the associated link
 			for (int i = 0; i < links.size(); i++) {
-				if (links.get(i).equals(link)) {
-					holder.coords.add(coords.get(i));
-					break;
-				}
+				if (links.get(i).equals(link))
+					return new Assignment(link, id[id.length - 1], activities(ft), coords.get(i));
 			}
+
+			return null;
 		}
 
 		/**
 		 * Sample coordinates within polygon.
 		 */
-		private List<Coord> samplePoints(MultiPolygon geometry, int n) {
-
-			SplittableRandom rnd = new SplittableRandom();
+		private List<Coord> samplePoints(MultiPolygon geometry, int n, SplittableRandom rnd) {
 
 			List<Coord> result = new ArrayList<>();
 			Envelope bbox = geometry.getEnvelopeInternal();
@@ -591,9 +697,9 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 		}
 
 		/**
-		 * Temporary data holder for facilities.
+		 * Link assignment of a single feature.
 		 */
-		private record Holder(Set<String> ids, Set<String> activities, List<Coord> coords) {
+		private record Assignment(Id<Link> link, String id, Set<String> activities, Coord coord) {
 
 		}
 
@@ -609,11 +715,14 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 
 		private final MultiPolygon geometry;
 
-		Feature(OsmEntity entity, int n, MultiPolygon geometry) {
+		private final boolean landuse;
+
+		Feature(OsmEntity entity, int n, MultiPolygon geometry, boolean landuse) {
 			this.entity = entity;
 			this.bits = new BitSet(n);
 			this.bits.clear();
 			this.geometry = geometry;
+			this.landuse = landuse;
 
 			parse(entity);
 		}
@@ -662,4 +771,62 @@ public class ExtractFacilityShp implements MATSimAppCommand {
 			return builder.buildFeature(null);
 		}
 	}
+
+	/**
+	 * Compact storage of the node coordinates that are needed for geometries, and member ways of relations.
+	 */
+	private static final class NodeStore implements OsmEntityProvider {
+
+		/**
+		 * Sorted node ids, the coordinates are stored at the same index.
+		 */
+		private final long[] ids;
+		private final double[] lon;
+		private final double[] lat;
+
+		private final Long2ObjectMap<OsmWay> ways = new Long2ObjectOpenHashMap<>();
+
+		NodeStore(LongSet nodes) {
+			ids = nodes.toLongArray();
+			Arrays.sort(ids);
+			lon = new double[ids.length];
+			lat = new double[ids.length];
+			Arrays.fill(lon, Double.NaN);
+		}
+
+		void setNode(OsmNode node) {
+			int idx = Arrays.binarySearch(ids, node.getId());
+			if (idx >= 0) {
+				lon[idx] = node.getLongitude();
+				lat[idx] = node.getLatitude();
+			}
+		}
+
+		void addWay(OsmWay way) {
+			ways.put(way.getId(), way);
+		}
+
+		@Override
+		public OsmNode getNode(long id) throws EntityNotFoundException {
+			int idx = Arrays.binarySearch(ids, id);
+			if (idx < 0 || Double.isNaN(lon[idx]))
+				throw new EntityNotFoundException("Node " + id + " not found");
+
+			return new Node(id, lon[idx], lat[idx]);
+		}
+
+		@Override
+		public OsmWay getWay(long id) throws EntityNotFoundException {
+			OsmWay way = ways.get(id);
+			if (way == null)
+				throw new EntityNotFoundException("Way " + id + " not found");
+
+			return way;
+		}
+
+		@Override
+		public OsmRelation getRelation(long id) throws EntityNotFoundException {
+			throw new EntityNotFoundException("Nested relations are not supported: " + id);
+		}
+	}
 }
@@ -2,8 +2,10 @@ package org.matsim.prepare;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.TransportMode;
@@ -17,8 +19,6 @@ import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.ShpOptions;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
-import org.matsim.core.population.PopulationUtils;
-import org.matsim.core.population.algorithms.ParallelPersonAlgorithmUtils;
 import org.matsim.core.population.algorithms.PersonAlgorithm;
 import org.matsim.core.router.TripStructureUtils;
 import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
@@ -31,10 +31,12 @@ import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.facilities.ActivityFacilities;
 import org.matsim.facilities.FacilitiesUtils;
 import org.matsim.facilities.MatsimFacilitiesReader;
+import org.matsim.prepare.population.PopulationFiles;
 import org.matsim.run.RunOpenBerlinScenario;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -48,6 +50,11 @@ public class FilterRelevantAgents implements MATSimAppCommand, PersonAlgorithm {
 
 	private static final Logger log = LogManager.getLogger(FilterRelevantAgents.class);
 
+	/**
+	 * Minimum distance in meter between a trip and the area, before routing is skipped.
+	 */
+	private static final double MIN_CORRIDOR = 2000;
+
 	@CommandLine.Option(names = "--input", description = "Path to input population", required = true)
 	private Path input;
 
@@ -60,13 +67,34 @@ public class FilterRelevantAgents implements MATSimAppCommand, PersonAlgorithm {
 	@CommandLine.Option(names = "--network", description = "Path to network file", required = true)
 	private Path networkPath;
 
+	@CommandLine.Option(names = "--max-detour", description = "Maximum ratio of route length to beeline distance. " +
+			"Trips, which can not reach the area within this detour, are not routed.", defaultValue = "1.5")
+	private double maxDetour;
+
 	@CommandLine.Mixin
 	private ShpOptions shp;
 
+	@CommandLine.Mixin
+	private ParallelOptions parallel = new ParallelOptions();
+
+	@CommandLine.Mixin
+	private RouteCacheOptions routes = new RouteCacheOptions();
+
 	private ActivityFacilities facilities;
 	private Network network;
 	private CoordinateTransformation ct;
-	private Geometry geometry;
+	private PreparedGeometry geometry;
+
+	/**
+	 * Network nodes within the area, by index of their id.
+	 */
+	private BitSet inside;
+
+	/**
+	 * Bounding box of all nodes within the area.
+	 */
+	private Envelope insideBounds;
+
 	private ThreadLocal<LeastCostPathCalculator> ctxs;
 
 	private Set<Id<Person>> toRemove;
@@ -88,25 +116,39 @@ public class FilterRelevantAgents implements MATSimAppCommand, PersonAlgorithm {
 		network = NetworkUtils.createNetwork();
 		filter.filter(network, Set.of(TransportMode.car));
 
-		geometry = shp.getGeometry();
+		geometry = PreparedGeometryFactory.prepare(shp.getGeometry());
 		ct = shp.createTransformation(RunOpenBerlinScenario.CRS);
 
+		inside = new BitSet(Id.getNumberOfIds(Node.class));
+		insideBounds = new Envelope();
+		for (Node node : network.getNodes().values()) {
+			if (geometry.contains(MGC.coord2Point(ct.transform(node.getCoord())))) {
+				inside.set(node.getId().index());
+				insideBounds.expandToInclude(node.getCoord().getX(), node.getCoord().getY());
+			}
+		}
+
+		log.info("Network has {} nodes within the area", inside.cardinality());
+
 		facilities = FacilitiesUtils.createActivityFacilities();
 		new MatsimFacilitiesReader(RunOpenBerlinScenario.CRS, RunOpenBerlinScenario.CRS, facilities)
 				.readFile(facilityPath.toString());
 
 		ctxs = ThreadLocal.withInitial(() -> this.createRouter(network));
+		routes.init(network);
 		toRemove = ConcurrentHashMap.newKeySet();
 
-		Population population = PopulationUtils.readPopulation(input.toString());
+		Population population = PopulationFiles.read(input);
+
+		parallel.run(population, this);
 
-		ParallelPersonAlgorithmUtils.run(population, 8, this);
+		routes.close();
 
 		log.info("Removing {} out of {} agents", toRemove.size(), population.getPersons().size());
 
 		toRemove.forEach(population::removePerson);
 
-		PopulationUtils.writePopulation(population, output.toString());
+		PopulationFiles.write(population, output);
 
 		log.info("Written {} agents to output", population.getPersons().size());
 
@@ -134,15 +176,21 @@ public class FilterRelevantAgents implements MATSimAppCommand, PersonAlgorithm {
 			// If not sure yet, also do the routing
 			for (TripStructureUtils.Trip trip : TripStructureUtils.getTrips(plan)) {
 
+				Coord orig = getCoordinate(trip.getOriginActivity());
+				Coord dest = getCoordinate(trip.getDestinationActivity());
+
+				if (!canReachArea(orig, dest))
+					continue;
+
 				LeastCostPathCalculator lc = ctxs.get();
 
-				Node from = NetworkUtils.getNearestNode(network, getCoordinate(trip.getOriginActivity()));
-				Node to = NetworkUtils.getNearestNode(network, getCoordinate(trip.getDestinationActivity()));
+				Node from = NetworkUtils.getNearestNode(network, orig);
+				Node to = NetworkUtils.getNearestNode(network, dest);
 
-				LeastCostPathCalculator.Path path = lc.calcLeastCostPath(from, to, 0, null, null);
+				LeastCostPathCalculator.Path path = routes.route("freespeed", lc, from, to, 0);
 
 				for (Node node : path.nodes) {
-					if (geometry.contains(MGC.coord2Point(ct.transform(node.getCoord())))) {
+					if (inside.get(node.getId().index())) {
 						keep = true;
 						break outer;
 					}
@@ -155,6 +203,24 @@ public class FilterRelevantAgents implements MATSimAppCommand, PersonAlgorithm {
 		}
 	}
 
+	/**
+	 * Checks whether a route between the two coordinates could pass any node within the area.
+	 * Routes are assumed to stay within an ellipse given by the maximum detour.
+	 */
+	private boolean canReachArea(Coord from, Coord to) {
+
+		if (insideBounds.isNull())
+			return false;
+
+		double dist = Math.hypot(to.getX() - from.getX(), to.getY() - from.getY());
+		double corridor = Math.max(MIN_CORRIDOR, dist / 2 * Math.sqrt(Math.max(0, maxDetour * maxDetour - 1)));
+
+		Envelope env = new Envelope(from.getX(), to.getX(), from.getY(), to.getY());
+		env.expandBy(corridor);
+
+		return env.intersects(insideBounds);
+	}
+
 	private Coord getCoordinate(Activity act) {
 		Coord coord;
 		// Determine coord of activity
@@ -0,0 +1,124 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateFilter;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.TopologyException;
+import org.locationtech.jts.geom.util.GeometryFixer;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.application.options.ShpOptions;
+import org.matsim.core.utils.geometry.CoordinateTransformation;
+import org.opengis.feature.simple.SimpleFeature;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Options to restrict sampled coordinates to landuse areas. Zones are intersected with the selected landuse once
+ * and the result is sampled exactly with a {@link PolygonSampler}.
+ */
+public final class LanduseSamplerOptions {
+
+	private static final Logger log = LogManager.getLogger(LanduseSamplerOptions.class);
+
+	@CommandLine.Option(names = "--landuse", description = "Path to landuse shape file")
+	private Path landuse;
+
+	@CommandLine.Option(names = "--landuse-filter", description = "Landuse types to use, e.g. residential", split = ",")
+	private Set<String> filter;
+
+	@CommandLine.Option(names = "--landuse-attr", description = "Attribute containing the landuse type", defaultValue = "fclass")
+	private String attr;
+
+	private STRtree index;
+
+	/**
+	 * Read the landuse shapes and transform them into the target crs. Needs to be called before creating samplers.
+	 */
+	public synchronized void load(String crs) {
+
+		if (landuse == null || index != null)
+			return;
+
+		ShpOptions shp = new ShpOptions(landuse, null, null);
+		CoordinateTransformation ct = shp.createTransformation(crs);
+
+		index = new STRtree();
+		for (SimpleFeature ft : shp.readFeatures()) {
+			if (filter != null && !filter.contains(String.valueOf(ft.getAttribute(attr))))
+				continue;
+
+			Geometry geom = ((Geometry) ft.getDefaultGeometry()).copy();
+			geom.apply((CoordinateFilter) c -> transform(ct, c));
+			geom.geometryChanged();
+
+			// Invalid OSM polygons would fail the intersection with zones
+			if (!geom.isValid())
+				geom = GeometryFixer.fix(geom);
+
+			index.insert(geom.getEnvelopeInternal(), geom);
+		}
+
+		index.build();
+
+		log.info("Read {} landuse shapes", index.size());
+	}
+
+	private static void transform(CoordinateTransformation ct, Coordinate c) {
+		Coord t = ct.transform(new Coord(c.x, c.y));
+		c.x = t.getX();
+		c.y = t.getY();
+	}
+
+	/**
+	 * Create a sampler for the part of the zone covered by landuse. If no landuse is configured or the zone does not
+	 * contain any, the whole zone is used. The whole zone is also used if the intersection fails, so that no zone is dropped.
+	 */
+	public PolygonSampler createSampler(Geometry zone, String name) {
+
+		if (index == null)
+			return PolygonSampler.create(zone);
+
+		Geometry area;
+		try {
+			area = intersect(zone.isValid() ? zone : GeometryFixer.fix(zone));
+		} catch (TopologyException e) {
+			log.warn("Could not intersect zone {} with landuse, using the whole area", name, e);
+			return PolygonSampler.create(zone);
+		}
+
+		if (area == null) {
+			log.warn("Zone {} does not contain any landuse, using the whole area", name);
+			return PolygonSampler.create(zone);
+		}
+
+		return PolygonSampler.create(area);
+	}
+
+	/**
+	 * Union of the landuse within the zone, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	private Geometry intersect(Geometry zone) {
+
+		List<Geometry> parts = new ArrayList<>();
+		for (Geometry geom : (List<Geometry>) index.query(zone.getEnvelopeInternal())) {
+			if (!zone.intersects(geom))
+				continue;
+
+			Geometry part = zone.intersection(geom);
+			if (part.getArea() > 0)
+				parts.add(part);
+		}
+
+		return parts.isEmpty() ? null : UnaryUnionOp.union(parts);
+	}
+
+}
@@ -0,0 +1,121 @@
+package org.matsim.prepare;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.utils.geometry.CoordUtils;
+
+import java.util.function.Predicate;
+
+/**
+ * Spatial index over the line segments of links accepted by a filter. Queries return the exact nearest link by line distance.
+ * Segment coordinates are stored in primitive arrays, the index can be queried from multiple threads.
+ */
+public final class LinkIndex {
+
+	private final STRtree index = new STRtree();
+
+	private final Link[] links;
+
+	/**
+	 * From and to coordinates of each link, four entries per link.
+	 */
+	private final double[] segments;
+
+	/**
+	 * Create an index with all links accepted by the filter, e.g. by allowed mode or link type.
+	 */
+	public LinkIndex(Network network, Predicate<Link> filter) {
+
+		links = network.getLinks().values().stream()
+			.filter(filter)
+			.toArray(Link[]::new);
+
+		segments = new double[links.length * 4];
+
+		for (int i = 0; i < links.length; i++) {
+			Coord from = links[i].getFromNode().getCoord();
+			Coord to = links[i].getToNode().getCoord();
+
+			segments[i * 4] = from.getX();
+			segments[i * 4 + 1] = from.getY();
+			segments[i * 4 + 2] = to.getX();
+			segments[i * 4 + 3] = to.getY();
+
+			index.insert(new Envelope(from.getX(), to.getX(), from.getY(), to.getY()), i);
+		}
+
+		index.build();
+	}
+
+	/**
+	 * Index with all links of the network.
+	 */
+	public static LinkIndex create(Network network) {
+		return new LinkIndex(network, l -> true);
+	}
+
+	private double distance(ItemBoundable a, ItemBoundable b) {
+
+		Coord coord = a.getItem() instanceof Coord c ? c : (Coord) b.getItem();
+		int i = a.getItem() instanceof Integer idx ? idx : (Integer) b.getItem();
+
+		return distance(i, coord.getX(), coord.getY());
+	}
+
+	/**
+	 * Distance between a point and the segment of link with index i.
+	 */
+	private double distance(int i, double x, double y) {
+
+		double x1 = segments[i * 4];
+		double y1 = segments[i * 4 + 1];
+		double dx = segments[i * 4 + 2] - x1;
+		double dy = segments[i * 4 + 3] - y1;
+
+		double t = project(dx, dy, x - x1, y - y1);
+
+		return Math.hypot(x - (x1 + t * dx), y - (y1 + t * dy));
+	}
+
+	/**
+	 * Position of the projected point on the segment, clamped to [0, 1].
+	 */
+	private static double project(double dx, double dy, double px, double py) {
+
+		double len = dx * dx + dy * dy;
+		if (len == 0)
+			return 0;
+
+		return Math.max(0, Math.min(1, (px * dx + py * dy) / len));
+	}
+
+	/**
+	 * Return the nearest link to the coordinate, or null if the index is empty.
+	 */
+	public Link query(Coord coord) {
+
+		if (links.length == 0)
+			return null;
+
+		Envelope env = new Envelope(coord.getX(), coord.getX(), coord.getY(), coord.getY());
+		Integer i = (Integer) index.nearestNeighbour(env, coord, this::distance);
+		return links[i];
+	}
+
+	/**
+	 * Project the coordinate onto the nearest link.
+	 */
+	public Coord snap(Coord coord) {
+
+		Link link = query(coord);
+		if (link == null)
+			return null;
+
+		return CoordUtils.orthogonalProjectionOnLineSegment(link.getFromNode().getCoord(), link.getToNode().getCoord(), coord);
+	}
+
+}
@@ -2,14 +2,15 @@ package org.matsim.prepare;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.Plan;
-import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
-import org.matsim.core.population.PopulationUtils;
+import org.matsim.utils.objectattributes.attributable.Attributes;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
@@ -27,6 +28,12 @@ public class MergePlans implements MATSimAppCommand {
 	@CommandLine.Option(names = "--output", description = "Path to output population", required = true)
 	private Path output;
 
+	@CommandLine.Option(names = "--tmp", description = "Directory for temporary files, needed if inputs are not sorted by person id")
+	private Path tmp = Path.of(System.getProperty("java.io.tmpdir"));
+
+	@CommandLine.Option(names = "--chunk-size", description = "Number of persons held in memory when sorting unsorted inputs", defaultValue = "100000")
+	private int chunkSize;
+
 	public static void main(String[] args) {
 		new MergePlans().execute(args);
 	}
@@ -34,40 +41,106 @@ public class MergePlans implements MATSimAppCommand {
 	@Override
 	public Integer call() throws Exception {
 
-		Population population = PopulationUtils.readPopulation(inputs.get(0).toString());
+		// Population attributes, e.g. the coordinate system, are taken from the first input
+		Attributes attributes = PersonStreams.attributes(inputs.get(0));
 
-		for (Person person : population.getPersons().values()) {
-			Plan selected = person.getSelectedPlan();
+		// Inputs are usually sorted by person id and can be merged directly
+		List<PersonStreams.Source> sources = inputs.stream().map(PersonStreams::file).toList();
 
-			List<? extends Plan> toRemove = person.getPlans().stream()
-					.filter(plan -> !Objects.equals(plan, selected))
-					.toList();
+		try {
+			merge(sources, attributes);
+		} catch (UnsortedInputException e) {
+			log.warn("{}, inputs will be sorted first.", e.getMessage());
+
+			List<PersonStreams.Source> sorted = new ArrayList<>();
+			for (Path input : inputs) {
+				log.info("Sorting {}", input);
+				sorted.add(PersonStreams.sorted(input, tmp, chunkSize));
+			}
 
-			// Need intermediate list to avoid concurrent modification
-			toRemove.forEach(person::removePlan);
+			merge(sorted, attributes);
 		}
 
-		for (int i = 1; i < inputs.size(); i++) {
+		return 0;
+	}
+
+	/**
+	 * Merge the sources person by person. The first source determines the persons in the output.
+	 */
+	@SuppressWarnings("unchecked")
+	private void merge(List<PersonStreams.Source> sources, Attributes attributes) {
+
+		List<PersonStreams.PersonStream> streams = new ArrayList<>();
+		Id<Person>[] last = new Id[sources.size()];
+
+		long n = 0;
+
+		try (PersonStreams.Sink writer = PersonStreams.writer(output, attributes)) {
+
+			for (int i = 0; i < sources.size(); i++) {
+				streams.add(new PersonStreams.PersonStream(sources.get(i), inputs.get(i).getFileName().toString()));
+			}
+
+			Person person;
+			while ((person = next(streams, last, 0)) != null) {
+
+				Plan selected = person.getSelectedPlan();
 
-			String filename = inputs.get(i).toString();
-			log.info("Reading {}", filename);
+				List<? extends Plan> toRemove = person.getPlans().stream()
+						.filter(plan -> !Objects.equals(plan, selected))
+						.toList();
 
-			Population pop = PopulationUtils.readPopulation(filename);
+				// Need intermediate list to avoid concurrent modification
+				toRemove.forEach(person::removePlan);
 
-			for (Person p : pop.getPersons().values()) {
+				for (int i = 1; i < streams.size(); i++) {
+					PersonStreams.PersonStream s = streams.get(i);
 
-				Person destPerson = population.getPersons().get(p.getId());
-				if (destPerson == null) {
-					log.warn("Person {} not present in all populations.", p.getId());
-					continue;
+					// Persons before the current one are not contained in the first input
+					while (s.peek() != null && s.peek().getId().compareTo(person.getId()) < 0) {
+						log.warn("Person {} not present in all populations.", next(streams, last, i).getId());
+					}
+
+					if (s.peek() != null && s.peek().getId().equals(person.getId()))
+						person.addPlan(next(streams, last, i).getSelectedPlan());
 				}
 
-				destPerson.addPlan(p.getSelectedPlan());
+				writer.run(person);
+				n++;
+			}
+
+			for (int i = 1; i < streams.size(); i++) {
+				while (streams.get(i).peek() != null) {
+					log.warn("Person {} not present in all populations.", next(streams, last, i).getId());
+				}
 			}
+
+		} finally {
+			streams.forEach(PersonStreams.PersonStream::close);
 		}
 
-		PopulationUtils.writePopulation(population, output.toString());
+		log.info("Merged {} persons from {} populations", n, sources.size());
+	}
 
-		return 0;
+	/**
+	 * Take the next person of a stream and check that ids are increasing.
+	 */
+	private static Person next(List<PersonStreams.PersonStream> streams, Id<Person>[] last, int i) {
+
+		Person p = streams.get(i).next();
+		if (p == null)
+			return null;
+
+		if (last[i] != null && p.getId().compareTo(last[i]) < 0)
+			throw new UnsortedInputException("Input " + i + " is not sorted by person id at " + p.getId());
+
+		last[i] = p.getId();
+		return p;
+	}
+
+	private static final class UnsortedInputException extends RuntimeException {
+		UnsortedInputException(String message) {
+			super(message);
+		}
 	}
 }
@@ -0,0 +1,206 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import picocli.CommandLine;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Options and runtime to execute {@link PersonAlgorithm}s and other independent tasks in parallel.
+ * Persons are processed in small chunks by a work-stealing pool, so that expensive persons do not block a whole thread.
+ * Progress and registered counters are logged periodically.
+ */
+public final class ParallelOptions {
+
+	private static final Logger log = LogManager.getLogger(ParallelOptions.class);
+
+	/**
+	 * Number of persons processed by one task without further splitting.
+	 */
+	private static final int CHUNK_SIZE = 64;
+
+	/**
+	 * Interval of progress messages in seconds.
+	 */
+	private static final int PROGRESS_INTERVAL = 30;
+
+	/**
+	 * Counters, which are reset for each run and logged together with the progress.
+	 */
+	private final Map<String, AtomicLong> counters = new LinkedHashMap<>();
+
+	@CommandLine.Spec(CommandLine.Spec.Target.MIXEE)
+	private CommandLine.Model.CommandSpec spec;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	public ParallelOptions() {
+	}
+
+	public ParallelOptions(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1, but was " + threads);
+
+		this.threads = threads;
+	}
+
+	@CommandLine.Option(names = "--threads", description = "Number of threads to use. Defaults to number of available cores.")
+	private void setThreads(int threads) {
+		if (threads < 1)
+			throw new CommandLine.ParameterException(spec.commandLine(), "Invalid value for option '--threads': must be at least 1, but was " + threads);
+
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Register a named counter, which can be incremented concurrently by the person algorithm.
+	 * Counters need to be registered before running the algorithm.
+	 */
+	public AtomicLong counter(String name) {
+		return counters.computeIfAbsent(name, k -> new AtomicLong());
+	}
+
+	/**
+	 * Run the algorithm on all persons of the population.
+	 */
+	public void run(Population population, PersonAlgorithm algorithm) {
+		run(new ArrayList<>(population.getPersons().values()), algorithm);
+	}
+
+	/**
+	 * Run the algorithm on all given persons.
+	 */
+	public void run(List<? extends Person> persons, PersonAlgorithm algorithm) {
+
+		counters.values().forEach(c -> c.set(0));
+
+		AtomicLong processed = new AtomicLong();
+		long start = System.nanoTime();
+
+		log.info("Processing {} persons using {} threads", persons.size(), threads);
+
+		ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "person-algorithm-progress");
+			t.setDaemon(true);
+			return t;
+		});
+
+		progress.scheduleAtFixedRate(() -> logProgress(persons.size(), processed.get(), start),
+			PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.SECONDS);
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new Task(persons, 0, persons.size(), algorithm, processed));
+		} finally {
+			pool.shutdown();
+			progress.shutdownNow();
+		}
+
+		double seconds = Math.max((System.nanoTime() - start) / 1e9, 1e-3);
+
+		log.info("Processed {} persons in {} s ({} persons/s){}", persons.size(), Math.round(seconds),
+			Math.round(persons.size() / seconds), formatCounters());
+	}
+
+	/**
+	 * Apply a function to all items in parallel. The results are returned in the same order as the input.
+	 */
+	public <T, R> List<R> map(List<T> items, Function<? super T, ? extends R> f) {
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			// Parallel streams use the pool they are submitted to
+			return pool.submit(() -> items.parallelStream().<R>map(f).toList()).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for results", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException re)
+				throw re;
+
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private void logProgress(int total, long processed, long start) {
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double rate = processed / seconds;
+
+		String eta = rate > 0 ? Math.round((total - processed) / rate) + " s" : "unknown";
+
+		log.info("Processed {} / {} persons ({}%), {} persons/s, ETA {}{}", processed, total,
+			Math.round(100d * processed / total), Math.round(rate), eta, formatCounters());
+	}
+
+	private String formatCounters() {
+		if (counters.isEmpty())
+			return "";
+
+		return counters.entrySet().stream()
+			.map(e -> e.getKey() + ": " + e.getValue().get())
+			.collect(Collectors.joining(", ", ", ", ""));
+	}
+
+	/**
+	 * Splits the persons recursively until they are small enough to be processed directly.
+	 */
+	private static final class Task extends RecursiveAction {
+
+		private final List<? extends Person> persons;
+		private final int from;
+		private final int to;
+		private final PersonAlgorithm algorithm;
+		private final AtomicLong processed;
+
+		Task(List<? extends Person> persons, int from, int to, PersonAlgorithm algorithm, AtomicLong processed) {
+			this.persons = persons;
+			this.from = from;
+			this.to = to;
+			this.algorithm = algorithm;
+			this.processed = processed;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (to - from > CHUNK_SIZE) {
+				int mid = (from + to) >>> 1;
+				invokeAll(
+					new Task(persons, from, mid, algorithm, processed),
+					new Task(persons, mid, to, algorithm, processed)
+				);
+				return;
+			}
+
+			for (int i = from; i < to; i++) {
+				algorithm.run(persons.get(i));
+			}
+
+			processed.addAndGet(to - from);
+		}
+	}
+
+}
@@ -0,0 +1,351 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.population.io.PopulationWriterHandlerImplV6;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.geometry.transformations.IdentityTransformation;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.prepare.population.BinaryPopulationReader;
+import org.matsim.prepare.population.BinaryPopulationWriter;
+import org.matsim.prepare.population.PopulationFiles;
+import org.matsim.utils.objectattributes.ObjectAttributesConverter;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+import org.matsim.utils.objectattributes.attributable.AttributesImpl;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pull based, streaming access to the persons of population files.
+ * Each stream is read by its own thread, only a bounded number of persons is held in memory.
+ */
+final class PersonStreams {
+
+	/**
+	 * Number of persons buffered per stream.
+	 */
+	private static final int CAPACITY = 256;
+
+	private PersonStreams() {
+	}
+
+	/**
+	 * Source that passes all persons to an algorithm, one after another.
+	 */
+	interface Source {
+		void read(PersonAlgorithm algorithm) throws IOException;
+	}
+
+	/**
+	 * Read persons from an xml or binary population file.
+	 */
+	static Source file(Path path) {
+
+		if (PopulationFiles.isBinary(path))
+			return algorithm -> {
+				try (BinaryPopulationReader reader = new BinaryPopulationReader(path, PopulationUtils.getFactory())) {
+					reader.readPersons(algorithm);
+				}
+			};
+
+		return algorithm -> {
+			StreamingPopulationReader reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+			reader.addAlgorithm(algorithm);
+			reader.readFile(path.toString());
+		};
+	}
+
+	/**
+	 * Sort a population file by person id using external memory. The file is split into sorted runs of the given size,
+	 * which are stored in the temporary directory and merged while reading the returned source.
+	 */
+	static Source sorted(Path path, Path tmp, int chunkSize) throws IOException {
+
+		List<Path> runs = new ArrayList<>();
+		List<Person> chunk = new ArrayList<>(chunkSize);
+
+		file(path).read(person -> {
+			chunk.add(person);
+			if (chunk.size() >= chunkSize)
+				runs.add(writeRun(chunk, tmp));
+		});
+
+		if (!chunk.isEmpty())
+			runs.add(writeRun(chunk, tmp));
+
+		return algorithm -> {
+			List<PersonStream> streams = new ArrayList<>();
+			try {
+				for (Path run : runs) {
+					streams.add(new PersonStream(file(run), run.getFileName().toString()));
+				}
+
+				mergeRuns(streams, algorithm);
+
+			} finally {
+				streams.forEach(PersonStream::close);
+				for (Path run : runs) {
+					Files.deleteIfExists(run);
+				}
+			}
+		};
+	}
+
+	private static Path writeRun(List<Person> chunk, Path tmp) {
+
+		chunk.sort(Comparator.comparing(Person::getId));
+
+		try {
+			Path run = Files.createTempFile(tmp, "run", ".plans" + PopulationFiles.BINARY_EXTENSION);
+
+			BinaryPopulationWriter writer = new BinaryPopulationWriter();
+			writer.open(run, new AttributesImpl());
+			chunk.forEach(writer::writePerson);
+			writer.close();
+
+			chunk.clear();
+			return run;
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Pass the persons of sorted streams to the algorithm in total id order.
+	 */
+	private static void mergeRuns(List<PersonStream> streams, PersonAlgorithm algorithm) {
+		while (true) {
+			PersonStream min = null;
+			for (PersonStream s : streams) {
+				if (s.peek() != null && (min == null || s.peek().getId().compareTo(min.peek().getId()) < 0))
+					min = s;
+			}
+
+			if (min == null)
+				return;
+
+			algorithm.run(min.next());
+		}
+	}
+
+	/**
+	 * Read only the population attributes of an xml or binary population file, e.g. the coordinate system.
+	 * Xml files are read until the first person.
+	 */
+	static Attributes attributes(Path path) throws IOException {
+
+		Attributes attributes = new AttributesImpl();
+
+		if (PopulationFiles.isBinary(path)) {
+			try (BinaryPopulationReader reader = new BinaryPopulationReader(path, PopulationUtils.getFactory())) {
+				reader.readPopulationAttributes(attributes);
+			}
+			return attributes;
+		}
+
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+
+		ObjectAttributesConverter converter = new ObjectAttributesConverter();
+
+		try (InputStream in = IOUtils.getInputStream(IOUtils.resolveFileOrResource(path.toString()))) {
+			XMLStreamReader xml = factory.createXMLStreamReader(in);
+			try {
+				while (xml.hasNext()) {
+					if (xml.next() != XMLStreamConstants.START_ELEMENT)
+						continue;
+
+					// Population attributes are written before all persons
+					if (xml.getLocalName().equals("person"))
+						break;
+
+					if (xml.getLocalName().equals("attribute")) {
+						String name = xml.getAttributeValue(null, "name");
+						Object value = converter.convert(xml.getAttributeValue(null, "class"), xml.getElementText());
+						if (value != null)
+							attributes.putAttribute(name, value);
+					}
+				}
+			} finally {
+				xml.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not read population attributes of " + path, e);
+		}
+
+		return attributes;
+	}
+
+	/**
+	 * Open a writer, which writes xml or binary populations depending on the file extension.
+	 *
+	 * @param attributes population attributes written to the file, e.g. the coordinate system
+	 */
+	static Sink writer(Path path, Attributes attributes) {
+
+		if (PopulationFiles.isBinary(path)) {
+			BinaryPopulationWriter writer = new BinaryPopulationWriter();
+			writer.open(path, attributes);
+			return new Sink() {
+				@Override
+				public void run(Person person) {
+					writer.writePerson(person);
+				}
+
+				@Override
+				public void close() {
+					writer.close();
+				}
+			};
+		}
+
+		// The handler writes the attributes of this otherwise empty population into the header
+		Population header = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+		attributes.getAsMap().forEach(header.getAttributes()::putAttribute);
+
+		PopulationWriterHandlerImplV6 handler = new PopulationWriterHandlerImplV6(new IdentityTransformation());
+		BufferedWriter out = IOUtils.getBufferedWriter(path.toString());
+
+		try {
+			handler.writeHeaderAndStartElement(out);
+			handler.startPlans(header, out);
+			handler.writeSeparator(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return new Sink() {
+			@Override
+			public void run(Person person) {
+				try {
+					handler.writePerson(person, out);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			@Override
+			public void close() {
+				try (out) {
+					handler.endPlans(out);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes persons to a file as they arrive.
+	 */
+	interface Sink extends PersonAlgorithm, AutoCloseable {
+		@Override
+		void close();
+	}
+
+	/**
+	 * Reads a source in a background thread and provides its persons one after another.
+	 */
+	static final class PersonStream implements AutoCloseable {
+
+		private static final Object END = new Object();
+
+		private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(CAPACITY);
+		private final Thread thread;
+
+		private volatile Exception error;
+
+		private Person head;
+		private boolean done;
+
+		@SuppressWarnings("IllegalCatch")
+		PersonStream(Source source, String name) {
+			thread = new Thread(() -> {
+				try {
+					source.read(this::put);
+				} catch (IOException | RuntimeException e) {
+					error = e;
+				}
+
+				try {
+					queue.put(END);
+				} catch (InterruptedException e) {
+					// Stream was closed, nobody is waiting for the end
+					Thread.currentThread().interrupt();
+				}
+			}, "read-" + name);
+
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private void put(Person person) {
+			try {
+				queue.put(person);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Reading was cancelled", e);
+			}
+		}
+
+		/**
+		 * Return the next person without removing it, or null if the stream is exhausted.
+		 */
+		Person peek() {
+
+			if (head != null || done)
+				return head;
+
+			Object o;
+			try {
+				o = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for persons", e);
+			}
+
+			if (o == END) {
+				done = true;
+				if (error != null)
+					throw new IllegalStateException("Error while reading persons", error);
+			} else
+				head = (Person) o;
+
+			return head;
+		}
+
+		/**
+		 * Return and remove the next person, or null if the stream is exhausted.
+		 */
+		Person next() {
+			Person p = peek();
+			head = null;
+			return p;
+		}
+
+		@Override
+		public void close() {
+			thread.interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,159 @@
+package org.matsim.prepare;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.util.GeometryFixer;
+import org.locationtech.jts.geom.util.PolygonExtracter;
+import org.locationtech.jts.triangulate.polygon.ConstrainedDelaunayTriangulator;
+import org.matsim.api.core.v01.Coord;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+/**
+ * Draws uniformly distributed points from the area of a geometry.
+ * The geometry is triangulated once, triangles are selected by area with an alias table, so that each sample needs constant time.
+ */
+public final class PolygonSampler {
+
+	/**
+	 * Triangle corners, six values per triangle.
+	 */
+	private final double[] corners;
+
+	/**
+	 * Alias table over the triangle areas.
+	 */
+	private final double[] prob;
+	private final int[] alias;
+
+	private final double area;
+
+	private PolygonSampler(double[] corners, double[] areas, double area) {
+		this.corners = corners;
+		this.area = area;
+
+		int n = areas.length;
+		this.prob = new double[n];
+		this.alias = new int[n];
+
+		// Vose's alias method
+		double[] scaled = new double[n];
+		Deque<Integer> small = new ArrayDeque<>();
+		Deque<Integer> large = new ArrayDeque<>();
+
+		for (int i = 0; i < n; i++) {
+			scaled[i] = areas[i] * n / area;
+			if (scaled[i] < 1)
+				small.push(i);
+			else
+				large.push(i);
+		}
+
+		while (!small.isEmpty() && !large.isEmpty()) {
+			int s = small.pop();
+			int l = large.pop();
+
+			prob[s] = scaled[s];
+			alias[s] = l;
+
+			scaled[l] = scaled[l] + scaled[s] - 1;
+			if (scaled[l] < 1)
+				small.push(l);
+			else
+				large.push(l);
+		}
+
+		// Remaining entries are 1 up to rounding errors
+		while (!large.isEmpty())
+			prob[large.pop()] = 1;
+		while (!small.isEmpty())
+			prob[small.pop()] = 1;
+	}
+
+	/**
+	 * Create a sampler for the polygonal area of a geometry. Non polygonal parts are ignored.
+	 *
+	 * @throws IllegalArgumentException if the geometry has no area
+	 */
+	public static PolygonSampler create(Geometry geometry) {
+
+		if (!geometry.isValid())
+			geometry = GeometryFixer.fix(geometry);
+
+		@SuppressWarnings("unchecked")
+		List<Polygon> polygons = PolygonExtracter.getPolygons(geometry);
+
+		int n = 0;
+		Geometry[] triangulations = new Geometry[polygons.size()];
+		for (int i = 0; i < polygons.size(); i++) {
+			triangulations[i] = ConstrainedDelaunayTriangulator.triangulate(polygons.get(i));
+			n += triangulations[i].getNumGeometries();
+		}
+
+		double[] corners = new double[n * 6];
+		double[] areas = new double[n];
+		double total = 0;
+
+		int k = 0;
+		for (Geometry triangles : triangulations) {
+			for (int i = 0; i < triangles.getNumGeometries(); i++) {
+				Coordinate[] c = triangles.getGeometryN(i).getCoordinates();
+
+				double a = Math.abs((c[1].x - c[0].x) * (c[2].y - c[0].y) - (c[2].x - c[0].x) * (c[1].y - c[0].y)) / 2;
+				if (a <= 0)
+					continue;
+
+				for (int j = 0; j < 3; j++) {
+					corners[k * 6 + j * 2] = c[j].x;
+					corners[k * 6 + j * 2 + 1] = c[j].y;
+				}
+
+				areas[k++] = a;
+				total += a;
+			}
+		}
+
+		if (k == 0)
+			throw new IllegalArgumentException("Geometry has no area: " + geometry.getGeometryType());
+
+		return new PolygonSampler(Arrays.copyOf(corners, k * 6), Arrays.copyOf(areas, k), total);
+	}
+
+	/**
+	 * Total area of the sampled geometry.
+	 */
+	public double getArea() {
+		return area;
+	}
+
+	/**
+	 * Draw a uniformly distributed point.
+	 */
+	public Coord sample(RandomGenerator rnd) {
+
+		int i = rnd.nextInt(prob.length);
+		if (rnd.nextDouble() >= prob[i])
+			i = alias[i];
+
+		double u = rnd.nextDouble();
+		double v = rnd.nextDouble();
+
+		// Reflect points of the other half of the parallelogram back into the triangle
+		if (u + v > 1) {
+			u = 1 - u;
+			v = 1 - v;
+		}
+
+		int o = i * 6;
+		double x = corners[o] + u * (corners[o + 2] - corners[o]) + v * (corners[o + 4] - corners[o]);
+		double y = corners[o + 1] + u * (corners[o + 3] - corners[o + 1]) + v * (corners[o + 5] - corners[o + 1]);
+
+		return new Coord(x, y);
+	}
+
+}
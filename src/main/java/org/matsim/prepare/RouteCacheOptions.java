@@ -0,0 +1,385 @@
+package org.matsim.prepare;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import picocli.CommandLine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Options and runtime of a bounded, thread-safe cache for routes between nodes.
+ * Routes are cached by origin, destination, time bin and a name of the travel time source, e.g. "freespeed".
+ * The cache is only used if a cache file is given, and is stored there, so that following runs on the same network do not need to route again.
+ * The file contains a hash of the network content and is ignored if the network changed.
+ * The size of the cache is limited by the number of links over all routes, which determines its memory usage.
+ */
+public final class RouteCacheOptions {
+
+	private static final Logger log = LogManager.getLogger(RouteCacheOptions.class);
+
+	private static final int MAGIC = 0x52544543;
+	private static final int VERSION = 2;
+
+	/**
+	 * Number of independently locked segments.
+	 */
+	private static final int SEGMENTS = 32;
+
+	@CommandLine.Option(names = "--route-cache", description = "Path to binary file to load and store cached routes.")
+	private Path path;
+
+	@CommandLine.Option(names = "--route-cache-size", description = "Maximum number of links over all cached routes.", defaultValue = "10000000")
+	private int capacity = 10_000_000;
+
+	@CommandLine.Option(names = "--route-cache-bin", description = "Size of time bins in seconds.", defaultValue = "3600")
+	private double binSize = 3600;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private Network network;
+	private long networkHash;
+	private Segment[] segments;
+
+	public RouteCacheOptions() {
+	}
+
+	public RouteCacheOptions(Path path, int capacity, double binSize) {
+		this.path = path;
+		this.capacity = capacity;
+		this.binSize = binSize;
+	}
+
+	/**
+	 * Initialize the cache for a network. Routes from a previous run are loaded if a cache file exists.
+	 */
+	public void init(Network network) throws IOException {
+
+		// Without a cache file, routes are mostly unique and caching them would only use memory
+		if (path == null)
+			return;
+
+		this.network = network;
+		this.networkHash = hash(network);
+		this.segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+		}
+
+		if (Files.exists(path))
+			load();
+	}
+
+	/**
+	 * Hash of all nodes and links of the network, including the link attributes that determine travel times.
+	 */
+	static long hash(Network network) {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+
+		// Sorted by id, so that the hash does not depend on the iteration order of the network
+		List<Node> nodes = new ArrayList<>(network.getNodes().values());
+		nodes.sort(Comparator.comparing(Node::getId));
+
+		List<Link> links = new ArrayList<>(network.getLinks().values());
+		links.sort(Comparator.comparing(Link::getId));
+
+		try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest))) {
+
+			out.writeInt(nodes.size());
+			for (Node node : nodes) {
+				out.writeUTF(node.getId().toString());
+				out.writeDouble(node.getCoord().getX());
+				out.writeDouble(node.getCoord().getY());
+			}
+
+			out.writeInt(links.size());
+			for (Link link : links) {
+				out.writeUTF(link.getId().toString());
+				out.writeUTF(link.getFromNode().getId().toString());
+				out.writeUTF(link.getToNode().getId().toString());
+				out.writeDouble(link.getLength());
+				out.writeDouble(link.getFreespeed());
+				out.writeDouble(link.getCapacity());
+				out.writeDouble(link.getNumberOfLanes());
+				out.writeUTF(String.join(",", new TreeSet<>(link.getAllowedModes())));
+			}
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return ByteBuffer.wrap(digest.digest()).getLong();
+	}
+
+	/**
+	 * Return the cached route or compute it with the given router.
+	 *
+	 * @param source name of the travel time source of the router, routes of different sources are cached separately
+	 */
+	public LeastCostPathCalculator.Path route(String source, LeastCostPathCalculator router, Node from, Node to, double time) {
+
+		if (segments == null)
+			return router.calcLeastCostPath(from, to, time, null, null);
+
+		Key key = new Key(source, from.getId(), to.getId(), (int) (time / binSize));
+		Segment segment = segments[Math.floorMod(key.hashCode(), SEGMENTS)];
+
+		Route route = segment.get(key);
+		if (route != null) {
+			hits.increment();
+			return route.toPath(from);
+		}
+
+		misses.increment();
+
+		LeastCostPathCalculator.Path path = router.calcLeastCostPath(from, to, time, null, null);
+		segment.put(key, Route.of(path));
+
+		return path;
+	}
+
+	/**
+	 * Share of requests, which were answered from the cache.
+	 */
+	public double getHitRate() {
+		long total = hits.sum() + misses.sum();
+		return total == 0 ? 0 : (double) hits.sum() / total;
+	}
+
+	/**
+	 * Log hit statistics and write the cache file, if one is configured.
+	 */
+	public void close() throws IOException {
+
+		if (segments == null)
+			return;
+
+		log.info("Route cache: {} hits, {} misses, hit rate {}%", hits.sum(), misses.sum(), Math.round(getHitRate() * 100));
+
+		save();
+	}
+
+	private void load() throws IOException {
+
+		int loaded = 0;
+		int skipped = 0;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				log.warn("Ignoring route cache {} with unknown format", path);
+				return;
+			}
+
+			// Travel times and paths of a changed network would be outdated
+			if (in.readLong() != networkHash) {
+				log.warn("Ignoring route cache {}, which was created for a different network", path);
+				return;
+			}
+
+			String[] table = new String[in.readInt()];
+			for (int i = 0; i < table.length; i++) {
+				table[i] = in.readUTF();
+			}
+
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+
+				String source = table[in.readInt()];
+				Id<Node> from = Id.createNodeId(table[in.readInt()]);
+				Id<Node> to = Id.createNodeId(table[in.readInt()]);
+				int bin = in.readInt();
+				double travelTime = in.readDouble();
+				double travelCost = in.readDouble();
+
+				Link[] links = new Link[in.readInt()];
+				boolean valid = network.getNodes().containsKey(from) && network.getNodes().containsKey(to);
+				for (int j = 0; j < links.length; j++) {
+					links[j] = network.getLinks().get(Id.createLinkId(table[in.readInt()]));
+					valid &= links[j] != null;
+				}
+
+				// Routes on links not present in the network are dropped
+				if (!valid) {
+					skipped++;
+					continue;
+				}
+
+				Key key = new Key(source, from, to, bin);
+				segments[Math.floorMod(key.hashCode(), SEGMENTS)].put(key, new Route(links, travelTime, travelCost));
+				loaded++;
+			}
+		}
+
+		log.info("Loaded {} routes from {}, skipped {} not matching the network", loaded, path, skipped);
+	}
+
+	private void save() throws IOException {
+
+		Object2IntMap<String> strings = new Object2IntOpenHashMap<>();
+		List<String> table = new ArrayList<>();
+		List<Map.Entry<Key, Route>> entries = new ArrayList<>();
+
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				entries.addAll(segment.entrySet());
+			}
+		}
+
+		List<int[]> encoded = new ArrayList<>(entries.size());
+		for (Map.Entry<Key, Route> e : entries) {
+			Key k = e.getKey();
+			Route r = e.getValue();
+
+			int[] ids = new int[r.links.length + 3];
+			ids[0] = intern(k.source, strings, table);
+			ids[1] = intern(k.from.toString(), strings, table);
+			ids[2] = intern(k.to.toString(), strings, table);
+			for (int i = 0; i < r.links.length; i++) {
+				ids[i + 3] = intern(r.links[i].getId().toString(), strings, table);
+			}
+
+			encoded.add(ids);
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(networkHash);
+
+			out.writeInt(table.size());
+			for (String s : table) {
+				out.writeUTF(s);
+			}
+
+			out.writeInt(entries.size());
+			for (int i = 0; i < entries.size(); i++) {
+				int[] ids = encoded.get(i);
+				Route r = entries.get(i).getValue();
+
+				out.writeInt(ids[0]);
+				out.writeInt(ids[1]);
+				out.writeInt(ids[2]);
+				out.writeInt(entries.get(i).getKey().bin);
+				out.writeDouble(r.travelTime);
+				out.writeDouble(r.travelCost);
+
+				out.writeInt(r.links.length);
+				for (int j = 3; j < ids.length; j++) {
+					out.writeInt(ids[j]);
+				}
+			}
+		}
+
+		log.info("Written {} routes to {}", entries.size(), path);
+	}
+
+	private static int intern(String s, Object2IntMap<String> strings, List<String> table) {
+		return strings.computeIfAbsent(s, k -> {
+			table.add(s);
+			return table.size() - 1;
+		});
+	}
+
+	record Key(String source, Id<Node> from, Id<Node> to, int bin) {
+	}
+
+	/**
+	 * Links and costs of a cached route.
+	 */
+	record Route(Link[] links, double travelTime, double travelCost) {
+
+		static Route of(LeastCostPathCalculator.Path path) {
+			return new Route(path.links.toArray(Link[]::new), path.travelTime, path.travelCost);
+		}
+
+		LeastCostPathCalculator.Path toPath(Node from) {
+
+			List<Node> nodes = new ArrayList<>(links.length + 1);
+			nodes.add(from);
+			for (Link link : links) {
+				nodes.add(link.getToNode());
+			}
+
+			return new LeastCostPathCalculator.Path(nodes, List.of(links), travelTime, travelCost);
+		}
+	}
+
+	/**
+	 * Part of the cache, which evicts the least recently used routes when the number of links exceeds its capacity.
+	 */
+	static final class Segment extends LinkedHashMap<Key, Route> {
+
+		private final int capacity;
+
+		/**
+		 * Number of links of all routes in this segment.
+		 */
+		private long links;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		public synchronized Route get(Object key) {
+			return super.get(key);
+		}
+
+		@Override
+		public synchronized Route put(Key key, Route value) {
+
+			Route old = super.put(key, value);
+			links += value.links.length - (old != null ? old.links.length : 0);
+
+			// Iteration starts at the least recently used route, the route just added is always kept
+			Iterator<Route> it = values().iterator();
+			while (links > capacity && size() > 1) {
+				links -= it.next().links.length;
+				it.remove();
+			}
+
+			return old;
+		}
+
+		synchronized long links() {
+			return links;
+		}
+	}
+
+}
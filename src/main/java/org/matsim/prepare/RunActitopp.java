@@ -8,15 +8,14 @@ import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.population.*;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.core.population.PersonUtils;
-import org.matsim.core.population.PopulationUtils;
-import org.matsim.core.population.algorithms.ParallelPersonAlgorithmUtils;
 import org.matsim.core.population.algorithms.PersonAlgorithm;
 import org.matsim.prepare.population.Attributes;
+import org.matsim.prepare.population.PersonRandom;
+import org.matsim.prepare.population.PopulationFiles;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
 import java.util.List;
-import java.util.Random;
 import java.util.SplittableRandom;
 
 @CommandLine.Command(
@@ -40,6 +39,9 @@ public class RunActitopp implements MATSimAppCommand, PersonAlgorithm {
 	@CommandLine.Option(names = "--seed", description = "Seed used to generate plans", defaultValue = "1")
 	private long seed;
 
+	@CommandLine.Mixin
+	private ParallelOptions parallel = new ParallelOptions();
+
 	private PopulationFactory factory;
 	private int index;
 
@@ -52,16 +54,16 @@ public class RunActitopp implements MATSimAppCommand, PersonAlgorithm {
 	@Override
 	public Integer call() throws Exception {
 
-		Population population = PopulationUtils.readPopulation(input.toString());
+		Population population = PopulationFiles.read(input);
 		factory = population.getFactory();
 
 		log.info("Generating activity chains...");
 
-		tl = ThreadLocal.withInitial(() -> new Context(seed));
+		tl = ThreadLocal.withInitial(Context::new);
 
-		ParallelPersonAlgorithmUtils.run(population, 8, this);
+		parallel.run(population, this);
 
-		PopulationUtils.writePopulation(population, output.toString());
+		PopulationFiles.write(population, output);
 
 		return 0;
 	}
@@ -77,6 +79,7 @@ public class RunActitopp implements MATSimAppCommand, PersonAlgorithm {
 
 		// Assume that there is only the stay home plan, which is the selected one
 		for (int i = 0; i < n; i++) {
+			ctx.init(PersonRandom.create(seed, "actitopp", person.getId(), i));
 			boolean newPlan = generatePlan(person, ctx);
 
 			// Create a copy of the stay home plan if no new one was generated
@@ -265,21 +268,18 @@ public class RunActitopp implements MATSimAppCommand, PersonAlgorithm {
 	}
 
 	/**
-	 * Context for one thread.
+	 * Context for one thread. Random generators are re-initialized for each generated plan.
 	 */
 	private static final class Context {
 
 		private final ModelFileBase fileBase = new ModelFileBase();
 
-		private final RNGHelper rng;
-		private final SplittableRandom rnd;
-
-		Context(long seed) {
+		private RNGHelper rng;
+		private SplittableRandom rnd;
 
-			// Generate a new uncorrelated seed
-			long l = new Random(seed).nextLong();
-			rng = new RNGHelper(l);
-			rnd = new SplittableRandom(l);
+		void init(SplittableRandom rnd) {
+			this.rnd = rnd;
+			this.rng = new RNGHelper(rnd.nextLong());
 		}
 	}
 
@@ -77,7 +77,7 @@ import java.util.stream.Collectors;
 	LookupRegioStaR.class, ExtractFacilityShp.class, DownSamplePopulation.class, DownloadCommuterStatistic.class,
 	RunActitopp.class, CreateNetworkFromSumo.class, CreateTransitScheduleFromGtfs.class,
 	CleanNetwork.class, SampleNetwork.class, ExtractFacilityShp.CreateMATSimFacilities.class, InitLocationChoice.class, FilterRelevantAgents.class,
-	CreateCountsFromGeoPortalBerlin.class, CreateCountsFromVMZOld.class, CreateCountsFromVMZ.class, ReprojectNetwork.class, RunActivitySampling.class,
+	CreateCountsFromGeoPortalBerlin.class, CreateCountsFromVMZOld.class, CreateCountsFromVMZ.class, ReprojectNetwork.class, RunActivitySampling.class, RunPopulationPipeline.class,
 	MergePlans.class, SplitActivityTypesDuration.class, CleanPopulation.class, CleanAttributes.class,
 	GenerateSmallScaleCommercialTrafficDemand.class, RunCountOptimization.class, SelectPlansFromIndex.class,
 	ExtractRelevantFreightTrips.class, CheckCarAvailability.class, FixSubtourModes.class,
@@ -149,8 +149,8 @@ public class RunOpenBerlinCalibration extends MATSimApplication {
 		config.controler().setRunId(mode.toString());
 		config.planCalcScore().setWriteExperiencedPlans(true);
 
-		// Location choice does not work with the split types
-		Activities.addScoringParams(config, mode != CalibrationMode.locationChoice);
+		// Location choice does not work with the split types, which are otherwise provided by the scoring module
+		Activities.addScoringParams(config, false);
 
 		SimWrapperConfigGroup sw = ConfigUtils.addOrGetModule(config, SimWrapperConfigGroup.class);
 
@@ -387,6 +387,9 @@ public class RunOpenBerlinCalibration extends MATSimApplication {
 
 		}
 
+		if (mode != CalibrationMode.locationChoice)
+			controler.addOverridingModule(Activities.createScoringModule());
+
 		controler.addOverridingModule(new SimWrapperModule());
 	}
 
@@ -37,6 +37,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * Data can be obtained at Data portal from Berlin.
@@ -56,12 +58,18 @@ public class CreateCountsFromGeoPortalBerlin implements MATSimAppCommand {
 	 */
 	private static final double PEAK_PERCENTAGE = 0.09;
 
+	/**
+	 * Penalty in meters per radian difference between link and station bearing, added to the distance when ranking links.
+	 */
+	private static final double BEARING_PENALTY = 10;
+
 	private static final List<String> ROAD_TYPES = List.of("motorway", "trunk", "primary", "secondary", "tertiary", "residential");
 
 	/**
 	 * Stores all mappings.
 	 */
 	private final Map<Id<Link>, Mapping> mappings = new HashMap<>();
+	private LinkMatcher matcher;
 	@CommandLine.Mixin
 	private InputOptions input = InputOptions.ofCommand(CreateCountsFromGeoPortalBerlin.class);
 	@CommandLine.Mixin
@@ -72,6 +80,8 @@ public class CreateCountsFromGeoPortalBerlin implements MATSimAppCommand {
 	private CountsOption counts = new CountsOption();
 	@CommandLine.Mixin
 	private ShpOptions shp = new ShpOptions();
+	@CommandLine.Mixin
+	private StationMapping mapping = new StationMapping();
 
 	public static void main(String[] args) {
 		new CreateCountsFromGeoPortalBerlin().execute(args);
@@ -108,18 +118,13 @@ public class CreateCountsFromGeoPortalBerlin implements MATSimAppCommand {
 			filteredNetwork = filter.applyFilters();
 		}
 
-		log.info("Build Index.");
-		Map<Id<Link>, Geometry> geometries = networkGeometries != null
-			? NetworkIndex.readGeometriesFromSumo(networkGeometries.toString(), IdentityTransform.create(2))
-			: new HashMap<>();
-		NetworkIndex<MultiLineString> index = new NetworkIndex<>(filteredNetwork, geometries, 20, toMatch -> toMatch);
-
-		// Compare two line strings
-		index.setDistanceCalculator(NetworkIndex::minHausdorffDistance);
+		mapping.init(StationMapping.hash(input.getNetworkPath(), networkGeometries != null ? networkGeometries.toString() : null),
+			StationMapping.hash(shp.getShapeFile().toString()));
 
 		MathTransform transformation = getCoordinateTransformation(shp.getShapeCrs(), RunOpenBerlinScenario.CRS);
 
 		log.info("Processing features.");
+		List<CountFeature> stations = new ArrayList<>();
 		int counter = 0;
 		for (SimpleFeature feature : features) {
 
@@ -133,15 +138,30 @@ public class CreateCountsFromGeoPortalBerlin implements MATSimAppCommand {
 			}
 
 			MultiLineString transformed = (MultiLineString) JTS.transform(ls, transformation);
+			Coordinate[] coordinates = transformed.getCoordinates();
 
-			String direction = (String) feature.getAttribute("vricht");
+			stations.add(new CountFeature(feature, transformed, (String) feature.getAttribute("vricht"),
+				LinkMatcher.bearing(coordinates[0], coordinates[coordinates.length - 1])));
+		}
 
-			switch (direction) {
-				case "R" -> handleMatch(feature, index.query(transformed, this::filterDirection), null);
-				case "G" -> handleMatch(feature, null, index.query(transformed, this::filterOppositeDirection));
-				case "B" ->
-					handleMatch(feature, index.query(transformed, this::filterDirection), index.query(transformed, this::filterOppositeDirection));
-				default -> throw new IllegalStateException("Unknown direction " + direction);
+		// Links are not exclusive, double matches are handled in order of the features
+		Supplier<LinkMatcher> factory = () -> getMatcher(filteredNetwork);
+		List<Link> forward = mapping.match(filteredNetwork, factory, stations, st -> st.id() + "_R",
+			st -> StationMapping.hashOf(st.geometry, st.direction, BEARING_PENALTY), CountFeature::geometry, CountFeature::bearing,
+			(link, st) -> !st.direction.equals("G") && filterDirection(link, st.bearing), st -> null, false);
+		List<Link> backward = mapping.match(filteredNetwork, factory, stations, st -> st.id() + "_G",
+			st -> StationMapping.hashOf(st.geometry, st.direction, BEARING_PENALTY), CountFeature::geometry, st -> st.bearing + Math.PI,
+			(link, st) -> !st.direction.equals("R") && filterDirection(link, st.bearing + Math.PI), st -> null, false);
+
+		mapping.save();
+
+		for (int i = 0; i < stations.size(); i++) {
+			CountFeature st = stations.get(i);
+			switch (st.direction) {
+				case "R" -> handleMatch(st.feature, forward.get(i), null);
+				case "G" -> handleMatch(st.feature, null, backward.get(i));
+				case "B" -> handleMatch(st.feature, forward.get(i), backward.get(i));
+				default -> throw new IllegalStateException("Unknown direction " + st.direction);
 			}
 		}
 
@@ -171,6 +191,28 @@ public class CreateCountsFromGeoPortalBerlin implements MATSimAppCommand {
 		return 0;
 	}
 
+	/**
+	 * Build the index once, when it is needed for the first time.
+	 */
+	private LinkMatcher getMatcher(Network network) {
+
+		if (matcher != null)
+			return matcher;
+
+		log.info("Build Index.");
+		Map<Id<Link>, Geometry> geometries;
+		try {
+			geometries = networkGeometries != null
+				? NetworkIndex.readGeometriesFromSumo(networkGeometries.toString(), IdentityTransform.create(2))
+				: new HashMap<>();
+		} catch (IOException | TransformException e) {
+			throw new IllegalStateException("Could not read network geometries", e);
+		}
+
+		matcher = new LinkMatcher(network, geometries, 20, NetworkIndex::minHausdorffDistance, BEARING_PENALTY);
+		return matcher;
+	}
+
 	private void handleMatch(SimpleFeature feature, Link toDirection, Link fromDirection) {
 
 		String name = (String) feature.getAttribute("str_name");
@@ -207,6 +249,13 @@ public class CreateCountsFromGeoPortalBerlin implements MATSimAppCommand {
 
 		csv.printRecord("link_id", "station_id", "matched_name", "road_type", "peak_volume", "link_capacity", "is_valid");
 
+		// Inverse matches of links without mapping are computed in parallel
+		Map<Id<Link>, SimpleFeature> inverse = network.getLinks().values().parallelStream()
+			.filter(link -> !mappings.containsKey(link.getId()))
+			.map(link -> Map.entry(link.getId(), Optional.ofNullable(invIndex.query(link))))
+			.filter(e -> e.getValue().isPresent())
+			.collect(Collectors.toConcurrentMap(Map.Entry::getKey, e -> e.getValue().get()));
+
 		for (Link link : network.getLinks().values()) {
 
 			String stationId = null;
@@ -221,7 +270,7 @@ public class CreateCountsFromGeoPortalBerlin implements MATSimAppCommand {
 				if (m.fromDirection != null && m.toDirection != null)
 					volume /= 1.8;
 			} else {
-				SimpleFeature ft = invIndex.query(link);
+				SimpleFeature ft = inverse.get(link.getId());
 				if (ft != null) {
 					// actually nothing is mapped
 					log.info("Inverse mapped {}", ft);
@@ -259,32 +308,24 @@ public class CreateCountsFromGeoPortalBerlin implements MATSimAppCommand {
 		return filter;
 	}
 
-	private boolean filterDirection(NetworkIndex.LinkGeometry link, MultiLineString other) {
-		Coordinate[] coordinates = other.getCoordinates();
-		Coordinate from = coordinates[0];
-		Coordinate to = coordinates[coordinates.length - 1];
-
-		GeometryFactory f = JTSFactoryFinder.getGeometryFactory();
-
-		double angle = NetworkIndex.angle((LineString) link.geometry(), f.createLineString(new Coordinate[]{from, to}));
-
-		return Math.abs(angle) < (Math.PI / 2) * 0.9;
+	/**
+	 * Whether the link points in roughly the same direction as the station.
+	 */
+	private static boolean filterDirection(LinkMatcher.Candidate link, double bearing) {
+		return LinkMatcher.angle(link.bearing(), bearing) < (Math.PI / 2) * 0.9;
 	}
 
-	private boolean filterOppositeDirection(NetworkIndex.LinkGeometry link, MultiLineString other) {
-		Coordinate[] coordinates = other.getCoordinates();
-		Coordinate from = coordinates[0];
-		Coordinate to = coordinates[coordinates.length - 1];
-
-		GeometryFactory f = JTSFactoryFinder.getGeometryFactory();
-
-		// Same as above, but to and from are reversed
-		double angle = NetworkIndex.angle((LineString) link.geometry(), f.createLineString(new Coordinate[]{to, from}));
-
-		return Math.abs(angle) < (Math.PI / 2) * 0.9;
+	private record Mapping(String stationId, String stationName, Id<Link> toDirection, Id<Link> fromDirection, int avgCar, int avgHGV) {
 	}
 
-	private record Mapping(String stationId, String stationName, Id<Link> toDirection, Id<Link> fromDirection, int avgCar, int avgHGV) {
+	/**
+	 * Feature with transformed geometry and bearing from its first to its last coordinate.
+	 */
+	private record CountFeature(SimpleFeature feature, MultiLineString geometry, String direction, double bearing) {
+
+		String id() {
+			return (String) feature.getAttribute("link_id");
+		}
 	}
 
 	/**
@@ -315,10 +356,17 @@ public class CreateCountsFromGeoPortalBerlin implements MATSimAppCommand {
 			LineString ls = f.createLineString(coord);
 
 			List<SimpleFeature> result = index.query(ls.buffer(THRESHOLD).getBoundary().getEnvelopeInternal());
-			Comparator<SimpleFeature> cmp = Comparator.comparingDouble(value -> NetworkIndex.minHausdorffDistance(ls, (Geometry) value.getDefaultGeometry()));
+
+			// Distances are computed only once per feature
+			Map<SimpleFeature, Double> dist = new IdentityHashMap<>(result.size());
+			for (SimpleFeature ft : result) {
+				dist.put(ft, NetworkIndex.minHausdorffDistance(ls, (Geometry) ft.getDefaultGeometry()));
+			}
+
+			Comparator<SimpleFeature> cmp = Comparator.comparingDouble(dist::get);
 			Optional<SimpleFeature> first = result.stream()
 				.sorted(cmp.reversed())
-				.filter(feature -> NetworkIndex.minHausdorffDistance(ls, (Geometry) feature.getDefaultGeometry()) < THRESHOLD)
+				.filter(feature -> dist.get(feature) < THRESHOLD)
 				.findFirst();
 
 			return first.orElse(null);
@@ -1,5 +1,8 @@
 package org.matsim.prepare.counts;
 
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.logging.log4j.LogManager;
@@ -12,6 +15,7 @@ import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
@@ -27,28 +31,23 @@ import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.counts.Count;
 import org.matsim.counts.Counts;
 import org.matsim.counts.CountsWriter;
+import org.matsim.prepare.ParallelOptions;
 import org.opengis.referencing.operation.TransformException;
 import picocli.CommandLine;
-import tech.tablesaw.api.DateColumn;
-import tech.tablesaw.api.DoubleColumn;
-import tech.tablesaw.api.StringColumn;
-import tech.tablesaw.api.Table;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
 import java.util.*;
-import java.util.function.Predicate;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 
-import static tech.tablesaw.aggregate.AggregateFunctions.mean;
-
 @CommandLine.Command(name = "counts-detailed", description = "Own aggregation of VIZ data for MATSim Counts")
 public class CreateCountsFromMonthlyVizData implements MATSimAppCommand {
 
@@ -82,6 +81,21 @@ public class CreateCountsFromMonthlyVizData implements MATSimAppCommand {
 	@CommandLine.Mixin
 	CountsOption counts = new CountsOption();
 
+	@CommandLine.Mixin
+	private final ParallelOptions parallel = new ParallelOptions();
+
+	@CommandLine.Mixin
+	private final StationMapping mapping = new StationMapping();
+
+	/**
+	 * Indices of aggregated values.
+	 */
+	private static final int CAR_VOLUME = 0;
+	private static final int FREIGHT_VOLUME = 1;
+	private static final int CAR_SPEED = 2;
+	private static final int FREIGHT_SPEED = 3;
+	private static final int VALUES = 4;
+
 	private final Map<String, Station> stations = new HashMap<>();
 	private final Logger logger = LogManager.getLogger(CreateCountsFromMonthlyVizData.class);
 
@@ -116,6 +130,9 @@ public class CreateCountsFromMonthlyVizData implements MATSimAppCommand {
 				countPaths.add(path);
 		}
 
+		// Files are merged in a fixed order
+		Collections.sort(countPaths);
+
 		if (countPaths.size() < 12)
 			logger.warn("Expected 12 files, but only {} files containing count data were provided.", countPaths.size());
 		if (stationPath == null) {
@@ -124,10 +141,18 @@ public class CreateCountsFromMonthlyVizData implements MATSimAppCommand {
 		}
 
 		extractStations(stationPath, stations, counts);
-		matchWithNetwork(networkPath, geometries, stations, counts);
+		matchWithNetwork(networkPath, geometries, stationPath, stations, counts);
+
+		// Stations are referenced by their index during aggregation
+		List<String> ids = new ArrayList<>(stations.keySet());
+		Object2IntMap<String> index = new Object2IntOpenHashMap<>();
+		index.defaultReturnValue(-1);
+		for (int i = 0; i < ids.size(); i++) {
+			index.put(ids.get(i), i);
+		}
 
-		List<CSVRecord> records = readCountData(countPaths);
-		aggregateAndAssignCountData(records, stations, car, freight, outputString);
+		HourlyCounts data = readCountData(countPaths, index);
+		assignCountData(data, ids, car, freight, outputString);
 
 		new CountsWriter(car).write(outputString + scenario + ".counts_car.xml");
 		new CountsWriter(freight).write(outputString + scenario + ".counts_freight.xml");
@@ -159,90 +184,87 @@ public class CreateCountsFromMonthlyVizData implements MATSimAppCommand {
 		return factory.createLineString(coordinates);
 	}
 
-	private void matchWithNetwork(Path networkPath, Path geometries, Map<String, Station> stations, CountsOption countsOption) throws TransformException, IOException {
+	private void matchWithNetwork(Path networkPath, Path geometries, Path stationPath, Map<String, Station> stations, CountsOption countsOption) throws IOException {
 
 		Network network = NetworkUtils.readNetwork(networkPath.toString());
 		CoordinateTransformation transformation = crs.getTransformation();
 
-		Map<Id<Link>, Geometry> networkGeometries = NetworkIndex.readGeometriesFromSumo(geometries.toString(), IdentityTransform.create(2));
-		NetworkIndex<Station> index = new NetworkIndex<>(network, networkGeometries, 50, toMatch -> {
-			Coord coord = toMatch.coord();
-			Coord transform = transformation.transform(coord);
-			return MGC.coord2Point(transform);
-		});
-		//Add link direction filter
-		index.addLinkFilter((link, station) -> {
-			String direction = station.direction();
-
-			Coord from = link.link().getFromNode().getCoord();
-			Coord to = link.link().getToNode().getCoord();
-
-			String linkDir = "";
-			if (to.getY() > from.getY()) {
-				linkDir += "nord";
-			} else
-				linkDir += "süd";
-
-			if (to.getX() > from.getX()) {
-				linkDir += "ost";
-			} else
-				linkDir += "west";
-
-			Pattern pattern = Pattern.compile(direction, Pattern.CASE_INSENSITIVE);
-			return pattern.matcher(linkDir).find();
-		});
-		index.addLinkFilter(((link, station) -> !link.link().getId().toString().startsWith("pt_")));
+		mapping.init(StationMapping.hash(networkPath.toString(), geometries.toString()), StationMapping.hash(stationPath.toString()));
 
-		if (roadNames) {
-			index.addLinkFilter((link, station) -> {
-				String name = station.name().toLowerCase();
-
-				if (name.endsWith("straße") || name.endsWith("str"))
-					name.replace("straße", "").replace("str", "");
-
-				if (name.equals("straße des 17. juni"))
-					return true;
-
-				Object linkRoadName = link.link().getAttributes().getAttribute("name");
-
-				if (linkRoadName == null)
-					return true;
-
-				return Pattern.compile(name, Pattern.CASE_INSENSITIVE).matcher((String) linkRoadName).find();
-			});
-		}
+		List<Station> list = new ArrayList<>(stations.values());
+		Map<Station, Point> points = new IdentityHashMap<>();
+		list.forEach(s -> points.put(s, MGC.coord2Point(transformation.transform(s.coord()))));
 
 		logger.info("Start matching stations to network.");
-		int counter = 0;
-		for (var it = stations.entrySet().iterator(); it.hasNext();) {
-			Map.Entry<String, Station> next = it.next();
 
-			//Check for manual matching!
-			Id<Link> manuallyMatched = countsOption.isManuallyMatched(next.getKey());
-			if (manuallyMatched != null) {
+		List<Link> matched = mapping.match(network, () -> createMatcher(network, geometries), list, Station::id,
+			s -> StationMapping.hashOf(s.coord(), s.direction(), s.name(), roadNames),
+			points::get, s -> Double.NaN, this::filterLink, station -> {
+				//Check for manual matching!
+				Id<Link> manuallyMatched = countsOption.isManuallyMatched(station.id());
+				if (manuallyMatched == null)
+					return null;
 				if (!network.getLinks().containsKey(manuallyMatched))
 					throw new RuntimeException("Link " + manuallyMatched.toString() + " is not in the network!");
-				Link link = network.getLinks().get(manuallyMatched);
-				next.getValue().linkAtomicReference().set(link);
-				index.remove(link);
-				continue;
-			}
+				return network.getLinks().get(manuallyMatched);
+			}, true);
 
-			Link query = index.query(next.getValue());
+		int counter = 0;
+		for (int i = 0; i < list.size(); i++) {
+			Station station = list.get(i);
+			Link link = matched.get(i);
 
-			if (query == null) {
+			if (link == null) {
 				counter++;
-				it.remove();
+				stations.remove(station.id());
 				continue;
 			}
 
-			next.getValue().linkAtomicReference().set(query);
-			index.remove(query);
+			station.linkAtomicReference().set(link);
 		}
 
+		mapping.save();
+
 		logger.info("Could not match {} stations", counter);
 	}
 
+	private LinkMatcher createMatcher(Network network, Path geometries) {
+		try {
+			Map<Id<Link>, Geometry> networkGeometries = NetworkIndex.readGeometriesFromSumo(geometries.toString(), IdentityTransform.create(2));
+			return new LinkMatcher(network, networkGeometries, 50);
+		} catch (IOException | TransformException e) {
+			throw new IllegalStateException("Could not read network geometries", e);
+		}
+	}
+
+	/**
+	 * Link direction needs to match the station direction, optionally also the road name.
+	 */
+	private boolean filterLink(LinkMatcher.Candidate link, Station station) {
+
+		if (link.link().getId().toString().startsWith("pt_"))
+			return false;
+
+		if (!LinkMatcher.pattern(station.direction()).matcher(link.compass()).find())
+			return false;
+
+		if (roadNames) {
+			String name = station.name().toLowerCase();
+
+			if (name.equals("straße des 17. juni"))
+				return true;
+
+			Object linkRoadName = link.link().getAttributes().getAttribute("name");
+
+			if (linkRoadName == null)
+				return true;
+
+			return LinkMatcher.pattern(name).matcher((String) linkRoadName).find();
+		}
+
+		return true;
+	}
+
 	private void extractStations(Path path, Map<String, Station> stations, CountsOption countsOption) {
 
 		XSSFSheet sheet;
@@ -273,72 +295,95 @@ public class CreateCountsFromMonthlyVizData implements MATSimAppCommand {
 		}
 	}
 
-	private List<CSVRecord> readCountData(List<Path> paths) {
-
-		//Read all files and build one record collection
-		logger.info("Start parsing count data.");
-		List<CSVRecord> records = new ArrayList<>();
-		for (Path path : paths) {
-			try (GZIPInputStream gis = new GZIPInputStream(
-					new FileInputStream(path.toFile()))
-			) {
-				Path decompressed = Path.of(path.toString().replace(".gz", ""));
-				if (!Files.exists(decompressed))
-					Files.copy(gis, decompressed);
-
-				List<CSVRecord> month = csv.createParser(decompressed).getRecords();
-
-				records.addAll(month);
-			} catch (IOException e) {
-				logger.warn("Error processing file {}: ", path.toString());
-				throw new RuntimeException(e.getMessage());
-			}
-		}
+	/**
+	 * Read all files in parallel. Each file is aggregated separately, partial results are merged in order of the files.
+	 */
+	private HourlyCounts readCountData(List<Path> paths, Object2IntMap<String> index) {
+
+		logger.info("Start parsing count data of {} files.", paths.size());
 
-		return records;
+		List<HourlyCounts> partial = parallel.map(paths, path -> readFile(path, index));
+
+		HourlyCounts data = new HourlyCounts(index.size(), VALUES);
+		partial.forEach(data::merge);
+
+		return data;
 	}
 
-	private void aggregateAndAssignCountData(List<CSVRecord> records, Map<String, Station> stations, Counts<Link> carCounts, Counts<Link> freightCounts, String outputString) {
-
-		//Create table from records first
-		Table table;
-		{
-			StringColumn id = StringColumn.create(ColumnNames.id);
-			DateColumn date = DateColumn.create(ColumnNames.date);
-			StringColumn hour = StringColumn.create(ColumnNames.hour);
-			DoubleColumn car = DoubleColumn.create(ColumnNames.carVolume);
-			DoubleColumn freight = DoubleColumn.create(ColumnNames.freightVolume);
-			DoubleColumn carSpeed = DoubleColumn.create(ColumnNames.carAvgSpeed);
-			DoubleColumn freightSpeed = DoubleColumn.create(ColumnNames.freightAvgSpeed);
-
-			for (CSVRecord row : records) {
-				id.append(row.get(0));
-				LocalDate formatedDate = LocalDate.parse(row.get(1), DateTimeFormatter.ofLocalizedDate(FormatStyle.MEDIUM).withLocale(Locale.GERMAN));
-				date.append(formatedDate);
-				hour.append(row.get(2));
-				car.append(Double.parseDouble(row.get(6)));
-				carSpeed.append(Double.parseDouble(row.get(7)));
-				freight.append(Double.parseDouble(row.get(8)));
-				freightSpeed.append(Double.parseDouble(row.get(9)));
+	/**
+	 * Stream one file and aggregate the rows of matched stations on working days.
+	 */
+	private HourlyCounts readFile(Path path, Object2IntMap<String> index) {
+
+		long start = System.nanoTime();
+		long rows = 0;
+		long used = 0;
+		long invalid = 0;
+
+		HourlyCounts data = new HourlyCounts(index.size(), VALUES);
+
+		// Day of week for each distinct date string
+		Object2IntMap<String> days = new Object2IntOpenHashMap<>();
+		days.defaultReturnValue(-1);
+
+		DateTimeFormatter format = DateTimeFormatter.ofLocalizedDate(FormatStyle.MEDIUM).withLocale(Locale.GERMAN);
+
+		// Files are decompressed while reading
+		try (Reader reader = new InputStreamReader(new GZIPInputStream(Files.newInputStream(path), 1 << 16), StandardCharsets.UTF_8);
+			 CSVParser parser = csv.getFormat().parse(reader)) {
+
+			for (CSVRecord row : parser) {
+
+				rows++;
+
+				int station = index.getInt(row.get(0));
+				if (station == -1)
+					continue;
+
+				String date = row.get(1);
+				int day = days.getInt(date);
+				if (day == -1) {
+					day = LocalDate.parse(date, format).getDayOfWeek().getValue();
+					days.put(date, day);
+				}
+
+				// Only tuesday to thursday are used
+				if (day <= 1 || day >= 5)
+					continue;
+
+				int hour;
+				try {
+					hour = Integer.parseInt(row.get(2));
+				} catch (NumberFormatException e) {
+					hour = -1;
+				}
+
+				if (hour < 0 || hour >= HourlyCounts.HOURS) {
+					invalid++;
+					continue;
+				}
+
+				data.add(station, hour,
+					Double.parseDouble(row.get(6)), Double.parseDouble(row.get(8)),
+					Double.parseDouble(row.get(7)), Double.parseDouble(row.get(9)));
+
+				used++;
 			}
 
-			table = Table.create(id, date, hour, car, freight, carSpeed, freightSpeed);
+		} catch (IOException e) {
+			logger.warn("Error processing file {}: ", path.toString());
+			throw new RuntimeException(e.getMessage());
 		}
 
-		Predicate<LocalDate> dayFilter = localDate -> {
-			int day = localDate.getDayOfWeek().getValue();
-			return day > 1 && day < 5;
-		};
+		if (invalid > 0)
+			logger.warn("Skipped {} rows with invalid hour in {}", invalid, path.getFileName());
 
-		//filter and aggregation
-		logger.info("Start Aggregation");
-		Table summarized = table.where(t -> t.dateColumn(ColumnNames.date).eval(dayFilter))
-				.summarize(ColumnNames.carVolume, ColumnNames.freightVolume, ColumnNames.carAvgSpeed, ColumnNames.freightAvgSpeed, mean)
-				.by(ColumnNames.id, ColumnNames.hour);
+		logger.info("Read {} rows ({} used) from {} in {} ms", rows, used, path.getFileName(), (System.nanoTime() - start) / 1_000_000);
 
-		//Column names were edited by summarize function
-		for (String name : table.columnNames())
-			summarized.columnNames().stream().filter(s -> s.contains(name)).findFirst().ifPresent(s -> summarized.column(s).setName(name));
+		return data;
+	}
+
+	private void assignCountData(HourlyCounts data, List<String> ids, Counts<Link> carCounts, Counts<Link> freightCounts, String outputString) {
 
 		//Assign aggregted hourly traffic volumes to count objects AND write avg speed per link and hour to csv file
 		try (CSVPrinter printer = csv.createPrinter(Path.of(outputString + scenario + ".avg_speed.csv"))) {
@@ -349,13 +394,11 @@ public class CreateCountsFromMonthlyVizData implements MATSimAppCommand {
 			printer.println();
 
 			int counter = 0;
-			for (Map.Entry<String, Station> entry : stations.entrySet()) {
-				String key = entry.getKey();
-				Station station = entry.getValue();
+			for (int i = 0; i < ids.size(); i++) {
+				String key = ids.get(i);
+				Station station = stations.get(key);
 
-				Table idFiltered = summarized.copy().where(t -> t.stringColumn(ColumnNames.id).isEqualTo(key));
-
-				if (idFiltered.rowCount() != 24) {
+				if (!data.isComplete(i)) {
 					logger.warn("Station {} - {} does not contain hour values for the whole day!", key, station.name());
 					counter++;
 					continue;
@@ -364,22 +407,17 @@ public class CreateCountsFromMonthlyVizData implements MATSimAppCommand {
 				Count<Link> carCount = carCounts.createAndAddCount(station.linkAtomicReference().get().getId(), station.getStationId());
 				Count<Link> freightCount = freightCounts.createAndAddCount(station.linkAtomicReference().get().getId(), station.getStationId());
 
-				for (tech.tablesaw.api.Row row : idFiltered) {
-					double car = row.getDouble(ColumnNames.carVolume);
+				for (int h = 0; h < HourlyCounts.HOURS; h++) {
 					//in VIZ data hours starts at 0, in MATSim count data starts at 1
-					int hour = Integer.parseInt(row.getString(ColumnNames.hour)) + 1;
-					double freight = row.getDouble(ColumnNames.freightVolume);
-					carCount.createVolume(hour, Math.round(car));
-					freightCount.createVolume(hour, Math.round(freight));
+					int hour = h + 1;
+					carCount.createVolume(hour, Math.round(data.mean(i, h, CAR_VOLUME)));
+					freightCount.createVolume(hour, Math.round(data.mean(i, h, FREIGHT_VOLUME)));
 
 					//print to file
-					double carSpeed = row.getDouble(ColumnNames.carAvgSpeed);
-					double freightSpeed = row.getDouble(ColumnNames.freightAvgSpeed);
-
 					printer.print(station.linkAtomicReference().get().getId().toString());
 					printer.print(hour);
-					printer.print(Math.round(carSpeed));
-					printer.print(Math.round(freightSpeed));
+					printer.print(Math.round(data.mean(i, h, CAR_SPEED)));
+					printer.print(Math.round(data.mean(i, h, FREIGHT_SPEED)));
 					printer.println();
 				}
 			}
@@ -391,11 +429,8 @@ public class CreateCountsFromMonthlyVizData implements MATSimAppCommand {
 
 	private static class ColumnNames {
 		static String id = "id";
-		static String date = "date";
 		static String hour = "hour";
-		static String carVolume = "car_volume";
 		static String carAvgSpeed = "car_avg_speed";
-		static String freightVolume = "freight_volume";
 		static String freightAvgSpeed = "freight_avg_speed";
 	}
 
@@ -8,6 +8,8 @@ import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.geotools.referencing.operation.transform.IdentityTransform;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
@@ -31,7 +33,8 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 @CommandLine.Command(
 		name = "counts-from-vmz",
@@ -62,6 +65,9 @@ public class CreateCountsFromVMZ implements MATSimAppCommand {
 	@CommandLine.Mixin
 	private final CountsOption counts = new CountsOption();
 
+	@CommandLine.Mixin
+	private final StationMapping mapping = new StationMapping();
+
 	private final Map<Integer, BerlinCount> stations = new HashMap<>();
 	private final List<BerlinCount> unmatched = new ArrayList<>();
 
@@ -97,72 +103,53 @@ public class CreateCountsFromVMZ implements MATSimAppCommand {
 
 		CoordinateTransformation transformation = crs.getTransformation();
 
-		NetworkIndex.GeometryGetter<BerlinCount> getter = toMatch -> {
-			Coord coord = toMatch.coord;
-			Coord transform = transformation.transform(coord);
-			return MGC.coord2Point(transform);
-		};
-
-		NetworkIndex<BerlinCount> index = networkGeometries != null ?
-				new NetworkIndex<>(net, NetworkIndex.readGeometriesFromSumo(networkGeometries.toString(), IdentityTransform.create(2)), 100, getter):
-				new NetworkIndex<>(net, 100, getter);
-
-		index.addLinkFilter((link, berlinCounts) -> {
-			String orientation = berlinCounts.orientation;
+		stations.keySet().removeIf(id -> counts.isIgnored(String.valueOf(id)));
 
-			Coord from = link.link().getFromNode().getCoord();
-			Coord to = link.link().getToNode().getCoord();
-
-			String linkDir = "";
-			if (to.getY() > from.getY()) {
-				linkDir += "nord";
-			} else
-				linkDir += "süd";
-
-			if (to.getX() > from.getX()) {
-				linkDir += "ost";
-			} else
-				linkDir += "west";
+		mapping.init(StationMapping.hash(network.toString(), networkGeometries != null ? networkGeometries.toString() : null), StationMapping.hash(excel.toString()));
 
-			Pattern pattern = Pattern.compile(orientation, Pattern.CASE_INSENSITIVE);
-			return pattern.matcher(linkDir).find();
-		});
+		List<Map.Entry<Integer, BerlinCount>> entries = new ArrayList<>(stations.entrySet());
+		List<Point> points = entries.stream().map(e -> MGC.coord2Point(transformation.transform(e.getValue().coord))).toList();
 
 		Map<Id<Link>, ? extends Link> links = net.getLinks();
 
-		for (var it = stations.entrySet().iterator(); it.hasNext();) {
-
-			Map.Entry<Integer, BerlinCount> next = it.next();
+		// Link direction needs to match the orientation of the station
+		List<Link> matched = mapping.match(net, () -> createMatcher(net),
+				IntStream.range(0, entries.size()).boxed().toList(),
+				i -> String.valueOf(entries.get(i).getKey()),
+				i -> StationMapping.hashOf(entries.get(i).getValue().coord, entries.get(i).getValue().orientation),
+				points::get,
+				// Stations only have a compass direction, which is used as filter
+				i -> Double.NaN,
+				(link, i) -> LinkMatcher.pattern(entries.get(i).getValue().orientation).matcher(link.compass()).find(),
+				i -> {
+					Id<Link> manual = counts.isManuallyMatched(String.valueOf(entries.get(i).getKey()));
+					return manual != null ? links.get(manual) : null;
+				},
+				true
+		);
+
+		for (int i = 0; i < entries.size(); i++) {
+
+			Map.Entry<Integer, BerlinCount> next = entries.get(i);
 			BerlinCount station = next.getValue();
-
-			if (counts.isIgnored(String.valueOf(next.getKey()))) {
-				it.remove();
-				continue;
-			}
-
-			Id<Link> manuallyMatched = counts.isManuallyMatched(String.valueOf(next.getKey()));
-			if (manuallyMatched != null && links.containsKey(manuallyMatched)) {
-				station.linkId = manuallyMatched;
-				index.remove(links.get(manuallyMatched));
-			}
-
-			Link link = index.query(station);
+			Link link = matched.get(i);
 
 			if (link == null) {
-				it.remove();
+				stations.remove(next.getKey());
 				unmatched.add(station);
-			} else {
+			} else
 				station.linkId = link.getId();
-				index.remove(link);
-			}
 		}
 
+		mapping.save();
+
 		log.info("Could not match {} stations.", unmatched.size());
 	}
 
 	private void readExcelFile(String excel) {
 		XSSFWorkbook wb;
 
+		long start = System.nanoTime();
 		try {
 			wb = new XSSFWorkbook(excel);
 		} catch (IOException e) {
@@ -170,11 +157,39 @@ public class CreateCountsFromVMZ implements MATSimAppCommand {
 			throw new RuntimeException("Error reading excel file");
 		}
 
-		extractStations(wb.getSheet("Stammdaten"));
-		extractCarVolumes(wb.getSheet("DTVW_KFZ"));
-		extractFreightVolumes(wb.getSheet("DTVW_LKW"));
-		extractHourlyDistribution(wb.getSheet("typ.Ganglinien_Mo-Do"));
-		extractFreightShare(wb.getSheet("LKW-Anteile"));
+		log.info("Opened {} in {} ms", excel, (System.nanoTime() - start) / 1_000_000);
+
+		// Sheets of one workbook share the same xml document, which can not be read concurrently
+		extract(wb, "Stammdaten", this::extractStations);
+		extract(wb, "DTVW_KFZ", this::extractCarVolumes);
+		extract(wb, "DTVW_LKW", this::extractFreightVolumes);
+		extract(wb, "typ.Ganglinien_Mo-Do", this::extractHourlyDistribution);
+		extract(wb, "LKW-Anteile", this::extractFreightShare);
+	}
+
+	/**
+	 * Process one sheet and report number of rows and time.
+	 */
+	private void extract(XSSFWorkbook wb, String name, Consumer<Sheet> extractor) {
+
+		long start = System.nanoTime();
+		Sheet sheet = wb.getSheet(name);
+		extractor.accept(sheet);
+
+		log.info("Read {} rows from sheet {} in {} ms", sheet.getLastRowNum(), name, (System.nanoTime() - start) / 1_000_000);
+	}
+
+	private LinkMatcher createMatcher(Network net) {
+
+		Map<Id<Link>, Geometry> geometries;
+		try {
+			geometries = networkGeometries != null ?
+					NetworkIndex.readGeometriesFromSumo(networkGeometries.toString(), IdentityTransform.create(2)) : Map.of();
+		} catch (IOException | TransformException e) {
+			throw new IllegalStateException("Could not read network geometries", e);
+		}
+
+		return new LinkMatcher(net, geometries, 100);
 	}
 
 	private void createCountsFile(String outputFile) {
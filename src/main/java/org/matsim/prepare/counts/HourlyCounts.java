@@ -0,0 +1,112 @@
+package org.matsim.prepare.counts;
+
+/**
+ * Online mean and variance of several values per station and hour of the day, stored in primitive arrays.
+ * Values are updated with Welford's algorithm, so no individual observations need to be kept.
+ */
+final class HourlyCounts {
+
+	static final int HOURS = 24;
+
+	private final int stations;
+	private final int values;
+
+	private final long[] n;
+	private final double[] mean;
+	private final double[] m2;
+
+	/**
+	 * Create accumulators for a number of stations and values per observation.
+	 */
+	HourlyCounts(int stations, int values) {
+		this.stations = stations;
+		this.values = values;
+		this.n = new long[stations * HOURS];
+		this.mean = new double[stations * HOURS * values];
+		this.m2 = new double[stations * HOURS * values];
+	}
+
+	/**
+	 * Add one observation for a station and hour.
+	 *
+	 * @throws IllegalArgumentException if the hour is not within the day
+	 */
+	void add(int station, int hour, double... obs) {
+
+		// Hours outside the day would be added to another station
+		if (hour < 0 || hour >= HOURS)
+			throw new IllegalArgumentException("Hour must be between 0 and " + (HOURS - 1) + ", but was " + hour);
+
+		int idx = station * HOURS + hour;
+		long count = ++n[idx];
+
+		for (int v = 0; v < values; v++) {
+			int i = idx * values + v;
+			double delta = obs[v] - mean[i];
+			mean[i] += delta / count;
+			m2[i] += delta * (obs[v] - mean[i]);
+		}
+	}
+
+	/**
+	 * Merge the observations of another accumulator into this one.
+	 */
+	void merge(HourlyCounts other) {
+
+		if (other.stations != stations || other.values != values)
+			throw new IllegalArgumentException("Accumulators have different dimensions");
+
+		for (int idx = 0; idx < n.length; idx++) {
+
+			long nb = other.n[idx];
+			if (nb == 0)
+				continue;
+
+			long na = n[idx];
+			long total = na + nb;
+
+			for (int v = 0; v < values; v++) {
+				int i = idx * values + v;
+				double delta = other.mean[i] - mean[i];
+				mean[i] += delta * nb / total;
+				m2[i] += other.m2[i] + delta * delta * na * nb / total;
+			}
+
+			n[idx] = total;
+		}
+	}
+
+	/**
+	 * Number of observations for station and hour.
+	 */
+	long count(int station, int hour) {
+		return n[station * HOURS + hour];
+	}
+
+	/**
+	 * Whether all hours of the day have at least one observation.
+	 */
+	boolean isComplete(int station) {
+		for (int h = 0; h < HOURS; h++) {
+			if (count(station, h) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Mean of a value for station and hour.
+	 */
+	double mean(int station, int hour, int value) {
+		return mean[(station * HOURS + hour) * values + value];
+	}
+
+	/**
+	 * Sample variance of a value for station and hour, or NaN with less than two observations.
+	 */
+	double variance(int station, int hour, int value) {
+		long count = count(station, hour);
+		return count < 2 ? Double.NaN : m2[(station * HOURS + hour) * values + value] / (count - 1);
+	}
+
+}
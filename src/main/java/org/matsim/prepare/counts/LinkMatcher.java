@@ -0,0 +1,234 @@
+package org.matsim.prepare.counts;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.utils.geometry.geotools.MGC;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleBiFunction;
+import java.util.function.ToDoubleFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Matches count stations to network links. Link geometries, bearings and compass directions are computed once when the index is built.
+ * Candidates are scored by their distance plus a penalty for the difference between link and station bearing, if the station has a bearing.
+ * Stations with only a compass direction use it as filter instead.
+ * Candidates of all stations are ranked in parallel, links are then assigned one after another in the order of the stations,
+ * so that results are the same as matching each station sequentially.
+ */
+final class LinkMatcher {
+
+	/**
+	 * Compiled patterns, which are shared by all stations.
+	 */
+	private static final Map<String, Pattern> PATTERNS = new ConcurrentHashMap<>();
+
+	private final STRtree index = new STRtree();
+	private final Candidate[] candidates;
+	private final double range;
+	private final ToDoubleBiFunction<LineString, Geometry> distance;
+
+	/**
+	 * Penalty added to the distance per radian difference between link and station bearing.
+	 */
+	private final double bearingPenalty;
+
+	/**
+	 * Links that are already assigned and not available anymore.
+	 */
+	private final BitSet removed;
+
+	private final Object2IntMap<Id<Link>> ids = new Object2IntOpenHashMap<>();
+
+	/**
+	 * Build the index.
+	 *
+	 * @param geometries optional detailed link geometries, links without geometry are represented by a straight line
+	 * @param range      search radius around the station geometry
+	 * @param distance       distance between link geometry and station geometry
+	 * @param bearingPenalty penalty in distance units per radian difference of the bearings
+	 */
+	LinkMatcher(Network network, Map<Id<Link>, Geometry> geometries, double range, ToDoubleBiFunction<LineString, Geometry> distance, double bearingPenalty) {
+
+		this.range = range;
+		this.distance = distance;
+		this.bearingPenalty = bearingPenalty;
+
+		GeometryFactory f = new GeometryFactory();
+
+		// Sorted by id, so that the index does not depend on the iteration order of the network
+		List<Link> links = new ArrayList<>(network.getLinks().values());
+		links.sort(Comparator.comparing(Link::getId));
+
+		candidates = new Candidate[links.size()];
+		removed = new BitSet(links.size());
+
+		for (int i = 0; i < candidates.length; i++) {
+			Link link = links.get(i);
+
+			Coordinate from = MGC.coord2Coordinate(link.getFromNode().getCoord());
+			Coordinate to = MGC.coord2Coordinate(link.getToNode().getCoord());
+
+			LineString geom = geometries.get(link.getId()) instanceof LineString ls ? ls : f.createLineString(new Coordinate[]{from, to});
+
+			ids.put(link.getId(), i);
+			candidates[i] = new Candidate(i, link, geom, bearing(geom.getCoordinateN(0), geom.getCoordinateN(geom.getNumPoints() - 1)), compass(from, to));
+			index.insert(geom.getEnvelopeInternal(), candidates[i]);
+		}
+
+		index.build();
+	}
+
+	/**
+	 * Index using the euclidean distance between link and station, without bearing penalty.
+	 */
+	LinkMatcher(Network network, Map<Id<Link>, Geometry> geometries, double range) {
+		this(network, geometries, range, Geometry::distance, 0);
+	}
+
+	/**
+	 * Return a compiled case-insensitive pattern. Patterns are compiled only once.
+	 */
+	static Pattern pattern(String regex) {
+		return PATTERNS.computeIfAbsent(regex, r -> Pattern.compile(r, Pattern.CASE_INSENSITIVE));
+	}
+
+	/**
+	 * Bearing from one coordinate to another in radians.
+	 */
+	static double bearing(Coordinate from, Coordinate to) {
+		return Math.atan2(to.y - from.y, to.x - from.x);
+	}
+
+	/**
+	 * Absolute difference of two bearings in [0, PI].
+	 */
+	static double angle(double a, double b) {
+		double d = Math.abs(a - b) % (2 * Math.PI);
+		return d > Math.PI ? 2 * Math.PI - d : d;
+	}
+
+	/**
+	 * German compass direction of a link, e.g. "nordost".
+	 */
+	private static String compass(Coordinate from, Coordinate to) {
+		return (to.y > from.y ? "nord" : "süd") + (to.x > from.x ? "ost" : "west");
+	}
+
+	/**
+	 * Rank the candidate links of all items in parallel. Scores are computed only once per link and item.
+	 *
+	 * @param bearing bearing of an item in radians, or NaN if it has none
+	 */
+	<T> List<Ranking> rank(List<T> items, Function<T, Geometry> geometry, ToDoubleFunction<T> bearing, BiPredicate<Candidate, T> filter) {
+		return items.parallelStream()
+			.<Ranking>map(item -> rank(geometry.apply(item), bearing.applyAsDouble(item), c -> filter.test(c, item)))
+			.toList();
+	}
+
+	private Ranking rank(Geometry geometry, double bearing, Predicate<Candidate> filter) {
+
+		Envelope env = new Envelope(geometry.getEnvelopeInternal());
+		env.expandBy(range);
+
+		List<Candidate> result = index.query(env);
+
+		List<Scored> scored = new ArrayList<>(result.size());
+		for (Candidate c : result) {
+			if (!filter.test(c))
+				continue;
+
+			double score = distance.applyAsDouble(c.geometry, geometry);
+			if (!Double.isNaN(bearing))
+				score += bearingPenalty * angle(c.bearing, bearing);
+
+			scored.add(new Scored(c, score));
+		}
+
+		// Ties are resolved by link id
+		scored.sort(Comparator.comparingDouble(Scored::score).thenComparingInt(s -> s.candidate.idx));
+
+		return new Ranking(scored.stream().mapToInt(s -> s.candidate.idx).toArray());
+	}
+
+	/**
+	 * Hash of all links within the search range of a geometry. The hash changes if any of these links is added, removed or modified.
+	 */
+	long hash(Geometry geometry) {
+
+		Envelope env = new Envelope(geometry.getEnvelopeInternal());
+		env.expandBy(range);
+
+		List<Candidate> result = index.query(env);
+		result.sort(Comparator.comparingInt(Candidate::idx));
+
+		long h = 1;
+		for (Candidate c : result) {
+			Link link = c.link;
+			h = 31 * h + link.getId().toString().hashCode();
+			h = 31 * h + link.getAllowedModes().hashCode();
+			h = 31 * h + Objects.hashCode(link.getAttributes().getAttribute("name"));
+			h = 31 * h + Objects.hashCode(link.getAttributes().getAttribute("type"));
+			for (Coordinate coord : c.geometry.getCoordinates()) {
+				h = 31 * h + Double.hashCode(coord.x);
+				h = 31 * h + Double.hashCode(coord.y);
+			}
+			h = 31 * h + c.compass.hashCode();
+		}
+
+		return h;
+	}
+
+	/**
+	 * Return the best ranked link, which is not removed yet, or null if there is none.
+	 */
+	Link select(Ranking ranking) {
+		for (int idx : ranking.links) {
+			if (!removed.get(idx))
+				return candidates[idx].link;
+		}
+		return null;
+	}
+
+	/**
+	 * Remove a link, so it is not selected again.
+	 */
+	void remove(Link link) {
+		if (ids.containsKey(link.getId()))
+			removed.set(ids.getInt(link.getId()));
+	}
+
+	/**
+	 * Link with precomputed geometry, bearing of the geometry and compass direction between its nodes.
+	 */
+	record Candidate(int idx, Link link, LineString geometry, double bearing, String compass) {
+	}
+
+	private record Scored(Candidate candidate, double score) {
+	}
+
+	/**
+	 * Indices of candidate links ordered by their score.
+	 */
+	record Ranking(int[] links) {
+	}
+
+}
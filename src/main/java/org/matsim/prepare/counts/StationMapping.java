@@ -0,0 +1,294 @@
+package org.matsim.prepare.counts;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.locationtech.jts.geom.Geometry;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import picocli.CommandLine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Persisted mapping of count stations to links. Besides the link, the file stores content hashes of the network and station inputs,
+ * a hash of each station and a hash of the links surrounding it. When running again, only stations whose attributes or surrounding links
+ * changed are matched again, see {@link #match} for stations with exclusive links.
+ */
+final class StationMapping {
+
+	private static final Logger log = LogManager.getLogger(StationMapping.class);
+
+	private static final String HEADER = "# network=%016x stations=%016x";
+
+	@CommandLine.Option(names = "--link-mapping", description = "Path to csv file storing the station to link mapping. Unchanged stations are not matched again.")
+	private Path path;
+
+	private final Map<String, Entry> previous = new HashMap<>();
+
+	/**
+	 * Keys of the previous mapping in the order they were matched.
+	 */
+	private final List<String> order = new ArrayList<>();
+
+	private final Map<String, Entry> current = new LinkedHashMap<>();
+
+	private long networkHash;
+	private long stationHash;
+
+	/**
+	 * Whether network and station inputs are the same as in the previous run.
+	 */
+	private boolean unchanged;
+
+	StationMapping() {
+	}
+
+	StationMapping(Path path) {
+		this.path = path;
+	}
+
+	/**
+	 * Load the mapping of a previous run, if there is one.
+	 *
+	 * @param networkHash hash of the network inputs, see {@link #hash(String...)}
+	 * @param stationHash hash of the station inputs
+	 */
+	void init(long networkHash, long stationHash) throws IOException {
+
+		this.networkHash = networkHash;
+		this.stationHash = stationHash;
+
+		if (path == null || !Files.exists(path))
+			return;
+
+		try (BufferedReader reader = Files.newBufferedReader(path)) {
+
+			String header = reader.readLine();
+			if (header == null)
+				return;
+
+			unchanged = header.equals(HEADER.formatted(networkHash, stationHash));
+
+			for (CSVRecord r : CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build().parse(reader)) {
+				String link = r.get("link");
+				boolean manual = r.isMapped("manual") && Boolean.parseBoolean(r.get("manual"));
+				previous.put(r.get("station"), new Entry(link.isBlank() ? null : Id.createLinkId(link),
+					Long.parseUnsignedLong(r.get("station_hash"), 16), Long.parseUnsignedLong(r.get("area_hash"), 16), manual));
+				order.add(r.get("station"));
+			}
+		}
+
+		log.info("Loaded {} station mappings from {}, inputs {}", previous.size(), path, unchanged ? "unchanged" : "changed");
+	}
+
+	/**
+	 * Content hash of files. Null entries are ignored.
+	 */
+	static long hash(String... files) throws IOException {
+
+		MessageDigest digest = digest();
+		for (String file : files) {
+			if (file == null)
+				continue;
+
+			try (InputStream in = new DigestInputStream(Files.newInputStream(Path.of(file)), digest)) {
+				in.transferTo(OutputStream.nullOutputStream());
+			}
+		}
+
+		return ByteBuffer.wrap(digest.digest()).getLong();
+	}
+
+	/**
+	 * Hash of the attributes of a station, which are relevant for matching.
+	 */
+	static long hashOf(Object... values) {
+		MessageDigest digest = digest();
+		for (Object v : values) {
+			digest.update(String.valueOf(v).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+		}
+
+		return ByteBuffer.wrap(digest.digest()).getLong();
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * Match stations to links. Previous results are used for stations whose attributes and surrounding links did not change,
+	 * all other stations are matched with the link matcher. If links are exclusive, the link of a station also depends on all stations before it.
+	 * Previous results are then only used until the first station that was added, removed, reordered or matched to a different link,
+	 * all following stations are matched again. In both cases the result is the same as matching all stations.
+	 *
+	 * @param factory   creates the link matcher, which is only needed if the inputs changed
+	 * @param key       unique key of a station
+	 * @param hash      hash of the station attributes, see {@link #hashOf(Object...)}
+	 * @param bearing   bearing of a station in radians, or NaN if it has none
+	 * @param manual    manually matched link of a station, or null. Manual matches are stored, but never reused
+	 * @param exclusive whether a link can only be matched once
+	 * @return matched link for each station, or null if there is none
+	 */
+	<T> List<Link> match(Network network, Supplier<LinkMatcher> factory, List<T> stations,
+						 Function<T, String> key, ToLongFunction<T> hash, Function<T, Geometry> geometry, ToDoubleFunction<T> bearing,
+						 BiPredicate<LinkMatcher.Candidate, T> filter, Function<T, Link> manual, boolean exclusive) {
+
+		long[] hashes = stations.stream().mapToLong(hash).toArray();
+		Link[] manuals = stations.stream().map(manual).toArray(Link[]::new);
+
+		LinkMatcher matcher = unchanged ? null : factory.get();
+
+		// Surrounding links only need to be checked if the network changed
+		long[] areas = matcher == null ? null : IntStream.range(0, stations.size()).parallel()
+			.mapToLong(i -> matcher.hash(geometry.apply(stations.get(i))))
+			.toArray();
+
+		Entry[] reuse = new Entry[stations.size()];
+		List<Integer> todo = new ArrayList<>();
+		for (int i = 0; i < stations.size(); i++) {
+			Entry e = previous.get(key.apply(stations.get(i)));
+
+			if (e != null && !e.manual && e.station == hashes[i] && (areas == null || e.area == areas[i])
+				&& (e.link == null || network.getLinks().containsKey(e.link)))
+				reuse[i] = e;
+			else if (manuals[i] == null)
+				todo.add(i);
+		}
+
+		log.info("Reusing up to {} of {} station mappings, matching {} stations", stations.size() - todo.size(), stations.size(), todo.size());
+
+		LinkMatcher m = matcher != null || todo.isEmpty() ? matcher : factory.get();
+		LinkMatcher.Ranking[] ranked = new LinkMatcher.Ranking[stations.size()];
+		if (m != null)
+			rank(m, todo, ranked, stations, geometry, bearing, filter);
+
+		Set<Id<Link>> used = new HashSet<>();
+		List<Link> result = new ArrayList<>(stations.size());
+
+		// Whether any station up to the current one differs from the previous run
+		boolean changed = false;
+
+		for (int i = 0; i < stations.size(); i++) {
+			T st = stations.get(i);
+			String k = key.apply(st);
+			Entry e = reuse[i];
+
+			Link link = manuals[i];
+			if (link == null) {
+				if (e != null && !changed && (e.link == null || !used.contains(e.link)))
+					link = e.link == null ? null : network.getLinks().get(e.link);
+				else {
+					if (m == null) {
+						m = factory.get();
+						for (Id<Link> id : used) {
+							m.remove(network.getLinks().get(id));
+						}
+					}
+
+					// All following stations need to be ranked as well, which is done at once
+					if (ranked[i] == null) {
+						List<Integer> remaining = IntStream.range(i, stations.size())
+							.filter(j -> ranked[j] == null && manuals[j] == null)
+							.boxed().toList();
+
+						rank(m, remaining, ranked, stations, geometry, bearing, filter);
+					}
+
+					link = m.select(ranked[i]);
+				}
+			}
+
+			Id<Link> id = link != null ? link.getId() : null;
+
+			if (exclusive && !changed) {
+				Entry prev = previous.get(k);
+				changed = i >= order.size() || !order.get(i).equals(k) || prev == null || !Objects.equals(prev.link, id);
+			}
+
+			long area = areas != null ? areas[i] : e != null ? e.area : m != null ? m.hash(geometry.apply(st)) : 0;
+			current.put(k, new Entry(id, hashes[i], area, manuals[i] != null));
+
+			if (exclusive && link != null) {
+				used.add(link.getId());
+				if (m != null)
+					m.remove(link);
+			}
+
+			result.add(link);
+		}
+
+		return result;
+	}
+
+	private static <T> void rank(LinkMatcher m, List<Integer> idx, LinkMatcher.Ranking[] ranked, List<T> stations, Function<T, Geometry> geometry,
+								 ToDoubleFunction<T> bearing, BiPredicate<LinkMatcher.Candidate, T> filter) {
+
+		List<LinkMatcher.Ranking> rankings = m.rank(idx, i -> geometry.apply(stations.get(i)),
+			i -> bearing.applyAsDouble(stations.get(i)), (c, i) -> filter.test(c, stations.get(i)));
+
+		for (int j = 0; j < idx.size(); j++) {
+			ranked[idx.get(j)] = rankings.get(j);
+		}
+	}
+
+	/**
+	 * Write the current mapping, if a path is configured.
+	 */
+	void save() throws IOException {
+
+		if (path == null)
+			return;
+
+		try (var writer = Files.newBufferedWriter(path)) {
+			writer.write(HEADER.formatted(networkHash, stationHash));
+			writer.newLine();
+
+			try (CSVPrinter csv = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+				csv.printRecord("station", "link", "station_hash", "area_hash", "manual");
+				for (Map.Entry<String, Entry> e : current.entrySet()) {
+					Entry v = e.getValue();
+					csv.printRecord(e.getKey(), v.link != null ? v.link.toString() : "", Long.toHexString(v.station), Long.toHexString(v.area), v.manual);
+				}
+			}
+		}
+
+		log.info("Written {} station mappings to {}", current.size(), path);
+	}
+
+	private record Entry(Id<Link> link, long station, long area, boolean manual) {
+	}
+
+}
@@ -27,6 +27,7 @@ import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
 import org.matsim.core.router.util.LeastCostPathCalculator;
 import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.utils.geometry.geotools.MGC;
+import org.matsim.prepare.LinkIndex;
 import org.matsim.prepare.RunOpenBerlinCalibration;
 import org.matsim.vehicles.Vehicle;
 import picocli.CommandLine;
@@ -191,6 +192,7 @@ public class SampleNetwork implements MATSimAppCommand {
 	private void sampleCityRoutes(Network network, LeastCostPathCalculator router, RandomizedTravelTime tt, SplittableRandom rnd) throws IOException {
 
 		List<? extends Link> links = new ArrayList<>(network.getLinks().values());
+		LinkIndex index = LinkIndex.create(network);
 
 		GeometryFactory f = new GeometryFactory();
 		WKTWriter w = new WKTWriter();
@@ -206,7 +208,7 @@ public class SampleNetwork implements MATSimAppCommand {
 
 				Coord dest = rndCoord(rnd, 6000, link);
 
-				Link to = NetworkUtils.getNearestLink(network, dest);
+				Link to = index.query(dest);
 
 				LeastCostPathCalculator.Path path = router.calcLeastCostPath(link.getFromNode(), to.getToNode(), 0, null, null);
 
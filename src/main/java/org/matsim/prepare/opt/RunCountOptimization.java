@@ -15,13 +15,13 @@ import org.matsim.api.core.v01.population.*;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.CsvOptions;
 import org.matsim.core.network.NetworkUtils;
-import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.population.routes.NetworkRoute;
 import org.matsim.counts.Count;
 import org.matsim.counts.Counts;
 import org.matsim.counts.MatsimCountsReader;
 import org.matsim.counts.Volume;
 import org.matsim.prepare.RunOpenBerlinCalibration;
+import org.matsim.prepare.population.PopulationFiles;
 import org.optaplanner.core.api.solver.Solver;
 import org.optaplanner.core.api.solver.SolverFactory;
 import picocli.CommandLine;
@@ -137,7 +137,7 @@ public class RunCountOptimization implements MATSimAppCommand {
 	 */
 	private List<PlanPerson> processPopulation(Path input, Network network, Counts<Link> linkCounts) {
 
-		Population population = PopulationUtils.readPopulation(input.toString());
+		Population population = PopulationFiles.read(input);
 		List<PlanPerson> persons = new ArrayList<>();
 
 		Set<Id<Link>> links = linkCounts.getCounts().keySet();
@@ -10,7 +10,7 @@ import org.matsim.api.core.v01.population.Plan;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.CsvOptions;
-import org.matsim.core.population.PopulationUtils;
+import org.matsim.prepare.population.PopulationFiles;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
@@ -40,7 +40,7 @@ public class SelectPlansFromIndex implements MATSimAppCommand {
 	@Override
 	public Integer call() throws Exception {
 
-		Population population = PopulationUtils.readPopulation(input.toString());
+		Population population = PopulationFiles.read(input);
 		Object2IntMap<Id<Person>> idx = new Object2IntOpenHashMap<>();
 		try (CSVParser parser = csvOpt.createParser(csv)) {
 			for (CSVRecord row : parser) {
@@ -73,7 +73,7 @@ public class SelectPlansFromIndex implements MATSimAppCommand {
 
 		toRemove.forEach(population::removePerson);
 
-		PopulationUtils.writePopulation(population, output.toString());
+		PopulationFiles.write(population, output);
 
 		return 0;
 	}
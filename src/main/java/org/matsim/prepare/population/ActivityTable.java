@@ -0,0 +1,394 @@
+package org.matsim.prepare.population;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar storage of the person and activity tables from survey data.
+ * Persons are grouped by integer encoded keys, which already contain all persons of neighbouring age groups.
+ */
+final class ActivityTable {
+
+	/**
+	 * Upper bound (exclusive) for the age in group keys.
+	 */
+	static final int MAX_AGE = 100;
+
+	/**
+	 * Upper bound (exclusive) for region types in group keys.
+	 */
+	static final int REGION_TYPES = 8;
+
+	static final int EMPLOYED_ANY = 0;
+	static final int EMPLOYED_FALSE = 1;
+	static final int EMPLOYED_TRUE = 2;
+
+	static final int GENDER_ANY = 0;
+
+	private static final Logger log = LogManager.getLogger(ActivityTable.class);
+
+	/**
+	 * Dictionary for all string columns.
+	 */
+	private final Object2IntMap<String> dictionary = new Object2IntOpenHashMap<>();
+	private final List<String> strings = new ArrayList<>();
+
+	/**
+	 * Maps group keys to person rows.
+	 */
+	private final Int2ObjectMap<int[]> groups = new Int2ObjectOpenHashMap<>();
+
+	/**
+	 * Person columns, indexed by row.
+	 */
+	private int[] idx;
+	private byte[] carAvail;
+	private byte[] bikeAvail;
+	private byte[] ptAboAvail;
+	private byte[] restrictedMobility;
+	private byte[] mobileOnDay;
+	private short[] drivingLicense;
+	private short[] employment;
+	private short[] economicStatus;
+	private byte[] householdSize;
+
+	/**
+	 * Activities of person row i are stored from actStart[i] with length actCount[i].
+	 */
+	private int[] actStart;
+	private short[] actCount;
+
+	/**
+	 * Activity columns.
+	 */
+	private short[] actType;
+	private int[] duration;
+	private double[] legDuration;
+	private double[] legDist;
+	private short[] legMode;
+
+	ActivityTable() {
+		dictionary.defaultReturnValue(-1);
+	}
+
+	/**
+	 * Encode a group key. Gender is a code from {@link #gender(String)}.
+	 */
+	static int key(int gender, int age, int regionType, int employed) {
+		return ((gender * MAX_AGE + age) * REGION_TYPES + regionType) * 3 + employed;
+	}
+
+	private static boolean isTrue(String value) {
+		return value.equals("True");
+	}
+
+	/**
+	 * Read the person table and create subgroups for sampling.
+	 */
+	void readPersons(CSVParser csv) {
+
+		IntArrayList idx = new IntArrayList();
+		ByteArrayList carAvail = new ByteArrayList();
+		ByteArrayList bikeAvail = new ByteArrayList();
+		ByteArrayList ptAboAvail = new ByteArrayList();
+		ByteArrayList restrictedMobility = new ByteArrayList();
+		ByteArrayList mobileOnDay = new ByteArrayList();
+		ShortArrayList drivingLicense = new ShortArrayList();
+		ShortArrayList employment = new ShortArrayList();
+		ShortArrayList economicStatus = new ShortArrayList();
+		ByteArrayList householdSize = new ByteArrayList();
+
+		Int2ObjectMap<IntArrayList> groups = new Int2ObjectOpenHashMap<>();
+
+		for (CSVRecord r : csv) {
+
+			int row = idx.size();
+
+			idx.add(Integer.parseInt(r.get("idx")));
+			carAvail.add((byte) (isTrue(r.get("car_avail")) ? 1 : 0));
+			bikeAvail.add((byte) (isTrue(r.get("bike_avail")) ? 1 : 0));
+			ptAboAvail.add((byte) (isTrue(r.get("pt_abo_avail")) ? 1 : 0));
+			restrictedMobility.add((byte) (isTrue(r.get("restricted_mobility")) ? 1 : 0));
+			drivingLicense.add(encode(r.get("driving_license").toLowerCase()));
+			employment.add(encode(r.get("employment")));
+			economicStatus.add(encode(r.get("economic_status")));
+			householdSize.add(Byte.parseByte(r.get("n_persons")));
+
+			String mobile = r.get("mobile_on_day").toLowerCase();
+			switch (mobile) {
+				case "true" -> mobileOnDay.add((byte) 1);
+				case "false" -> mobileOnDay.add((byte) 0);
+				default -> throw new IllegalArgumentException("Invalid mobile_on_day attribute " + mobile);
+			}
+
+			int regionType = Integer.parseInt(r.get("region_type"));
+			int age = Integer.parseInt(r.get("age"));
+
+			for (int key : createKeys(encode(r.get("gender")), age, regionType, r.get("employment"))) {
+				groups.computeIfAbsent(key, k -> new IntArrayList()).add(row);
+			}
+		}
+
+		this.idx = idx.toIntArray();
+		this.carAvail = carAvail.toByteArray();
+		this.bikeAvail = bikeAvail.toByteArray();
+		this.ptAboAvail = ptAboAvail.toByteArray();
+		this.restrictedMobility = restrictedMobility.toByteArray();
+		this.mobileOnDay = mobileOnDay.toByteArray();
+		this.drivingLicense = drivingLicense.toShortArray();
+		this.employment = employment.toShortArray();
+		this.economicStatus = economicStatus.toShortArray();
+		this.householdSize = householdSize.toByteArray();
+
+		groups.forEach((k, v) -> this.groups.put((int) k, v.toIntArray()));
+
+		log.info("Read {} persons from csv, {} groups.", this.idx.length, this.groups.size());
+	}
+
+	/**
+	 * Read the activity table. Activities of one person need to be consecutive.
+	 */
+	void readActivities(CSVParser csv) {
+
+		Int2IntMap rows = new Int2IntOpenHashMap(idx.length);
+		rows.defaultReturnValue(-1);
+		for (int i = 0; i < idx.length; i++) {
+			rows.put(idx[i], i);
+		}
+
+		actStart = new int[idx.length];
+		actCount = new short[idx.length];
+
+		ShortArrayList actType = new ShortArrayList();
+		IntArrayList duration = new IntArrayList();
+		DoubleArrayList legDuration = new DoubleArrayList();
+		DoubleArrayList legDist = new DoubleArrayList();
+		ShortArrayList legMode = new ShortArrayList();
+
+		int currentId = -1;
+		int currentRow = -1;
+		int persons = 0;
+
+		for (CSVRecord r : csv) {
+
+			int pId = Integer.parseInt(r.get("p_id"));
+
+			if (pId != currentId) {
+				currentId = pId;
+				currentRow = rows.get(pId);
+				persons++;
+
+				if (currentRow != -1)
+					actStart[currentRow] = actType.size();
+			}
+
+			// Activities of persons not in the person table are not needed
+			if (currentRow == -1)
+				continue;
+
+			actCount[currentRow]++;
+			actType.add(encode(r.get("type")));
+			duration.add(Integer.parseInt(r.get("duration")));
+			legDuration.add(Double.parseDouble(r.get("leg_duration")));
+			legDist.add(Double.parseDouble(r.get("leg_dist")));
+			legMode.add(encode(r.get("leg_mode")));
+		}
+
+		this.actType = actType.toShortArray();
+		this.duration = duration.toIntArray();
+		this.legMode = legMode.toShortArray();
+		this.legDuration = legDuration.toDoubleArray();
+		this.legDist = legDist.toDoubleArray();
+
+		log.info("Read {} activities for {} persons", this.actType.length, persons);
+	}
+
+	/**
+	 * Create all group keys a survey person belongs to.
+	 */
+	private int[] createKeys(short gender, int age, int regionType, String employment) {
+
+		// Code of the gender, 0 is used to ignore it
+		int g = gender + 1;
+
+		if (age < 6) {
+			return range(0, 5, GENDER_ANY, regionType, EMPLOYED_ANY);
+		}
+		if (age <= 10) {
+			return range(6, 10, GENDER_ANY, regionType, EMPLOYED_ANY);
+		}
+		if (age < 18) {
+			// Persons aged 18 always have an employment status, keys of that age without one are the adult fallback
+			return range(11, 17, g, regionType, EMPLOYED_ANY);
+		}
+
+		int employed = EMPLOYED_ANY;
+		if (age <= 65)
+			employed = employment.equals("unemployed") ? EMPLOYED_FALSE : EMPLOYED_TRUE;
+
+		int min = Math.max(18, age - 6);
+		int max = Math.min(65, age + 6);
+
+		// larger groups for older people
+		if (age > 65) {
+			min = Math.max(66, age - 10);
+			max = Math.min(99, age + 10);
+		}
+
+		int[] keys = range(min, max, g, regionType, employed);
+
+		// Coarser fallback keys, which are used if a person has no exact matching group
+		int[] fallback = range(min, max, GENDER_ANY, regionType, EMPLOYED_ANY);
+		if (employed != EMPLOYED_ANY)
+			fallback = concat(fallback, range(min, max, g, regionType, EMPLOYED_ANY));
+
+		return concat(keys, fallback);
+	}
+
+	private static int[] range(int min, int max, int gender, int regionType, int employed) {
+		int[] keys = new int[Math.max(0, max - min + 1)];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = key(gender, min + i, regionType, employed);
+		}
+		return keys;
+	}
+
+	private static int[] concat(int[] a, int[] b) {
+		int[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	/**
+	 * Return the person rows of a group key, or null if the group does not exist.
+	 */
+	int[] group(int key) {
+		return groups.get(key);
+	}
+
+	/**
+	 * Code of a gender, which can be used in group keys. Returns -1 if the gender is unknown.
+	 */
+	int gender(String gender) {
+		if (gender == null)
+			return GENDER_ANY;
+
+		int code = dictionary.getInt(gender);
+		return code == -1 ? -1 : code + 1;
+	}
+
+	/**
+	 * Describe a group key for logging.
+	 */
+	String describe(int key) {
+		int employed = key % 3;
+		int regionType = (key / 3) % REGION_TYPES;
+		int age = (key / 3 / REGION_TYPES) % MAX_AGE;
+		int gender = key / 3 / REGION_TYPES / MAX_AGE;
+
+		return String.format("Key[gender=%s, age=%d, regionType=%d, employed=%s]",
+			gender == GENDER_ANY ? null : strings.get(gender - 1), age, regionType,
+			employed == EMPLOYED_ANY ? null : employed == EMPLOYED_TRUE);
+	}
+
+	private short encode(String value) {
+		int code = dictionary.getInt(value);
+		if (code == -1) {
+			code = strings.size();
+			if (code > Short.MAX_VALUE)
+				throw new IllegalStateException("Too many distinct values in string columns.");
+
+			dictionary.put(value, code);
+			strings.add(value);
+		}
+		return (short) code;
+	}
+
+	int idx(int row) {
+		return idx[row];
+	}
+
+	boolean carAvail(int row) {
+		return carAvail[row] == 1;
+	}
+
+	boolean bikeAvail(int row) {
+		return bikeAvail[row] == 1;
+	}
+
+	boolean ptAboAvail(int row) {
+		return ptAboAvail[row] == 1;
+	}
+
+	boolean restrictedMobility(int row) {
+		return restrictedMobility[row] == 1;
+	}
+
+	boolean mobileOnDay(int row) {
+		return mobileOnDay[row] == 1;
+	}
+
+	String drivingLicense(int row) {
+		return strings.get(drivingLicense[row]);
+	}
+
+	String employment(int row) {
+		return strings.get(employment[row]);
+	}
+
+	String economicStatus(int row) {
+		return strings.get(economicStatus[row]);
+	}
+
+	int householdSize(int row) {
+		return householdSize[row];
+	}
+
+	/**
+	 * Index of the first activity of a person.
+	 */
+	int activityStart(int row) {
+		return actStart[row];
+	}
+
+	int activityCount(int row) {
+		return actCount[row];
+	}
+
+	String activityType(int act) {
+		return strings.get(actType[act]);
+	}
+
+	int duration(int act) {
+		return duration[act];
+	}
+
+	double legDuration(int act) {
+		return legDuration[act];
+	}
+
+	double legDist(int act) {
+		return legDist[act];
+	}
+
+	String legMode(int act) {
+		return strings.get(legMode[act]);
+	}
+
+}
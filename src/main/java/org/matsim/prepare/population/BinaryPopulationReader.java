@@ -0,0 +1,416 @@
+package org.matsim.prepare.population;
+
+import it.unimi.dsi.fastutil.objects.Object2LongLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.*;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.population.routes.RouteFactories;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.utils.objectattributes.ObjectAttributesConverter;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+import org.matsim.utils.objectattributes.attributable.AttributesImpl;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+import static org.matsim.prepare.population.BinaryPopulationWriter.*;
+
+/**
+ * Reads populations written by {@link BinaryPopulationWriter}. Either the whole population or single persons can be read.
+ */
+public final class BinaryPopulationReader implements Closeable {
+
+	/**
+	 * Size of the footer, which contains the offset of the string table and the magic number.
+	 */
+	private static final int FOOTER_SIZE = 12;
+
+	private final ObjectAttributesConverter converter = new ObjectAttributesConverter();
+
+	private final FileChannel channel;
+
+	private final long tableOffset;
+
+	private final String[] table;
+
+	/**
+	 * Offset of each person in the file.
+	 */
+	private final Object2LongMap<String> index;
+
+	private final PopulationFactory factory;
+	private final RouteFactories routes;
+
+	private DataInputStream in;
+
+	private long lastX;
+	private long lastY;
+	private long lastTime;
+
+	/**
+	 * Open a file and read its string table and person index.
+	 */
+	public BinaryPopulationReader(Path path, PopulationFactory factory) throws IOException {
+
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		this.factory = factory;
+		this.routes = factory.getRouteFactories();
+
+		try {
+			long size = channel.size();
+			if (size < FOOTER_SIZE)
+				throw new IOException("Truncated binary population file: " + path);
+
+			ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+			while (footer.hasRemaining()) {
+				if (channel.read(footer, size - FOOTER_SIZE + footer.position()) < 0)
+					throw new EOFException("Truncated binary population file: " + path);
+			}
+			footer.flip();
+
+			tableOffset = footer.getLong();
+			if (footer.getInt() != MAGIC)
+				throw new IOException("Not a binary population file or incomplete: " + path);
+
+			if (tableOffset < 0 || tableOffset > size - FOOTER_SIZE)
+				throw new IOException("Invalid string table offset in binary population file: " + path);
+
+			seek(tableOffset);
+
+			table = new String[(int) readVarLong()];
+			for (int i = 0; i < table.length; i++) {
+				table[i] = readRaw();
+			}
+
+			int n = (int) readVarLong();
+			index = new Object2LongLinkedOpenHashMap<>(n);
+
+			long offset = 0;
+			for (int i = 0; i < n; i++) {
+				String id = readRaw();
+				offset += readVarLong();
+				index.put(id, offset);
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the whole population.
+	 */
+	public static Population read(Path path) {
+
+		Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+
+		try (BinaryPopulationReader reader = new BinaryPopulationReader(path, population.getFactory())) {
+			reader.readInto(population);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return population;
+	}
+
+	/**
+	 * Read population attributes and all persons into the population.
+	 */
+	public void readInto(Population population) throws IOException {
+		readAll(population.getAttributes(), population::addPerson);
+	}
+
+	/**
+	 * Read all persons one after another and pass them to the algorithm, without storing them.
+	 */
+	public void readPersons(PersonAlgorithm algorithm) throws IOException {
+		readAll(new AttributesImpl(), algorithm);
+	}
+
+	/**
+	 * Read only the population attributes.
+	 */
+	public void readPopulationAttributes(Attributes attributes) throws IOException {
+
+		seek(0);
+
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a binary population file");
+
+		long version = readVarLong();
+		if (version != VERSION)
+			throw new IOException("Unsupported version: " + version);
+
+		readAttributes(attributes);
+	}
+
+	private void readAll(Attributes attributes, PersonAlgorithm algorithm) throws IOException {
+
+		readPopulationAttributes(attributes);
+
+		for (int i = 0; i < index.size(); i++) {
+			algorithm.run(readPerson());
+		}
+	}
+
+	/**
+	 * Ids of all persons in the order they were written.
+	 */
+	public Set<String> getPersonIds() {
+		return index.keySet();
+	}
+
+	/**
+	 * Read a single person, or return null if it is not contained in the file.
+	 */
+	public Person readPerson(Id<Person> id) throws IOException {
+
+		if (!index.containsKey(id.toString()))
+			return null;
+
+		seek(index.getLong(id.toString()));
+		return readPerson();
+	}
+
+	private void seek(long position) throws IOException {
+		channel.position(position);
+		in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+	}
+
+	private Person readPerson() throws IOException {
+
+		Person person = factory.createPerson(Id.createPersonId(readRaw()));
+		readAttributes(person.getAttributes());
+
+		int n = (int) readVarLong();
+		int selected = (int) readVarLong() - 1;
+
+		for (int i = 0; i < n; i++) {
+			Plan plan = readPlan();
+			person.addPlan(plan);
+			if (i == selected)
+				person.setSelectedPlan(plan);
+		}
+
+		return person;
+	}
+
+	private Plan readPlan() throws IOException {
+
+		lastX = 0;
+		lastY = 0;
+		lastTime = 0;
+
+		Plan plan = factory.createPlan();
+		plan.setType(readString());
+
+		if (in.readByte() != 0)
+			plan.setScore(in.readDouble());
+
+		readAttributes(plan.getAttributes());
+
+		int n = (int) readVarLong();
+		for (int i = 0; i < n; i++) {
+			int type = (int) readVarLong();
+			if (type == ACTIVITY)
+				plan.addActivity(readActivity());
+			else if (type == LEG)
+				plan.addLeg(readLeg());
+			else
+				throw new IOException("Unknown plan element type: " + type);
+		}
+
+		return plan;
+	}
+
+	private Activity readActivity() throws IOException {
+
+		String type = readString();
+		Coord coord = readCoord();
+		Id<Link> linkId = readId(Link.class);
+		Id<ActivityFacility> facilityId = readId(ActivityFacility.class);
+
+		Activity act;
+		if (coord == null && linkId == null && facilityId != null)
+			act = factory.createActivityFromActivityFacilityId(type, facilityId);
+		else if (coord == null && linkId != null)
+			act = factory.createActivityFromLinkId(type, linkId);
+		else
+			act = factory.createActivityFromCoord(type, coord);
+
+		act.setLinkId(linkId);
+		act.setFacilityId(facilityId);
+
+		double start = readTime();
+		if (!Double.isNaN(start))
+			act.setStartTime(start);
+
+		double end = readTime();
+		if (!Double.isNaN(end))
+			act.setEndTime(end);
+
+		double duration = readTime();
+		if (!Double.isNaN(duration))
+			act.setMaximumDuration(duration);
+
+		readAttributes(act.getAttributes());
+		return act;
+	}
+
+	private Leg readLeg() throws IOException {
+
+		Leg leg = factory.createLeg(readString());
+		leg.setRoutingMode(readString());
+
+		double departure = readTime();
+		if (!Double.isNaN(departure))
+			leg.setDepartureTime(departure);
+
+		double travelTime = readTime();
+		if (!Double.isNaN(travelTime))
+			leg.setTravelTime(travelTime);
+
+		String routeType = readString();
+		if (routeType != null) {
+			Id<Link> start = readId(Link.class);
+			Id<Link> end = readId(Link.class);
+
+			Route route = routes.createRoute(routes.getRouteClassForType(routeType), start, end);
+			route.setDistance(in.readDouble());
+
+			double routeTime = readTime();
+			if (!Double.isNaN(routeTime))
+				route.setTravelTime(routeTime);
+
+			String description = readRaw();
+			if (description != null)
+				route.setRouteDescription(description);
+
+			leg.setRoute(route);
+		}
+
+		readAttributes(leg.getAttributes());
+		return leg;
+	}
+
+	private void readAttributes(Attributes attributes) throws IOException {
+
+		int n = (int) readVarLong();
+		for (int i = 0; i < n; i++) {
+			String key = readString();
+			int type = (int) readVarLong();
+
+			Object value = switch (type) {
+				case ATTR_STRING -> readString();
+				case ATTR_INT -> (int) unzigzag(readVarLong());
+				case ATTR_LONG -> unzigzag(readVarLong());
+				case ATTR_DOUBLE -> in.readDouble();
+				case ATTR_BOOLEAN -> readVarLong() != 0;
+				case ATTR_OTHER -> {
+					String cls = readString();
+					Object converted = converter.convert(cls, readRaw());
+					if (converted == null)
+						throw new IOException("No converter for attribute " + key + " of " + cls);
+					yield converted;
+				}
+				default -> throw new IOException("Unknown attribute type: " + type);
+			};
+
+			attributes.putAttribute(key, value);
+		}
+	}
+
+	private Coord readCoord() throws IOException {
+
+		int type = (int) readVarLong();
+		return switch (type) {
+			case COORD_NULL -> null;
+			case COORD_FIXED -> {
+				lastX += unzigzag(readVarLong());
+				lastY += unzigzag(readVarLong());
+				yield new Coord(lastX / COORD_SCALE, lastY / COORD_SCALE);
+			}
+			case COORD_DOUBLE -> new Coord(in.readDouble(), in.readDouble());
+			case COORD_3D -> new Coord(in.readDouble(), in.readDouble(), in.readDouble());
+			default -> throw new IOException("Unknown coordinate type: " + type);
+		};
+	}
+
+	/**
+	 * Read a time, undefined times are returned as NaN.
+	 */
+	private double readTime() throws IOException {
+
+		long v = readVarLong();
+		if (v == TIME_UNDEFINED)
+			return Double.NaN;
+		if (v == TIME_DOUBLE)
+			return in.readDouble();
+
+		lastTime += unzigzag(v - 2);
+		return lastTime;
+	}
+
+	private <T> Id<T> readId(Class<T> type) throws IOException {
+		String s = readString();
+		return s == null ? null : Id.create(s, type);
+	}
+
+	private String readString() throws IOException {
+		int idx = (int) readVarLong();
+		return idx == 0 ? null : table[idx - 1];
+	}
+
+	private String readRaw() throws IOException {
+
+		int length = (int) readVarLong();
+		if (length == 0)
+			return null;
+
+		byte[] bytes = new byte[length - 1];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private long readVarLong() throws IOException {
+
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b == -1)
+				throw new EOFException();
+
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return result;
+		}
+
+		throw new IOException("Malformed variable length number");
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,429 @@
+package org.matsim.prepare.population;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.*;
+import org.matsim.core.utils.misc.OptionalTime;
+import org.matsim.utils.objectattributes.ObjectAttributesConverter;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes populations in a compact binary format, which can be read with {@link BinaryPopulationReader}.
+ * <p>
+ * Repeated strings like activity types, modes, link ids and attribute keys are stored once in a string table at the end of the file.
+ * Numbers are written as variable length integers, coordinates and times are delta encoded within a plan.
+ * An index with the offset of each person allows to read single persons without reading the whole file.
+ */
+public final class BinaryPopulationWriter {
+
+	static final int MAGIC = 0x4d504f50;
+	static final int VERSION = 1;
+
+	/**
+	 * Coordinates with up to this many decimal places are stored as integers.
+	 */
+	static final double COORD_SCALE = 100;
+
+	static final int ACTIVITY = 0;
+	static final int LEG = 1;
+
+	static final int COORD_NULL = 0;
+	static final int COORD_FIXED = 1;
+	static final int COORD_DOUBLE = 2;
+	static final int COORD_3D = 3;
+
+	static final int TIME_UNDEFINED = 0;
+	static final int TIME_DOUBLE = 1;
+
+	static final int ATTR_STRING = 0;
+	static final int ATTR_INT = 1;
+	static final int ATTR_LONG = 2;
+	static final int ATTR_DOUBLE = 3;
+	static final int ATTR_BOOLEAN = 4;
+	static final int ATTR_OTHER = 5;
+
+	private final ObjectAttributesConverter converter = new ObjectAttributesConverter();
+
+	private final Object2IntMap<String> strings = new Object2IntOpenHashMap<>();
+	private final List<String> table = new ArrayList<>();
+
+	/**
+	 * Ids and offsets of written persons.
+	 */
+	private final List<String> ids = new ArrayList<>();
+	private final LongArrayList offsets = new LongArrayList();
+
+	private CountingOutputStream out;
+
+	/**
+	 * Last written coordinate and time within the current plan.
+	 */
+	private long lastX;
+	private long lastY;
+	private long lastTime;
+
+	/**
+	 * Write the population to the given path.
+	 */
+	public void write(Population population, Path path) {
+
+		open(path, population.getAttributes());
+		try {
+			for (Person person : population.getPersons().values()) {
+				writePerson(person);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Start writing a population incrementally. Persons are added with {@link #writePerson(Person)}, the file is completed by {@link #close()}.
+	 */
+	public void open(Path path, Attributes attributes) {
+
+		strings.clear();
+		table.clear();
+		ids.clear();
+		offsets.clear();
+
+		try {
+			out = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+
+			writeInt(MAGIC);
+			writeVarLong(VERSION);
+
+			writeAttributes(attributes);
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Append a person to the opened file.
+	 */
+	public void writePerson(Person person) {
+		try {
+			offsets.add(out.position);
+			ids.add(person.getId().toString());
+			writePersonData(person);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Write string table and index and close the file.
+	 */
+	public void close() {
+
+		if (out == null)
+			return;
+
+		try (CountingOutputStream os = out) {
+
+			long tableOffset = os.position;
+
+			writeVarLong(table.size());
+			for (String s : table) {
+				writeRaw(s);
+			}
+
+			// The index stores the distance between consecutive persons
+			writeVarLong(ids.size());
+			long last = 0;
+			for (int i = 0; i < ids.size(); i++) {
+				writeRaw(ids.get(i));
+				writeVarLong(offsets.getLong(i) - last);
+				last = offsets.getLong(i);
+			}
+
+			writeLong(tableOffset);
+			writeInt(MAGIC);
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			out = null;
+		}
+	}
+
+	private void writePersonData(Person person) throws IOException {
+
+		writeRaw(person.getId().toString());
+		writeAttributes(person.getAttributes());
+
+		List<? extends Plan> plans = person.getPlans();
+		writeVarLong(plans.size());
+		writeVarLong(plans.indexOf(person.getSelectedPlan()) + 1);
+
+		for (Plan plan : plans) {
+			writePlan(plan);
+		}
+	}
+
+	private void writePlan(Plan plan) throws IOException {
+
+		lastX = 0;
+		lastY = 0;
+		lastTime = 0;
+
+		writeString(plan.getType());
+		writeNullableDouble(plan.getScore());
+		writeAttributes(plan.getAttributes());
+
+		writeVarLong(plan.getPlanElements().size());
+		for (PlanElement el : plan.getPlanElements()) {
+			if (el instanceof Activity act) {
+				writeVarLong(ACTIVITY);
+				writeActivity(act);
+			} else if (el instanceof Leg leg) {
+				writeVarLong(LEG);
+				writeLeg(leg);
+			} else
+				throw new IllegalArgumentException("Unknown plan element: " + el);
+		}
+	}
+
+	private void writeActivity(Activity act) throws IOException {
+
+		writeString(act.getType());
+		writeCoord(act.getCoord());
+		writeId(act.getLinkId());
+		writeId(act.getFacilityId());
+
+		writeTime(act.getStartTime());
+		writeTime(act.getEndTime());
+		writeTime(act.getMaximumDuration());
+
+		writeAttributes(act.getAttributes());
+	}
+
+	private void writeLeg(Leg leg) throws IOException {
+
+		writeString(leg.getMode());
+		writeString(leg.getRoutingMode());
+		writeTime(leg.getDepartureTime());
+		writeTime(leg.getTravelTime());
+
+		Route route = leg.getRoute();
+		if (route == null) {
+			writeString(null);
+		} else {
+			writeString(route.getRouteType());
+			writeId(route.getStartLinkId());
+			writeId(route.getEndLinkId());
+			writeDouble(route.getDistance());
+			writeTime(route.getTravelTime());
+			writeRaw(route.getRouteDescription());
+		}
+
+		writeAttributes(leg.getAttributes());
+	}
+
+	private void writeAttributes(Attributes attributes) throws IOException {
+
+		Map<String, Object> map = attributes.getAsMap();
+		writeVarLong(map.size());
+
+		for (Map.Entry<String, Object> e : map.entrySet()) {
+			writeString(e.getKey());
+
+			Object value = e.getValue();
+			if (value instanceof String s) {
+				writeVarLong(ATTR_STRING);
+				writeString(s);
+			} else if (value instanceof Integer i) {
+				writeVarLong(ATTR_INT);
+				writeVarLong(zigzag(i));
+			} else if (value instanceof Long l) {
+				writeVarLong(ATTR_LONG);
+				writeVarLong(zigzag(l));
+			} else if (value instanceof Double d) {
+				writeVarLong(ATTR_DOUBLE);
+				writeDouble(d);
+			} else if (value instanceof Boolean b) {
+				writeVarLong(ATTR_BOOLEAN);
+				writeVarLong(b ? 1 : 0);
+			} else {
+				String converted = converter.convertToString(value);
+				if (converted == null)
+					throw new IllegalArgumentException("No converter for attribute " + e.getKey() + " of " + value.getClass());
+
+				writeVarLong(ATTR_OTHER);
+				writeString(value.getClass().getName());
+				writeRaw(converted);
+			}
+		}
+	}
+
+	private void writeCoord(Coord coord) throws IOException {
+
+		if (coord == null) {
+			writeVarLong(COORD_NULL);
+			return;
+		}
+
+		if (coord.hasZ()) {
+			writeVarLong(COORD_3D);
+			writeDouble(coord.getX());
+			writeDouble(coord.getY());
+			writeDouble(coord.getZ());
+			return;
+		}
+
+		long x = Math.round(coord.getX() * COORD_SCALE);
+		long y = Math.round(coord.getY() * COORD_SCALE);
+
+		if (x / COORD_SCALE == coord.getX() && y / COORD_SCALE == coord.getY()) {
+			writeVarLong(COORD_FIXED);
+			writeVarLong(zigzag(x - lastX));
+			writeVarLong(zigzag(y - lastY));
+			lastX = x;
+			lastY = y;
+		} else {
+			writeVarLong(COORD_DOUBLE);
+			writeDouble(coord.getX());
+			writeDouble(coord.getY());
+		}
+	}
+
+	/**
+	 * Whole seconds are stored as difference to the previous time. Other values are stored as double.
+	 */
+	private void writeTime(OptionalTime time) throws IOException {
+
+		if (time.isUndefined()) {
+			writeVarLong(TIME_UNDEFINED);
+			return;
+		}
+
+		double t = time.seconds();
+		long l = (long) t;
+
+		if (l == t) {
+			writeVarLong(zigzag(l - lastTime) + 2);
+			lastTime = l;
+		} else {
+			writeVarLong(TIME_DOUBLE);
+			writeDouble(t);
+		}
+	}
+
+	private void writeId(Id<?> id) throws IOException {
+		writeString(id == null ? null : id.toString());
+	}
+
+	/**
+	 * Write a reference into the string table. Null is stored as 0.
+	 */
+	private void writeString(String s) throws IOException {
+
+		if (s == null) {
+			writeVarLong(0);
+			return;
+		}
+
+		int idx = strings.getOrDefault(s, -1);
+		if (idx == -1) {
+			idx = table.size();
+			strings.put(s, idx);
+			table.add(s);
+		}
+
+		writeVarLong(idx + 1);
+	}
+
+	/**
+	 * Write a string directly with its length. Null is stored as length 0.
+	 */
+	private void writeRaw(String s) throws IOException {
+
+		if (s == null) {
+			writeVarLong(0);
+			return;
+		}
+
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(bytes.length + 1L);
+		out.write(bytes);
+	}
+
+	private void writeNullableDouble(Double d) throws IOException {
+		if (d == null) {
+			out.write(0);
+		} else {
+			out.write(1);
+			writeDouble(d);
+		}
+	}
+
+	private void writeDouble(double d) throws IOException {
+		writeLong(Double.doubleToRawLongBits(d));
+	}
+
+	private void writeLong(long v) throws IOException {
+		for (int i = 56; i >= 0; i -= 8) {
+			out.write((int) (v >>> i));
+		}
+	}
+
+	private void writeInt(int v) throws IOException {
+		for (int i = 24; i >= 0; i -= 8) {
+			out.write(v >>> i);
+		}
+	}
+
+	private void writeVarLong(long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.write((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	/**
+	 * Keeps track of the number of written bytes, which are needed for the index.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+
+		private long position;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			position++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			position += len;
+		}
+	}
+
+}
@@ -6,41 +6,69 @@ import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.Point;
 import org.matsim.application.options.CsvOptions;
 import org.matsim.facilities.ActivityFacility;
-import org.opengis.feature.simple.SimpleFeature;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Path;
-import java.util.Map;
+import java.util.BitSet;
 import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Helper class for commuter assignment.
+ * The remaining commuters of all origin-destination pairs are stored in one flat array and are updated without locks.
+ * Targets can either be drawn from the remaining budget, which depends on the order of assignments,
+ * or from the initial budget, which leaves the budget untouched until {@link #consume(int)} is called.
  */
 public class CommuterAssignment {
 
+	/**
+	 * Fixed point scale of the commuter budget.
+	 */
+	private static final long SCALE = 1000;
+
 	private static final Logger log = LogManager.getLogger(CommuterAssignment.class);
 
-	private final Map<Long, SimpleFeature> zones;
+	private final CsvOptions csv = new CsvOptions(CSVFormat.Predefined.Default);
 
 	/**
-	 * Outgoing commuter from ars to ars.
+	 * Maps origin ars to its row in {@link #offsets}.
 	 */
-	private final Long2ObjectMap<Long2DoubleMap> commuter;
+	private final Long2IntMap origins = new Long2IntOpenHashMap();
 
-	private final CsvOptions csv = new CsvOptions(CSVFormat.Predefined.Default);
-	private final double sample;
+	/**
+	 * Destinations of origin i are stored in range offsets[i] until offsets[i + 1].
+	 */
+	private final int[] offsets;
 
-	public CommuterAssignment(Long2ObjectMap<SimpleFeature> zones, Path commuterPath, double sample) {
-		this.sample = sample;
+	/**
+	 * Destination ars for each entry.
+	 */
+	private final long[] destinations;
 
-		// outgoing commuters
-		this.commuter = new Long2ObjectOpenHashMap<>();
-		this.zones = zones;
+	/**
+	 * Remaining outgoing commuters for each entry, scaled by {@link #SCALE}.
+	 */
+	private final AtomicLongArray budget;
+
+	/**
+	 * Initial outgoing commuters for each entry, scaled by {@link #SCALE}.
+	 */
+	private final long[] initial;
+
+	/**
+	 * Budget consumed by one assigned person.
+	 */
+	private final long decrement;
+
+	public CommuterAssignment(Path commuterPath, double sample) {
+
+		this.decrement = Math.round(SCALE / sample);
+
+		// outgoing commuters from ars to ars
+		Long2ObjectMap<Long2DoubleMap> commuter = new Long2ObjectOpenHashMap<>();
 
 		// read commuters
 		try (CSVParser parser = csv.createParser(commuterPath)) {
@@ -55,75 +83,152 @@ public class CommuterAssignment {
 				}
 
 				String n = row.get("n");
-				commuter.computeIfAbsent(from, k -> Long2DoubleMaps.synchronize(new Long2DoubleOpenHashMap()))
+				commuter.computeIfAbsent(from, k -> new Long2DoubleOpenHashMap())
 					.mergeDouble(to, Integer.parseInt(n), Double::sum);
 			}
 		} catch (IOException e) {
 			throw new UncheckedIOException(e);
 		}
 
+		int size = commuter.values().stream().mapToInt(Long2DoubleMap::size).sum();
+
+		origins.defaultReturnValue(-1);
+		offsets = new int[commuter.size() + 1];
+		destinations = new long[size];
+		budget = new AtomicLongArray(size);
+		initial = new long[size];
+
+		int row = 0;
+		int i = 0;
+		for (Long2ObjectMap.Entry<Long2DoubleMap> e : commuter.long2ObjectEntrySet()) {
+			origins.put(e.getLongKey(), row);
+			offsets[row++] = i;
+
+			for (Long2DoubleMap.Entry d : e.getValue().long2DoubleEntrySet()) {
+				destinations[i] = d.getLongKey();
+				initial[i] = Math.round(d.getDoubleValue() * SCALE);
+				budget.set(i, initial[i]);
+				i++;
+			}
+		}
+
+		offsets[row] = i;
+
+		log.info("Read {} commuter relations for {} origins", size, origins.size());
 	}
 
 	/**
-	 * Select and return a commute target.
+	 * Select and return a commute target, which is drawn from and subtracted from the remaining budget.
 	 *
-	 * @param f   sampler producing target locations
+	 * @param f   sampler producing target locations, returns null if the zone has no suitable location
 	 * @param ars origin zone
 	 */
-	public ActivityFacility selectTarget(SplittableRandom rnd, long ars, double dist, Point refPoint, Sampler f) {
+	public ActivityFacility selectTarget(SplittableRandom rnd, long ars, Sampler f) {
+		Target target = select(rnd, ars, f, true);
+		return target != null ? target.facility() : null;
+	}
+
+	/**
+	 * Sample a commute target from the initial budget without changing the remaining budget.
+	 * The result only depends on the random generator and the sampler, the entry needs to be passed to {@link #consume(int)} afterward.
+	 *
+	 * @see #selectTarget(SplittableRandom, long, Sampler)
+	 */
+	public Target sampleTarget(SplittableRandom rnd, long ars, Sampler f) {
+		return select(rnd, ars, f, false);
+	}
+
+	private Target select(SplittableRandom rnd, long ars, Sampler f, boolean remaining) {
 
-		// Commute in same zone
-		Long2DoubleMap comms = commuter.get(ars);
-		if (!commuter.containsKey(ars) || comms.isEmpty())
+		int origin = origins.get(ars);
+		if (origin == -1)
 			return null;
 
-		LongList entries;
-		synchronized (comms) {
-			entries = new LongArrayList(comms.keySet());
-		}
+		int from = offsets[origin];
+		int to = offsets[origin + 1];
 
-		while (!entries.isEmpty()) {
-			long key = entries.removeLong(rnd.nextInt(entries.size()));
+		// Destinations that have been tried already, only allocated when needed
+		BitSet tried = null;
 
-			SimpleFeature ft = zones.get(key);
+		while (true) {
 
-			// TODO: should maybe not be allowed
-			if (ft == null)
-				continue;
+			int idx = sampleDestination(rnd, from, to, tried, remaining);
+			if (idx == -1)
+				return null;
 
-			Geometry zone = (Geometry) ft.getDefaultGeometry();
+			ActivityFacility res = f.sample(destinations[idx]);
 
-			// Zones too far away don't need to be considered
-			if (zone.distance(refPoint) > dist * 1.2)
-				continue;
+			// Result needs to be thrown away if another thread used up the budget while computing
+			if (res != null && (!remaining || consume(idx)))
+				return new Target(idx, res);
 
-			ActivityFacility res = f.sample(zone);
+			if (tried == null)
+				tried = new BitSet(to - from);
 
-			if (res != null) {
-				synchronized (comms) {
-					double old = comms.get(key);
+			tried.set(idx - from);
+		}
+	}
 
-					// Check if other thread reduced the counter while computing
-					// result needs to be thrown away
-					if (old <= 0) {
-						comms.remove(key);
-						continue;
-					}
+	/**
+	 * Draw a destination entry weighted by its remaining or initial budget. Returns -1 if no destination is left.
+	 */
+	private int sampleDestination(SplittableRandom rnd, int from, int to, BitSet tried, boolean remaining) {
 
-					// subtract available commuters
-					double newValue = old - (1 / sample);
-					comms.put(key, newValue);
+		long total = 0;
+		for (int i = from; i < to; i++) {
+			if (tried == null || !tried.get(i - from))
+				total += weight(i, remaining);
+		}
 
-					if (newValue <= 0)
-						comms.remove(key);
-				}
+		if (total <= 0)
+			return -1;
 
-				return res;
-			}
+		long r = rnd.nextLong(total);
+		for (int i = from; i < to; i++) {
+			if (tried != null && tried.get(i - from))
+				continue;
+
+			long w = weight(i, remaining);
+			if (r < w)
+				return i;
+
+			r -= w;
 		}
 
+		// Other threads reduced the budget in the meantime, use the last entry that is still available
+		for (int i = to - 1; i >= from; i--) {
+			if ((tried == null || !tried.get(i - from)) && budget.get(i) > 0)
+				return i;
+		}
+
+		return -1;
+	}
+
+	private long weight(int idx, boolean remaining) {
+		return remaining ? Math.max(0, budget.get(idx)) : initial[idx];
+	}
+
+	/**
+	 * Subtract one person from the budget of an entry.
+	 *
+	 * @return whether there was budget left
+	 */
+	public boolean consume(int idx) {
+		long old;
+		do {
+			old = budget.get(idx);
+			if (old <= 0)
+				return false;
 
-		return null;
+		} while (!budget.compareAndSet(idx, old, old - decrement));
+
+		return true;
+	}
+
+	/**
+	 * Sampled target and its entry in the commuter budget.
+	 */
+	public record Target(int entry, ActivityFacility facility) {
 	}
 
 	/**
@@ -131,7 +236,7 @@ public class CommuterAssignment {
 	 */
 	interface Sampler {
 
-		ActivityFacility sample(Geometry zone);
+		ActivityFacility sample(long zone);
 
 	}
 
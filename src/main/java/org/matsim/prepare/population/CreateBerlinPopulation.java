@@ -5,7 +5,6 @@ import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.MultiPolygon;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
@@ -14,17 +13,19 @@ import org.matsim.api.core.v01.population.Plan;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.api.core.v01.population.PopulationFactory;
 import org.matsim.application.MATSimAppCommand;
-import org.matsim.application.options.LanduseOptions;
 import org.matsim.application.options.ShpOptions;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.population.PersonUtils;
 import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.scenario.ProjectionUtils;
 import org.matsim.core.utils.geometry.CoordinateTransformation;
-import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.core.utils.geometry.transformations.GeotoolsTransformation;
+import org.matsim.prepare.LanduseSamplerOptions;
+import org.matsim.prepare.ParallelOptions;
+import org.matsim.prepare.PolygonSampler;
 import org.matsim.prepare.RunOpenBerlinCalibration;
 import org.matsim.run.RunOpenBerlinScenario;
+import org.matsim.utils.objectattributes.attributable.AttributesUtils;
 import org.opengis.feature.simple.SimpleFeature;
 import picocli.CommandLine;
 
@@ -34,6 +35,7 @@ import java.nio.file.Path;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.IntStream;
 
 @CommandLine.Command(
@@ -42,15 +44,13 @@ import java.util.stream.IntStream;
 )
 public class CreateBerlinPopulation implements MATSimAppCommand {
 
-	private static final NumberFormat FMT = NumberFormat.getInstance(Locale.GERMAN);
-
 	private static final Logger log = LogManager.getLogger(CreateBerlinPopulation.class);
 
 	@CommandLine.Option(names = "--input", description = "Path to input csv data", required = true)
 	private Path input;
 
 	@CommandLine.Mixin
-	private LanduseOptions landuse = new LanduseOptions();
+	private LanduseSamplerOptions landuse = new LanduseSamplerOptions();
 
 	@CommandLine.Mixin
 	private ShpOptions shp = new ShpOptions();
@@ -64,9 +64,13 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 	@CommandLine.Option(names = "--sample", description = "Sample size to generate", defaultValue = "0.25")
 	private double sample;
 
-	private Map<String, MultiPolygon> lors;
+	@CommandLine.Option(names = "--seed", description = "Seed used to generate persons", defaultValue = "0")
+	private long seed;
+
+	@CommandLine.Mixin
+	private ParallelOptions parallel = new ParallelOptions();
 
-	private SplittableRandom rnd;
+	private Map<String, MultiPolygon> lors;
 
 	private Population population;
 
@@ -77,7 +81,6 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 	}
 
 	@Override
-	@SuppressWarnings("IllegalCatch")
 	public Integer call() throws Exception {
 
 		if (shp.getShapeFile() == null) {
@@ -87,7 +90,6 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 
 		List<SimpleFeature> fts = shp.readFeatures();
 
-		rnd = new SplittableRandom(0);
 		lors = new HashMap<>();
 		population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
 
@@ -100,75 +102,98 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 
 		CSVFormat.Builder format = CSVFormat.DEFAULT.builder().setDelimiter(';').setHeader().setSkipHeaderRecord(true);
 
+		List<CSVRecord> rows = new ArrayList<>();
 		try (CSVParser reader = new CSVParser(Files.newBufferedReader(input, Charset.forName("windows-1252")), format.build())) {
 
 			for (CSVRecord row : reader) {
 
 				int year = Integer.parseInt(row.get("Jahr"));
-				if (this.year != year)
-					continue;
-
-				try {
-					processLOR(row);
-				} catch (RuntimeException e) {
-					log.error("Error processing lor", e);
-					log.error(row.toString());
-				}
+				if (this.year == year)
+					rows.add(row);
 			}
 		}
 
+		landuse.load("EPSG:25833");
+
+		// Each LOR is generated independently with its own random generator, results are merged in order of the input
+		List<List<Person>> persons = parallel.map(rows, this::processLOR);
+
+		addZones(population, persons, "berlin", new SplittableRandom(seed));
+
 		log.info("Generated {} persons", population.getPersons().size());
 
 		PopulationUtils.sortPersons(population);
 
 		ProjectionUtils.putCRS(population, RunOpenBerlinScenario.CRS);
-		PopulationUtils.writePopulation(population, output.toString());
+		PopulationFiles.write(population, output);
 
 		return 0;
 	}
 
-	private void processLOR(CSVRecord row) throws ParseException {
+	@SuppressWarnings("IllegalCatch")
+	private List<Person> processLOR(CSVRecord row) {
+		try {
+			return createPersons(row);
+		} catch (ParseException | RuntimeException e) {
+			log.error("Error processing lor", e);
+			log.error(row.toString());
+			return List.of();
+		}
+	}
+
+	private List<Person> createPersons(CSVRecord row) throws ParseException {
 
 		String raumID = row.get("RaumID");
 		int n = Integer.parseInt(row.get("Einwohnerinnen und Einwohner (EW) insgesamt"));
 
 		log.info("Processing {} with {} inhabitants", raumID, n);
 
-		double young = FMT.parse(row.get("Anteil der unter 18-Jährigen an Einwohnerinnen und Einwohner (EW) gesamt")).doubleValue() / 100;
-		double old = FMT.parse(row.get("Anteil der 65-Jährigen und älter an Einwohnerinnen und Einwohner (EW) gesamt")).doubleValue() / 100;
+		// Number formats are not thread-safe
+		NumberFormat fmt = NumberFormat.getInstance(Locale.GERMAN);
+
+		double young = fmt.parse(row.get("Anteil der unter 18-Jährigen an Einwohnerinnen und Einwohner (EW) gesamt")).doubleValue() / 100;
+		double old = fmt.parse(row.get("Anteil der 65-Jährigen und älter an Einwohnerinnen und Einwohner (EW) gesamt")).doubleValue() / 100;
 
 		// x women for 100 men
-		double women = FMT.parse(row.get("Geschlechterverteilung")).doubleValue();
+		double women = fmt.parse(row.get("Geschlechterverteilung")).doubleValue();
 		double quota = women / (100 + women);
 
 		// sometimes this entry is not set
 		double unemployed;
 		try {
-			unemployed = FMT.parse(row.get("Anteil Arbeitslose nach SGB II und SGB III an Einwohnerinnen und Einwohner (EW) im Alter von 15 bis unter 65 Jahren")).doubleValue() / 100;
+			unemployed = fmt.parse(row.get("Anteil Arbeitslose nach SGB II und SGB III an Einwohnerinnen und Einwohner (EW) im Alter von 15 bis unter 65 Jahren")).doubleValue() / 100;
 		} catch (ParseException e) {
 			unemployed = 0;
 			log.warn("LOR {} {} has no unemployment", raumID, row.get(1));
 		}
 
-		var sex = new EnumeratedAttributeDistribution<>(Map.of("f", quota, "m", 1 - quota));
-		var employment = new EnumeratedAttributeDistribution<>(Map.of(true, 1 - unemployed, false, unemployed));
+		SplittableRandom rnd = PersonRandom.create(seed, "population", raumID, 0);
+
+		var sex = new EnumeratedAttributeDistribution<>(Map.of("f", quota, "m", 1 - quota), rnd.nextLong());
+		var employment = new EnumeratedAttributeDistribution<>(Map.of(true, 1 - unemployed, false, unemployed), rnd.nextLong());
 		var ageGroup = new EnumeratedAttributeDistribution<>(Map.of(
 				AgeGroup.YOUNG, young,
 				AgeGroup.MIDDLE, 1.0 - young - old,
 				AgeGroup.OLD, old
-		));
+		), rnd.nextLong());
 
-		MultiPolygon geom = lors.get(raumID);
+		PolygonSampler homes = landuse.createSampler(lors.get(raumID), raumID);
 
 		PopulationFactory f = population.getFactory();
 
-		var youngDist = new UniformAttributeDistribution<>(IntStream.range(1, 18).boxed().toList());
-		var middleDist = new UniformAttributeDistribution<>(IntStream.range(18, 65).boxed().toList());
-		var oldDist = new UniformAttributeDistribution<>(IntStream.range(65, 100).boxed().toList());
+		var youngDist = new UniformAttributeDistribution<>(IntStream.range(1, 18).boxed().toList(), rnd.nextLong());
+		var middleDist = new UniformAttributeDistribution<>(IntStream.range(18, 65).boxed().toList(), rnd.nextLong());
+		var oldDist = new UniformAttributeDistribution<>(IntStream.range(65, 100).boxed().toList(), rnd.nextLong());
+
+		List<Person> persons = new ArrayList<>((int) Math.ceil(n * sample));
+		Set<Id<Person>> ids = new HashSet<>();
 
 		for (int i = 0; i < n * sample; i++) {
 
-			Person person = f.createPerson(generateId(population, "berlin", rnd));
+			Id<Person> id = generateId(ids::contains, "berlin", rnd);
+			ids.add(id);
+
+			Person person = f.createPerson(id);
 			PersonUtils.setSex(person, sex.sample());
 			PopulationUtils.putSubpopulation(person, "person");
 
@@ -185,7 +210,7 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 				PersonUtils.setEmployed(person, false);
 			}
 
-			Coord coord = ct.transform(sampleHomeCoordinate(geom, "EPSG:25833", landuse, rnd));
+			Coord coord = ct.transform(RunOpenBerlinCalibration.roundCoord(homes.sample(rnd)));
 
 			person.getAttributes().putAttribute(Attributes.HOME_X, coord.getX());
 			person.getAttributes().putAttribute(Attributes.HOME_Y, coord.getY());
@@ -200,14 +225,24 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 			person.addPlan(plan);
 			person.setSelectedPlan(plan);
 
-			population.addPerson(person);
+			persons.add(person);
 		}
+
+		return persons;
 	}
 
+
 	/**
 	 * Generate a new unique id within population.
 	 */
 	public static Id<Person> generateId(Population population, String prefix, SplittableRandom rnd) {
+		return generateId(population.getPersons()::containsKey, prefix, rnd);
+	}
+
+	/**
+	 * Generate a new id, for which {@code exists} returns false.
+	 */
+	public static Id<Person> generateId(Predicate<Id<Person>> exists, String prefix, SplittableRandom rnd) {
 
 		Id<Person> id;
 		byte[] bytes = new byte[4];
@@ -215,35 +250,35 @@ public class CreateBerlinPopulation implements MATSimAppCommand {
 			rnd.nextBytes(bytes);
 			id = Id.createPersonId(prefix + "_" + HexFormat.of().formatHex(bytes));
 
-		} while (population.getPersons().containsKey(id));
+		} while (exists.test(id));
 
 		return id;
 	}
 
-
 	/**
-	 * Samples a home coordinates from geometry and landuse.
+	 * Add persons that have been generated independently per zone to the population.
+	 * Zones are added in the given order. Persons whose id is already used by another zone receive a new id drawn from {@code rnd}.
 	 */
-	public static Coord sampleHomeCoordinate(MultiPolygon geometry, String crs, LanduseOptions landuse, SplittableRandom rnd) {
+	public static void addZones(Population population, List<List<Person>> zones, String prefix, SplittableRandom rnd) {
 
-		Envelope bbox = geometry.getEnvelopeInternal();
-
-		int i = 0;
-		Coord coord;
-		do {
-			coord = landuse.select(crs, () -> new Coord(
-					bbox.getMinX() + (bbox.getMaxX() - bbox.getMinX()) * rnd.nextDouble(),
-					bbox.getMinY() + (bbox.getMaxY() - bbox.getMinY()) * rnd.nextDouble()
-			));
+		PopulationFactory f = population.getFactory();
 
-			i++;
+		for (List<Person> persons : zones) {
+			for (Person person : persons) {
 
-		} while (!geometry.contains(MGC.coord2Point(coord)) && i < 1500);
+				if (population.getPersons().containsKey(person.getId())) {
+					Person copy = f.createPerson(generateId(population, prefix, rnd));
+					AttributesUtils.copyTo(person.getAttributes(), copy.getAttributes());
 
-		if (i == 1500)
-			log.warn("Invalid coordinate generated");
+					Plan plan = person.getSelectedPlan();
+					copy.addPlan(plan);
+					copy.setSelectedPlan(plan);
+					person = copy;
+				}
 
-		return RunOpenBerlinCalibration.roundCoord(coord);
+				population.addPerson(person);
+			}
+		}
 	}
 
 	private enum AgeGroup {
@@ -7,29 +7,30 @@ import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Geometry;
 import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.Plan;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.api.core.v01.population.PopulationFactory;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.CsvOptions;
-import org.matsim.application.options.LanduseOptions;
 import org.matsim.application.options.ShpOptions;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.population.PersonUtils;
 import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.scenario.ProjectionUtils;
+import org.matsim.prepare.LanduseSamplerOptions;
+import org.matsim.prepare.ParallelOptions;
+import org.matsim.prepare.PolygonSampler;
+import org.matsim.prepare.RunOpenBerlinCalibration;
 import org.matsim.run.RunOpenBerlinScenario;
 import org.opengis.feature.simple.SimpleFeature;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.SplittableRandom;
+import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -62,11 +63,16 @@ public class CreateBrandenburgPopulation implements MATSimAppCommand {
 	private ShpOptions shp = new ShpOptions();
 
 	@CommandLine.Mixin
-	private LanduseOptions landuse = new LanduseOptions();
+	private LanduseSamplerOptions landuse = new LanduseSamplerOptions();
+
+	@CommandLine.Option(names = "--seed", description = "Seed used to generate persons", defaultValue = "0")
+	private long seed;
+
+	@CommandLine.Mixin
+	private ParallelOptions parallel = new ParallelOptions();
 
 	private final CsvOptions csv = new CsvOptions(CSVFormat.Predefined.Default);
 
-	private SplittableRandom rnd;
 	private Population population;
 
 	private Map<Integer, Employment> employed;
@@ -93,9 +99,11 @@ public class CreateBrandenburgPopulation implements MATSimAppCommand {
 
 		Set<String> found = new HashSet<>();
 
-		rnd = new SplittableRandom(0);
 		population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
 
+		// Rows are grouped by Landkreis, because the employed population is shared between all its Gemeinden
+		Map<Integer, List<CSVRecord>> rows = new TreeMap<>();
+
 		try (CSVParser parser = csv.createParser(stats)) {
 
 			for (CSVRecord row : parser) {
@@ -107,14 +115,22 @@ public class CreateBrandenburgPopulation implements MATSimAppCommand {
 					code += "000";
 
 				if (zones.containsKey(code)) {
-
-					addPersons(row, code, (String) zones.get(code).getAttribute("ARS"), (MultiPolygon) zones.get(code).getDefaultGeometry());
+					int lk = Integer.parseInt(code.substring(0, code.length() - 3));
+					rows.computeIfAbsent(lk, k -> new ArrayList<>()).add(row);
 
 					found.add(code);
 				}
 			}
 		}
 
+		landuse.load(RunOpenBerlinScenario.CRS);
+
+		// Each Landkreis is generated independently with its own random generator, results are merged in order of the code
+		List<List<Person>> persons = parallel.map(new ArrayList<>(rows.entrySet()),
+				e -> createPersons(e.getKey(), e.getValue(), zones));
+
+		CreateBerlinPopulation.addZones(population, persons, "bb", new SplittableRandom(seed));
+
 		for (Map.Entry<String, SimpleFeature> zone : zones.entrySet()) {
 			if (!found.contains(zone.getKey()))
 				log.warn("Zone not found in population statistic: {} ({})", zone.getValue().getAttribute("GEN"), zone.getKey());
@@ -125,15 +141,45 @@ public class CreateBrandenburgPopulation implements MATSimAppCommand {
 		PopulationUtils.sortPersons(population);
 
 		ProjectionUtils.putCRS(population, RunOpenBerlinScenario.CRS);
-		PopulationUtils.writePopulation(population, output.toString());
+		PopulationFiles.write(population, output);
 
 		return 0;
 	}
 
 	/**
-	 * Add number of persons to the population according to entry.
+	 * Create persons for all rows of one Landkreis.
+	 */
+	private List<Person> createPersons(int lk, List<CSVRecord> rows, Map<String, SimpleFeature> zones) {
+
+		SplittableRandom rnd = PersonRandom.create(seed, "population", "lk_" + lk, 0);
+
+		List<Person> persons = new ArrayList<>();
+		Set<Id<Person>> ids = new HashSet<>();
+
+		// There are multiple rows per zone, the samplers are reused
+		Map<String, PolygonSampler> samplers = new HashMap<>();
+
+		for (CSVRecord row : rows) {
+
+			String code = row.get("code");
+			if (!zones.containsKey(code))
+				code += "000";
+
+			SimpleFeature zone = zones.get(code);
+			PolygonSampler homes = samplers.computeIfAbsent(code,
+					k -> landuse.createSampler((Geometry) zone.getDefaultGeometry(), k));
+
+			addPersons(row, code, (String) zone.getAttribute("ARS"), homes, rnd, persons, ids);
+		}
+
+		return persons;
+	}
+
+	/**
+	 * Add number of persons to the list according to entry.
 	 */
-	private void addPersons(CSVRecord r, String code, String ars, MultiPolygon geom) {
+	private void addPersons(CSVRecord r, String code, String ars, PolygonSampler homes, SplittableRandom rnd,
+							List<Person> persons, Set<Id<Person>> ids) {
 
 		int n = Integer.parseInt(r.get("n"));
 
@@ -144,7 +190,7 @@ public class CreateBrandenburgPopulation implements MATSimAppCommand {
 		int low = Integer.parseInt(group[0]);
 		int high = group[1].equals("inf") ? MAX_AGE : Integer.parseInt(group[1]);
 
-		UniformAttributeDistribution<Integer> ageDist = new UniformAttributeDistribution<>(IntStream.range(low, high).boxed().toList());
+		UniformAttributeDistribution<Integer> ageDist = new UniformAttributeDistribution<>(IntStream.range(low, high).boxed().toList(), rnd.nextLong());
 
 		// Landkreis
 		int lk = Integer.parseInt(code.substring(0, code.length() - 3));
@@ -159,7 +205,10 @@ public class CreateBrandenburgPopulation implements MATSimAppCommand {
 
 		for (int i = 0; i < n * sample; i++) {
 
-			Person person = f.createPerson(generateId(population, "bb", rnd));
+			Id<Person> id = generateId(ids::contains, "bb", rnd);
+			ids.add(id);
+
+			Person person = f.createPerson(id);
 
 			int age = ageDist.sample();
 
@@ -170,7 +219,7 @@ public class CreateBrandenburgPopulation implements MATSimAppCommand {
 			// All persons will be employed until employed population is empty.
 			PersonUtils.setEmployed(person, employed.subtract(1 / sample, age));
 
-			Coord coord = CreateBerlinPopulation.sampleHomeCoordinate(geom, RunOpenBerlinScenario.CRS, landuse, rnd);
+			Coord coord = RunOpenBerlinCalibration.roundCoord(homes.sample(rnd));
 
 			person.getAttributes().putAttribute(Attributes.HOME_X, coord.getX());
 			person.getAttributes().putAttribute(Attributes.HOME_Y, coord.getY());
@@ -184,7 +233,7 @@ public class CreateBrandenburgPopulation implements MATSimAppCommand {
 			person.addPlan(plan);
 			person.setSelectedPlan(plan);
 
-			population.addPerson(person);
+			persons.add(person);
 
 		}
 	}
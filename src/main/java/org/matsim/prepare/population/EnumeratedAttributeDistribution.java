@@ -23,11 +23,21 @@ public class EnumeratedAttributeDistribution<T> implements AttributeDistribution
 	 * @param probabilities map of attributes to their probabilities.
 	 */
 	public EnumeratedAttributeDistribution(Map<T, Double> probabilities) {
+		this(probabilities, 0);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param probabilities map of attributes to their probabilities.
+	 * @param seed          seed of the random generator.
+	 */
+	public EnumeratedAttributeDistribution(Map<T, Double> probabilities, long seed) {
 		List<Pair<T, Double>> pairs = probabilities.entrySet().stream().map(
 				e -> new Pair<>(e.getKey(), e.getValue())
 		).collect(Collectors.toList());
 
-		dist = new EnumeratedDistribution<T>(new MersenneTwister(0), pairs);
+		dist = new EnumeratedDistribution<T>(new MersenneTwister(seed), pairs);
 	}
 
 	@Override
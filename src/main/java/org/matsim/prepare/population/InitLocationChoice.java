@@ -4,11 +4,9 @@ import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.index.strtree.STRtree;
 import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.TransportMode;
-import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.population.Activity;
 import org.matsim.api.core.v01.population.Person;
@@ -19,18 +17,20 @@ import org.matsim.application.options.ShpOptions;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
 import org.matsim.core.population.PopulationUtils;
-import org.matsim.core.population.algorithms.ParallelPersonAlgorithmUtils;
 import org.matsim.core.population.algorithms.PersonAlgorithm;
 import org.matsim.core.router.TripStructureUtils;
 import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.facilities.ActivityFacility;
+import org.matsim.prepare.LinkIndex;
+import org.matsim.prepare.ParallelOptions;
 import org.matsim.prepare.RunOpenBerlinCalibration;
 import org.opengis.feature.simple.SimpleFeature;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -77,19 +77,47 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 	@CommandLine.Mixin
 	private ShpOptions shp;
 
+	@CommandLine.Mixin
+	private ParallelOptions parallel = new ParallelOptions();
+
 	private FacilityIndex facilities;
 
-	private Long2ObjectMap<SimpleFeature> zones;
+	/**
+	 * Work facilities assigned to their zone.
+	 */
+	private ZonedFacilityIndex workZones;
+
+	/**
+	 * Commuter budgets, one for each generated plan.
+	 */
+	private CommuterAssignment[] commuters;
+
+	/**
+	 * Plans with a commuter target from the initial budget, which still need to be checked against the budget.
+	 */
+	private Queue<Commute> commutes;
 
-	private CommuterAssignment commuter;
+	/**
+	 * Car links that can be used for activities without facility.
+	 */
+	private LinkIndex links;
 
-	private Network network;
+	private AtomicLong total;
 
-	private ThreadLocal<Context> ctxs;
+	private AtomicLong warning;
 
-	private final AtomicLong total = new AtomicLong();
+	public InitLocationChoice() {
+	}
 
-	private final AtomicLong warning = new AtomicLong();
+	public InitLocationChoice(Path commuterPath, Path facilityPath, Path networkPath, ShpOptions shp, int k, double sample, long seed) {
+		this.commuterPath = commuterPath;
+		this.facilityPath = facilityPath;
+		this.networkPath = networkPath;
+		this.shp = shp;
+		this.k = k;
+		this.sample = sample;
+		this.seed = seed;
+	}
 
 	public static void main(String[] args) {
 		new InitLocationChoice().execute(args);
@@ -112,216 +140,284 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 			return 2;
 		}
 
+		init(parallel);
+
+		log.info("Using input file: {}", input);
+
+		Population population = PopulationFiles.read(input);
+		parallel.run(population, this);
+		assignCommuters();
+
+		log.info("Processed {} activities with {} warnings", total.get(), warning.get());
+
+		PopulationFiles.write(population, output);
+
+		return 0;
+	}
+
+	/**
+	 * Read network, facilities, zones and commuter data. Needs to be called before running the algorithm,
+	 * {@link #assignCommuters()} needs to be called after it.
+	 *
+	 * @param parallel runtime used to execute this algorithm, which will log its counters
+	 */
+	public void init(ParallelOptions parallel) {
+
 		Network completeNetwork = NetworkUtils.readNetwork(networkPath.toString());
 		TransportModeNetworkFilter filter = new TransportModeNetworkFilter(completeNetwork);
-		network = NetworkUtils.createNetwork();
+		Network network = NetworkUtils.createNetwork();
 		filter.filter(network, Set.of(TransportMode.car));
 
+		links = new LinkIndex(network, l -> !IGNORED_LINK_TYPES.contains(NetworkUtils.getType(l)));
+
 		facilities = new FacilityIndex(facilityPath.toString());
 
-		zones = new Long2ObjectOpenHashMap<>(shp.readFeatures().stream()
+		Long2ObjectMap<SimpleFeature> zones = new Long2ObjectOpenHashMap<>(shp.readFeatures().stream()
 			.collect(Collectors.toMap(ft -> Long.parseLong((String) ft.getAttribute("ARS")), ft -> ft)));
 
 		log.info("Read {} zones", zones.size());
 
-		log.info("Using input file: {}", input);
-
-		List<Population> populations = new ArrayList<>();
+		workZones = new ZonedFacilityIndex(zones, facilities.all.getFacilitiesForActivityType("work").values());
 
+		// Each plan has its own commuter budget, as if the plans were generated one after another
+		commuters = new CommuterAssignment[k];
 		for (int i = 0; i < k; i++) {
+			commuters[i] = new CommuterAssignment(commuterPath, sample);
+		}
 
-			long seed = this.seed + i;
+		commutes = new ConcurrentLinkedQueue<>();
 
-			log.info("Generating plan {} with seed {}", i , seed);
+		total = parallel.counter("activities");
+		warning = parallel.counter("warnings");
+	}
 
-			ctxs = ThreadLocal.withInitial(() -> new Context(seed));
-			commuter = new CommuterAssignment(zones, commuterPath, sample);
+	/**
+	 * Generate k plans from the selected plan of the person. The first plan stays selected.
+	 */
+	@Override
+	public void run(Person person) {
 
-			Population population = PopulationUtils.readPopulation(input.toString());
-			ParallelPersonAlgorithmUtils.run(population, 8, this);
+		Plan template = person.getSelectedPlan();
 
-			populations.add(population);
+		// Copies need to be created before the template is modified
+		List<Plan> plans = new ArrayList<>(k);
+		plans.add(template);
+		for (int i = 1; i < k; i++) {
+			Plan copy = PopulationUtils.createPlan(person);
+			PopulationUtils.copyFromTo(template, copy);
+			plans.add(copy);
+		}
 
-			log.info("Processed {} activities with {} warnings", total.get(), warning.get());
+		for (int i = 0; i < k; i++) {
+			assignLocations(person, plans.get(i), i, false);
 
-			total.set(0);
-			warning.set(0);
+			if (i > 0)
+				person.addPlan(plans.get(i));
 		}
+	}
 
+	/**
+	 * Check the commuter targets of all plans against the budget, which is done in order of person id and plan index.
+	 * Plans that exceed the budget of their target are assigned again using the remaining budget.
+	 * Commuter targets are therefore independent of the number of threads and the order in which persons were processed.
+	 */
+	public void assignCommuters() {
 
-		Population population = populations.get(0);
-
-		// Merge all plans into the first population
-		for (int i = 1; i < populations.size(); i++) {
+		List<Commute> all = new ArrayList<>(commutes);
+		commutes.clear();
 
-			Population pop = populations.get(i);
+		all.sort(Comparator.comparing((Commute c) -> c.person().getId().toString()).thenComparingInt(Commute::planIndex));
 
-			for (Person p : pop.getPersons().values()) {
-				Person destPerson = population.getPersons().get(p.getId());
-				if (destPerson == null) {
-					log.warn("Person {} not present in all populations.", p.getId());
-					continue;
-				}
+		List<Commute> exceeded = new ArrayList<>();
+		for (Commute c : all) {
+			if (!commuters[c.planIndex()].consume(c.entry()))
+				exceeded.add(c);
+		}
 
-				destPerson.addPlan(p.getPlans().get(0));
+		for (Commute c : exceeded) {
+			for (Activity act : c.activities()) {
+				act.setLinkId(Id.createLinkId("unassigned"));
+				act.setFacilityId(null);
+				act.setCoord(null);
 			}
-		}
 
-		PopulationUtils.writePopulation(population, output.toString());
+			assignLocations(c.person(), c.plan(), c.planIndex(), true);
+		}
 
-		return 0;
+		log.info("Checked {} commuter targets, {} exceeded the budget and were assigned again", all.size(), exceeded.size());
 	}
 
-	@Override
-	public void run(Person person) {
+	/**
+	 * Assign locations to all unassigned activities of a plan.
+	 *
+	 * @param remaining whether commuter targets are drawn from the remaining budget,
+	 *                  otherwise they are drawn from the initial budget and checked later by {@link #assignCommuters()}
+	 */
+	private void assignLocations(Person person, Plan plan, int planIndex, boolean remaining) {
 
 		Coord homeCoord = Attributes.getHomeCoord(person);
 
 		// Activities that only occur on one place per person
 		Map<String, ActivityFacility> fixedLocations = new HashMap<>();
-		Context ctx = ctxs.get();
+		SplittableRandom rnd = PersonRandom.create(seed, "location-choice", person.getId(), planIndex);
+		CommuterAssignment commuter = commuters[planIndex];
+
+		List<Activity> acts = TripStructureUtils.getActivities(plan, TripStructureUtils.StageActivityHandling.ExcludeStageActivities);
 
-		for (Plan plan : person.getPlans()) {
-			List<Activity> acts = TripStructureUtils.getActivities(plan, TripStructureUtils.StageActivityHandling.ExcludeStageActivities);
+		// Activities assigned by this method and the commuter entry, which are needed if the plan has to be assigned again
+		List<Activity> assigned = new ArrayList<>();
+		int entry = -1;
 
-			// keep track of the current coordinate
-			Coord lastCoord = homeCoord;
+		// keep track of the current coordinate
+		Coord lastCoord = homeCoord;
 
-			for (Activity act : acts) {
+		for (Activity act : acts) {
 
-				String type = act.getType();
+			String type = act.getType();
 
+			if (!remaining)
 				total.incrementAndGet();
 
-				if (Attributes.isLinkUnassigned(act.getLinkId())) {
-					act.setLinkId(null);
-					ActivityFacility location = null;
+			if (Attributes.isLinkUnassigned(act.getLinkId())) {
+				act.setLinkId(null);
+				assigned.add(act);
+				ActivityFacility location = null;
 
-					// target leg distance in km
-					Object origDist = act.getAttributes().getAttribute("orig_dist");
+				// target leg distance in km
+				Object origDist = act.getAttributes().getAttribute("orig_dist");
 
-					// Distance will be reduced
-					double dist = (double) origDist * 1000 / DETOUR_FACTOR;
+				// Distance will be reduced
+				double dist = (double) origDist * 1000 / DETOUR_FACTOR;
 
-					if (fixedLocations.containsKey(type)) {
-						location = fixedLocations.get(type);
-					}
+				if (fixedLocations.containsKey(type)) {
+					location = fixedLocations.get(type);
+				}
 
-					if (location == null && type.equals("work")) {
-						// sample work commute
-						location = sampleCommute(ctx, dist, lastCoord, (long) person.getAttributes().getAttribute(Attributes.ARS));
-					}
+				if (location == null && type.equals("work")) {
+					// sample work commute
+					CommuterAssignment.Target target = sampleCommute(commuter, rnd, dist, lastCoord,
+						(long) person.getAttributes().getAttribute(Attributes.ARS), remaining);
 
-					if (location == null && facilities.index.containsKey(type)) {
-						// Needed for lambda
-						final Coord refCoord = lastCoord;
+					if (target != null) {
+						location = target.facility();
+						entry = target.entry();
+					}
+				}
 
-						List<ActivityFacility> query = facilities.index.get(type).query(MGC.coord2Point(lastCoord).buffer(dist * 1.2).getEnvelopeInternal());
+				if (location == null && facilities.index.containsKey(type)) {
+					// Needed for lambda
+					final Coord refCoord = lastCoord;
 
-						// Distance should be within the bounds
-						List<ActivityFacility> res = query.stream().filter(f -> checkDistanceBound(dist, refCoord, f.getCoord(), 1)).toList();
+					List<ActivityFacility> query = facilities.index.get(type).query(MGC.coord2Point(lastCoord).buffer(dist * 1.2).getEnvelopeInternal());
 
-						if (!res.isEmpty()) {
-							location = query.get(ctx.rnd.nextInt(query.size()));
-						}
+					// Distance should be within the bounds
+					List<ActivityFacility> res = query.stream().filter(f -> checkDistanceBound(dist, refCoord, f.getCoord(), 1)).toList();
 
-						// Try with larger bounds again
-						if (location == null) {
-							res = query.stream().filter(f -> checkDistanceBound(dist, refCoord, f.getCoord(), 1.2)).toList();
-							if (!res.isEmpty()) {
-								location = query.get(ctx.rnd.nextInt(query.size()));
-							}
-						}
+					if (!res.isEmpty()) {
+						location = query.get(rnd.nextInt(query.size()));
 					}
 
+					// Try with larger bounds again
 					if (location == null) {
-						// sample only coordinate if nothing else is possible
-						// Activities without facility entry, or where no facility could be found
-						Coord c = sampleLink(ctx.rnd, dist, lastCoord);
-						act.setCoord(c);
-						lastCoord = c;
-
-						// An activity with type could not be put into correct facility.
-						if (facilities.index.containsKey(type)) {
-							warning.incrementAndGet();
+						res = query.stream().filter(f -> checkDistanceBound(dist, refCoord, f.getCoord(), 1.2)).toList();
+						if (!res.isEmpty()) {
+							location = query.get(rnd.nextInt(query.size()));
 						}
-
-						continue;
 					}
+				}
 
-					if (type.equals("work") || type.startsWith("edu"))
-						fixedLocations.put(type, location);
+				if (location == null) {
+					// sample only coordinate if nothing else is possible
+					// Activities without facility entry, or where no facility could be found
+					Coord c = sampleLink(rnd, dist, lastCoord);
+					act.setCoord(c);
+					lastCoord = c;
+
+					// An activity with type could not be put into correct facility.
+					if (facilities.index.containsKey(type)) {
+						warning.incrementAndGet();
+					}
 
-					act.setFacilityId(location.getId());
+					continue;
 				}
 
-				if (act.getCoord() != null)
-					lastCoord = act.getCoord();
-				else if (act.getFacilityId() != null)
-					lastCoord = facilities.all.getFacilities().get(act.getFacilityId()).getCoord();
+				if (type.equals("work") || type.startsWith("edu"))
+					fixedLocations.put(type, location);
 
+				act.setFacilityId(location.getId());
 			}
+
+			if (act.getCoord() != null)
+				lastCoord = act.getCoord();
+			else if (act.getFacilityId() != null)
+				lastCoord = facilities.all.getFacilities().get(act.getFacilityId()).getCoord();
+
 		}
+
+		if (entry != -1)
+			commutes.add(new Commute(person, plan, planIndex, entry, assigned));
 	}
 
 	/**
 	 * Sample work place by using commute and distance information.
+	 * The commuter entry of the result is only set if the target still needs to be checked against the budget.
 	 */
-	private ActivityFacility sampleCommute(Context ctx, double dist, Coord refCoord, long ars) {
-
-		STRtree index = facilities.index.get("work");
+	private CommuterAssignment.Target sampleCommute(CommuterAssignment commuter, SplittableRandom rnd, double dist, Coord refCoord, long ars,
+													boolean remaining) {
 
-		ActivityFacility workPlace = null;
+		CommuterAssignment.Target target = null;
 
 		// Only larger distances can be commuters to other zones
 		if (dist > 3000) {
-			workPlace = commuter.selectTarget(ctx.rnd, ars, dist, MGC.coord2Point(refCoord), zone -> sampleZone(index, dist, refCoord, zone, ctx.rnd));
+			CommuterAssignment.Sampler sampler = zone -> {
+				// Zones too far away don't need to be considered
+				if (workZones.distance(zone, refCoord) > dist * 1.2)
+					return null;
+
+				return sampleZone(dist, refCoord, zone, rnd);
+			};
+
+			if (remaining) {
+				ActivityFacility workPlace = commuter.selectTarget(rnd, ars, sampler);
+				if (workPlace != null)
+					target = new CommuterAssignment.Target(-1, workPlace);
+			} else
+				target = commuter.sampleTarget(rnd, ars, sampler);
 		}
 
-		if (workPlace == null) {
+		if (target == null) {
 			// Try selecting within same zone
-			workPlace = sampleZone(index, dist, refCoord, (Geometry) zones.get(ars).getDefaultGeometry(), ctx.rnd);
+			ActivityFacility workPlace = sampleZone(dist, refCoord, ars, rnd);
+			if (workPlace != null)
+				target = new CommuterAssignment.Target(-1, workPlace);
 		}
 
-		return workPlace;
+		return target;
 	}
 
 	/**
-	 * Sample a coordinate for which the associated link is not one of the ignored types.
+	 * Sample a coordinate in target distance and snap it to the nearest link that is not one of the ignored types.
+	 * The sampled coordinate is used if there is no such link.
 	 */
 	private Coord sampleLink(SplittableRandom rnd, double dist, Coord origin) {
-
-		Coord coord = null;
-		for (int i = 0; i < 500; i++) {
-			coord = rndCoord(rnd, dist, origin);
-			Link link = NetworkUtils.getNearestLink(network, coord);
-			if (!IGNORED_LINK_TYPES.contains(NetworkUtils.getType(link)))
-				break;
-		}
-
-		return coord;
+		Coord coord = rndCoord(rnd, dist, origin);
+		Coord snapped = links.snap(coord);
+		return RunOpenBerlinCalibration.roundCoord(snapped != null ? snapped : coord);
 	}
 
 	/**
-	 * Only samples randomly from the zone, ignoring the distance.
+	 * Samples randomly a work facility within the zone and distance bounds.
 	 */
-	private ActivityFacility sampleZone(STRtree index, double dist, Coord refCoord, Geometry zone, SplittableRandom rnd) {
+	private ActivityFacility sampleZone(double dist, Coord refCoord, long zone, SplittableRandom rnd) {
 
-		ActivityFacility location = null;
+		List<ActivityFacility> query = workZones.query(zone, MGC.coord2Point(refCoord).buffer(dist * 1.2).getEnvelopeInternal());
 
-		List<ActivityFacility> query = index.query(MGC.coord2Point(refCoord).buffer(dist * 1.2).getEnvelopeInternal());
+		query = query.stream().filter(f -> checkDistanceBound(dist, refCoord, f.getCoord(), 1)).toList();
 
-		query = query.stream().filter(f -> checkDistanceBound(dist, refCoord, f.getCoord(), 1)).collect(Collectors.toList());
-
-		while (!query.isEmpty()) {
-			ActivityFacility af = query.remove(rnd.nextInt(query.size()));
-			if (zone.contains(MGC.coord2Point(af.getCoord()))) {
-				location = af;
-				break;
-			}
-		}
+		if (query.isEmpty())
+			return null;
 
-		return location;
+		return query.get(rnd.nextInt(query.size()));
 	}
 
 	/**
@@ -335,12 +431,12 @@ public class InitLocationChoice implements MATSimAppCommand, PersonAlgorithm {
 		return dist >= lower && dist <= upper;
 	}
 
-	private static final class Context {
-		private final SplittableRandom rnd;
-
-		Context(long seed) {
-			rnd = new SplittableRandom(seed);
-		}
+	/**
+	 * Plan with a commuter target that has not been subtracted from the budget yet.
+	 *
+	 * @param activities activities that have been assigned together with the target
+	 */
+	private record Commute(Person person, Plan plan, int planIndex, int entry, List<Activity> activities) {
 	}
 
 }
@@ -12,7 +12,6 @@ import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
-import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.population.algorithms.PersonAlgorithm;
 import picocli.CommandLine;
 
@@ -41,6 +40,13 @@ public class LookupRegioStaR implements MATSimAppCommand, PersonAlgorithm {
 
 	private Int2IntMap lookup;
 
+	public LookupRegioStaR() {
+	}
+
+	public LookupRegioStaR(Path regiostar) {
+		this.regiostar = regiostar;
+	}
+
 	public static void main(String[] args) {
 		new LookupRegioStaR().execute(args);
 	}
@@ -53,18 +59,25 @@ public class LookupRegioStaR implements MATSimAppCommand, PersonAlgorithm {
 			return 2;
 		}
 
-		lookup = readXls();
-		log.info("Read {} entries from xls.", lookup.size());
+		init();
 
-		Population population = PopulationUtils.readPopulation(input.toString());
+		Population population = PopulationFiles.read(input);
 
 		population.getPersons().values().forEach(this::run);
 
-		PopulationUtils.writePopulation(population, output.toString());
+		PopulationFiles.write(population, output);
 
 		return 0;
 	}
 
+	/**
+	 * Read the lookup table. Needs to be called before running the algorithm.
+	 */
+	public void init() throws IOException, InvalidFormatException {
+		lookup = readXls();
+		log.info("Read {} entries from xls.", lookup.size());
+	}
+
 	@Override
 	public void run(Person person) {
 		int gem = (int) person.getAttributes().getAttribute(Attributes.GEM);
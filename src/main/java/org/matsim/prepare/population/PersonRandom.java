@@ -0,0 +1,60 @@
+package org.matsim.prepare.population;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+/**
+ * Creates random number generators that only depend on the seed, the stream, the person (or any other key) and the plan index.
+ * Results of parallel person algorithms are therefore independent of thread scheduling and the number of threads.
+ * Each command uses its own stream name, so that commands running with the same seed draw different numbers for the same person.
+ */
+public final class PersonRandom {
+
+	private PersonRandom() {
+	}
+
+	/**
+	 * Create a new independent random generator for one person and plan.
+	 */
+	public static SplittableRandom create(long seed, String stream, Id<Person> person, int planIndex) {
+		return create(seed, stream, person.toString(), planIndex);
+	}
+
+	/**
+	 * Create a new independent random generator for any other key, e.g. a zone id.
+	 */
+	public static SplittableRandom create(long seed, String stream, String key, int index) {
+
+		long h = mix64(seed);
+		h = mix64(h ^ hash64(stream));
+		h = mix64(h ^ hash64(key));
+		h = mix64(h ^ index);
+
+		return new SplittableRandom(h);
+	}
+
+	/**
+	 * FNV-1a hash of the utf-8 bytes of a string.
+	 */
+	private static long hash64(String value) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * Finalizer of the 64-bit MurmurHash3, which spreads entropy over all bits.
+	 */
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return z ^ (z >>> 33);
+	}
+
+}
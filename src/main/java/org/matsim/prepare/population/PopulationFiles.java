@@ -0,0 +1,48 @@
+package org.matsim.prepare.population;
+
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.population.PopulationUtils;
+
+import java.nio.file.Path;
+
+/**
+ * Reads and writes populations either as MATSim xml or in the binary format, depending on the file extension.
+ */
+public final class PopulationFiles {
+
+	/**
+	 * Files with this extension are read and written with {@link BinaryPopulationReader} and {@link BinaryPopulationWriter}.
+	 */
+	public static final String BINARY_EXTENSION = ".bin";
+
+	private PopulationFiles() {
+	}
+
+	/**
+	 * Whether the path refers to a binary population.
+	 */
+	public static boolean isBinary(Path path) {
+		return path.getFileName().toString().endsWith(BINARY_EXTENSION);
+	}
+
+	/**
+	 * Read a population from xml or binary format.
+	 */
+	public static Population read(Path path) {
+		if (isBinary(path))
+			return BinaryPopulationReader.read(path);
+
+		return PopulationUtils.readPopulation(path.toString());
+	}
+
+	/**
+	 * Write a population in xml or binary format.
+	 */
+	public static void write(Population population, Path path) {
+		if (isBinary(path))
+			new BinaryPopulationWriter().write(population, path);
+		else
+			PopulationUtils.writePopulation(population, path.toString());
+	}
+
+}
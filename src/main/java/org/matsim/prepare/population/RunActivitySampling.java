@@ -1,12 +1,7 @@
 package org.matsim.prepare.population;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntList;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Coord;
@@ -15,17 +10,16 @@ import org.matsim.api.core.v01.population.*;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.CsvOptions;
 import org.matsim.core.population.PersonUtils;
-import org.matsim.core.population.PopulationUtils;
-import org.matsim.core.population.algorithms.ParallelPersonAlgorithmUtils;
 import org.matsim.core.population.algorithms.PersonAlgorithm;
 import org.matsim.core.router.TripStructureUtils;
+import org.matsim.prepare.ParallelOptions;
 import org.matsim.prepare.RunOpenBerlinCalibration;
 import picocli.CommandLine;
 
+import java.io.IOException;
 import java.nio.file.Path;
-import java.util.*;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
+import java.util.List;
+import java.util.SplittableRandom;
 
 @CommandLine.Command(
 	name = "activity-sampling",
@@ -35,12 +29,10 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 
 	private static final Logger log = LogManager.getLogger(RunActivitySampling.class);
 	private final CsvOptions csv = new CsvOptions(CSVFormat.Predefined.Default);
-	private final Map<Key, IntList> groups = new HashMap<>();
-	private final Int2ObjectMap<CSVRecord> persons = new Int2ObjectOpenHashMap<>();
 	/**
-	 * Maps person index to list of activities.
+	 * Survey persons and their activities.
 	 */
-	private final Int2ObjectMap<List<CSVRecord>> activities = new Int2ObjectOpenHashMap<>();
+	private final ActivityTable table = new ActivityTable();
 	@CommandLine.Option(names = "--input", description = "Path to input population", required = true)
 	private Path input;
 	@CommandLine.Option(names = "--output", description = "Output path for population", required = true)
@@ -51,10 +43,20 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 	private Path activityPath;
 	@CommandLine.Option(names = "--seed", description = "Seed used to sample plans", defaultValue = "1")
 	private long seed;
-	private ThreadLocal<Context> ctxs;
+	@CommandLine.Mixin
+	private ParallelOptions parallel = new ParallelOptions();
 
 	private PopulationFactory factory;
 
+	public RunActivitySampling() {
+	}
+
+	public RunActivitySampling(Path personsPath, Path activityPath, long seed) {
+		this.personsPath = personsPath;
+		this.activityPath = activityPath;
+		this.seed = seed;
+	}
+
 	public static void main(String[] args) {
 		new RunActivitySampling().execute(args);
 	}
@@ -62,22 +64,13 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 	@Override
 	public Integer call() throws Exception {
 
-		Population population = PopulationUtils.readPopulation(input.toString());
+		Population population = PopulationFiles.read(input);
 
-		try (CSVParser parser = csv.createParser(personsPath)) {
-			buildSubgroups(parser);
-		}
+		init(population.getFactory());
 
-		try (CSVParser parser = csv.createParser(activityPath)) {
-			readActivities(parser);
-		}
+		parallel.run(population, this);
 
-		ctxs = ThreadLocal.withInitial(() -> new Context(new SplittableRandom(seed)));
-		factory = population.getFactory();
-
-		ParallelPersonAlgorithmUtils.run(population, 8, this);
-
-		PopulationUtils.writePopulation(population, output.toString());
+		PopulationFiles.write(population, output);
 
 		double atHome = 0;
 		for (Person person : population.getPersons().values()) {
@@ -95,160 +88,117 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 	}
 
 	/**
-	 * Create subpopulations for sampling.
+	 * Read the survey tables. Needs to be called before running the algorithm.
+	 *
+	 * @param factory factory used to create the sampled plans
 	 */
-	private void buildSubgroups(CSVParser csv) {
-
-		int i = 0;
-
-		for (CSVRecord r : csv) {
+	public void init(PopulationFactory factory) throws IOException {
 
-			int idx = Integer.parseInt(r.get("idx"));
-			int regionType = Integer.parseInt(r.get("region_type"));
-			String gender = r.get("gender");
-			String employment = r.get("employment");
-			int age = Integer.parseInt(r.get("age"));
+		try (CSVParser parser = csv.createParser(personsPath)) {
+			table.readPersons(parser);
+		}
 
-			Stream<Key> keys = createKey(gender, age, regionType, employment);
-			keys.forEach(key -> groups.computeIfAbsent(key, (k) -> new IntArrayList()).add(idx));
-			persons.put(idx, r);
-			i++;
+		try (CSVParser parser = csv.createParser(activityPath)) {
+			table.readActivities(parser);
 		}
 
-		log.info("Read {} persons from csv.", i);
+		this.factory = factory;
 	}
 
-	private void readActivities(CSVParser csv) {
-
-		int currentId = -1;
-		List<CSVRecord> current = null;
-
-		int i = 0;
-		for (CSVRecord r : csv) {
-
-			int pId = Integer.parseInt(r.get("p_id"));
-
-			if (pId != currentId) {
-				if (current != null)
-					activities.put(currentId, current);
-
-				currentId = pId;
-				current = new ArrayList<>();
-			}
-
-			current.add(r);
-			i++;
-		}
+	/**
+	 * Create the group key of a person. Returns -1 if the gender is not known.
+	 */
+	private int createKey(Person person) {
 
-		if (current != null && !current.isEmpty()) {
-			activities.put(currentId, current);
-		}
+		int age = PersonUtils.getAge(person);
+		int gender = age <= 10 ? ActivityTable.GENDER_ANY : table.gender(PersonUtils.getSex(person));
+		if (gender == -1)
+			return -1;
 
-		log.info("Read {} activities for {} persons", i, activities.size());
-	}
+		// Persons without employment attribute use the group of any employment status
+		int employed = ActivityTable.EMPLOYED_ANY;
+		Boolean isEmployed = PersonUtils.isEmployed(person);
+		if (age >= 18 && age <= 65 && isEmployed != null)
+			employed = isEmployed ? ActivityTable.EMPLOYED_TRUE : ActivityTable.EMPLOYED_FALSE;
 
-	private Stream<Key> createKey(String gender, int age, int regionType, String employment) {
-		if (age < 6) {
-			return IntStream.rangeClosed(0, 5).mapToObj(i -> new Key(null, i, regionType, null));
-		}
-		if (age <= 10) {
-			return IntStream.rangeClosed(6, 10).mapToObj(i -> new Key(null, i, regionType, null));
-		}
-		if (age < 18) {
-			return IntStream.rangeClosed(11, 18).mapToObj(i -> new Key(gender, i, regionType, null));
-		}
+		int regionType = (int) person.getAttributes().getAttribute(Attributes.RegioStaR7);
 
-		Boolean isEmployed = age > 65 ? null : !employment.equals("unemployed");
-		int min = Math.max(18, age - 6);
-		int max = Math.min(65, age + 6);
+		// Region types have been reduced to 1 and 3
+		if (regionType != 1)
+			regionType = 3;
 
-		// larger groups for older people
-		if (age > 65) {
-			min = Math.max(66, age - 10);
-			max = Math.min(99, age + 10);
-		}
+		if (age < 0 || age >= ActivityTable.MAX_AGE)
+			return -1;
 
-		return IntStream.rangeClosed(min, max).mapToObj(i -> new Key(gender, i, regionType, isEmployed));
+		return ActivityTable.key(gender, age, regionType, employed);
 	}
 
-	private Key createKey(Person person) {
+	/**
+	 * Find the group of a person, falling back to coarser groups without employment and gender if needed.
+	 */
+	private int[] findGroup(int key) {
 
-		Integer age = PersonUtils.getAge(person);
-		String gender = PersonUtils.getSex(person);
-		if (age <= 10)
-			gender = null;
+		int[] group = table.group(key);
+		if (group != null)
+			return group;
 
-		Boolean employed = PersonUtils.isEmployed(person);
-		if (age < 18 || age > 65)
-			employed = null;
+		int employed = key % 3;
+		int base = key - employed;
+		int gender = key / 3 / ActivityTable.REGION_TYPES / ActivityTable.MAX_AGE;
 
-		int regionType = (int) person.getAttributes().getAttribute(Attributes.RegioStaR7);
+		if (employed != ActivityTable.EMPLOYED_ANY) {
+			group = table.group(base + ActivityTable.EMPLOYED_ANY);
+			if (group != null)
+				return group;
+		}
 
-		// Region types have been reduced to 1 and 3
-		if (regionType != 1)
-			regionType = 3;
+		if (gender != ActivityTable.GENDER_ANY)
+			return table.group(base - gender * ActivityTable.MAX_AGE * ActivityTable.REGION_TYPES * 3);
 
-		return new Key(gender, age, regionType, employed);
+		return null;
 	}
 
 	@Override
 	public void run(Person person) {
 
-		SplittableRandom rnd = ctxs.get().rnd;
+		SplittableRandom rnd = PersonRandom.create(seed, "activity-sampling", person.getId(), 0);
 
-		Key key = createKey(person);
+		int key = createKey(person);
 
-		IntList subgroup = groups.get(key);
+		int[] subgroup = key == -1 ? null : findGroup(key);
 		if (subgroup == null) {
-			log.error("No subgroup found for key {}", key);
+			log.error("No subgroup found for person {} with key {}", person.getId(), key == -1 ? null : table.describe(key));
 			throw new IllegalStateException("Invalid entry");
 		}
 
-		if (subgroup.size() < 30) {
-			log.warn("Group {} has low sample size: {}", key, subgroup.size());
+		if (subgroup.length < 30) {
+			log.warn("Group {} has low sample size: {}", table.describe(key), subgroup.length);
 		}
 
-		int idx = subgroup.getInt(rnd.nextInt(subgroup.size()));
-		CSVRecord row = persons.get(idx);
-
-		PersonUtils.setCarAvail(person, row.get("car_avail").equals("True") ? "always" : "never");
-		PersonUtils.setLicence(person, row.get("driving_license").toLowerCase());
+		int row = subgroup[rnd.nextInt(subgroup.length)];
 
-		person.getAttributes().putAttribute(Attributes.BIKE_AVAIL, row.get("bike_avail").equals("True") ? "always" : "never");
-		person.getAttributes().putAttribute(Attributes.PT_ABO_AVAIL, row.get("pt_abo_avail").equals("True") ? "always" : "never");
+		PersonUtils.setCarAvail(person, table.carAvail(row) ? "always" : "never");
+		PersonUtils.setLicence(person, table.drivingLicense(row));
 
-		person.getAttributes().putAttribute(Attributes.EMPLOYMENT, row.get("employment"));
-		person.getAttributes().putAttribute(Attributes.RESTRICTED_MOBILITY, row.get("restricted_mobility").equals("True"));
-		person.getAttributes().putAttribute(Attributes.ECONOMIC_STATUS, row.get("economic_status"));
-		person.getAttributes().putAttribute(Attributes.HOUSEHOLD_SIZE, Integer.parseInt(row.get("n_persons")));
+		person.getAttributes().putAttribute(Attributes.BIKE_AVAIL, table.bikeAvail(row) ? "always" : "never");
+		person.getAttributes().putAttribute(Attributes.PT_ABO_AVAIL, table.ptAboAvail(row) ? "always" : "never");
 
+		person.getAttributes().putAttribute(Attributes.EMPLOYMENT, table.employment(row));
+		person.getAttributes().putAttribute(Attributes.RESTRICTED_MOBILITY, table.restrictedMobility(row));
+		person.getAttributes().putAttribute(Attributes.ECONOMIC_STATUS, table.economicStatus(row));
+		person.getAttributes().putAttribute(Attributes.HOUSEHOLD_SIZE, table.householdSize(row));
 
-		String mobile = row.get("mobile_on_day");
+		// ensure mobile agents have a valid plan, otherwise the stay home plan is kept
+		if (table.mobileOnDay(row)) {
 
-		// ensure mobile agents have a valid plan
-		switch (mobile.toLowerCase()) {
+			if (table.activityCount(row) == 0)
+				throw new AssertionError("No activities for mobile person " + table.idx(row));
 
-			case "true" -> {
-				List<CSVRecord> activities = this.activities.get(idx);
+			person.removePlan(person.getSelectedPlan());
+			Plan plan = createPlan(Attributes.getHomeCoord(person), row, rnd);
 
-				if (activities == null)
-					throw new AssertionError("No activities for mobile person " + idx);
-
-				if (activities.size() == 0)
-					throw new AssertionError("Activities for mobile agent can not be empty.");
-
-				person.removePlan(person.getSelectedPlan());
-				Plan plan = createPlan(Attributes.getHomeCoord(person), activities, rnd);
-
-				person.addPlan(plan);
-				person.setSelectedPlan(plan);
-			}
-
-			case "false" -> {
-				// Keep the stay home plan
-			}
-
-			default -> throw new AssertionError("Invalid mobile_on_day attribute " + mobile);
+			person.addPlan(plan);
+			person.setSelectedPlan(plan);
 		}
 	}
 
@@ -268,7 +218,7 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 		return minutes * 60 + rnd.nextInt(1200) - 600;
 	}
 
-	private Plan createPlan(Coord homeCoord, List<CSVRecord> activities, SplittableRandom rnd) {
+	private Plan createPlan(Coord homeCoord, int row, SplittableRandom rnd) {
 		Plan plan = factory.createPlan();
 
 		Activity a = null;
@@ -280,24 +230,27 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 		double homeDist = 0;
 		boolean arrivedHome = false;
 
-		for (int i = 0; i < activities.size(); i++) {
+		int start = table.activityStart(row);
+		int n = table.activityCount(row);
 
-			CSVRecord act = activities.get(i);
+		for (int i = 0; i < n; i++) {
 
-			String actType = act.get("type");
+			int act = start + i;
+
+			String actType = table.activityType(act);
 
 			// First and last activities that are other are changed to home
-			if (actType.equals("other") && (i == 0 || i == activities.size() - 1))
+			if (actType.equals("other") && (i == 0 || i == n - 1))
 				actType = "home";
 
-			int duration = Integer.parseInt(act.get("duration"));
+			int duration = table.duration(act);
 
 			if (actType.equals("home")) {
 				a = factory.createActivityFromCoord("home", homeCoord);
 			} else
 				a = factory.createActivityFromLinkId(actType, Id.createLinkId("unassigned"));
 
-			double legDuration = Double.parseDouble(act.get("leg_duration"));
+			double legDuration = table.legDuration(act);
 
 			if (plan.getPlanElements().isEmpty()) {
 				// Add little
@@ -324,7 +277,7 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 				startTime += seconds;
 			}
 
-			double legDist = Double.parseDouble(act.get("leg_dist"));
+			double legDist = table.legDist(act);
 
 			if (i > 0) {
 				a.getAttributes().putAttribute("orig_dist", legDist);
@@ -332,7 +285,7 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 			}
 
 			if (!plan.getPlanElements().isEmpty()) {
-				lastMode = act.get("leg_mode");
+				lastMode = table.legMode(act);
 
 				// other mode is initialized as walk
 				if (lastMode.equals("other"))
@@ -376,13 +329,4 @@ public class RunActivitySampling implements MATSimAppCommand, PersonAlgorithm {
 		return plan;
 	}
 
-	/**
-	 * Key used for sampling activities.
-	 */
-	private record Key(String gender, int age, int regionType, Boolean employed) {
-	}
-
-	private record Context(SplittableRandom rnd) {
-	}
-
 }
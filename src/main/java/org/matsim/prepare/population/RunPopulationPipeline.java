@@ -0,0 +1,161 @@
+package org.matsim.prepare.population;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.application.options.ShpOptions;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.scenario.ProjectionUtils;
+import org.matsim.prepare.CleanAttributes;
+import org.matsim.prepare.ParallelOptions;
+import org.matsim.run.RunOpenBerlinScenario;
+import picocli.CommandLine;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@CommandLine.Command(
+	name = "population-pipeline",
+	description = "Merge static populations, lookup RegioStaR, sample activities and assign initial locations in one pass."
+)
+public class RunPopulationPipeline implements MATSimAppCommand {
+
+	private static final Logger log = LogManager.getLogger(RunPopulationPipeline.class);
+
+	@CommandLine.Parameters(arity = "1..*", description = "Static populations to merge, e.g. created by berlin-population and brandenburg-population")
+	private List<Path> inputs;
+
+	@CommandLine.Option(names = "--output", description = "Path to output population", required = true)
+	private Path output;
+
+	@CommandLine.Option(names = "--xls", description = "Path to RegioStar Excel sheet", required = true)
+	private Path regiostar;
+
+	@CommandLine.Option(names = "--persons", description = "Path to person table", required = true)
+	private Path personsPath;
+
+	@CommandLine.Option(names = "--activities", description = "Path to activity table", required = true)
+	private Path activityPath;
+
+	@CommandLine.Option(names = "--commuter", description = "Path to commuter.csv", required = true)
+	private Path commuterPath;
+
+	@CommandLine.Option(names = "--facilities", description = "Path to facilities file", required = true)
+	private Path facilityPath;
+
+	@CommandLine.Option(names = "--network", description = "Path to network file", required = true)
+	private Path networkPath;
+
+	@CommandLine.Option(names = "--k", description = "Number of location choices to generate", defaultValue = "5")
+	private int k;
+
+	@CommandLine.Option(names = "--sample", description = "Sample size of the population", defaultValue = "0.25")
+	private double sample;
+
+	@CommandLine.Option(names = "--seed", description = "Seed used to sample activities and locations", defaultValue = "1")
+	private long seed;
+
+	@CommandLine.Option(names = "--clean-attributes", description = "Remove plan and plan element attributes at the end", defaultValue = "false")
+	private boolean cleanAttributes;
+
+	@CommandLine.Option(names = "--snapshots", description = "Directory to write the population after each stage. Stages are run one after another in this case.")
+	private Path snapshots;
+
+	@CommandLine.Mixin
+	private ShpOptions shp;
+
+	@CommandLine.Mixin
+	private ParallelOptions parallel = new ParallelOptions();
+
+	public static void main(String[] args) {
+		new RunPopulationPipeline().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		if (shp.getShapeFile() == null) {
+			log.error("Shape file with commuter zones is required.");
+			return 2;
+		}
+
+		Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+
+		for (Path input : inputs) {
+			Population pop = PopulationFiles.read(input);
+			for (Person person : pop.getPersons().values()) {
+				if (population.getPersons().containsKey(person.getId())) {
+					log.warn("Person {} from {} already exists, skipping.", person.getId(), input);
+					continue;
+				}
+
+				population.addPerson(person);
+			}
+		}
+
+		log.info("Merged {} persons from {} populations", population.getPersons().size(), inputs.size());
+
+		LookupRegioStaR regioStaR = new LookupRegioStaR(regiostar);
+		regioStaR.init();
+
+		RunActivitySampling activities = new RunActivitySampling(personsPath, activityPath, seed);
+		activities.init(population.getFactory());
+
+		InitLocationChoice locations = new InitLocationChoice(commuterPath, facilityPath, networkPath, shp, k, sample, seed);
+		locations.init(parallel);
+
+		Map<String, PersonAlgorithm> stages = new LinkedHashMap<>();
+		stages.put("static", regioStaR);
+		stages.put("activities", activities);
+		stages.put("initial", locations);
+
+		if (snapshots != null) {
+			Files.createDirectories(snapshots);
+
+			// Snapshots use the same format as the output
+			String ext = PopulationFiles.isBinary(output) ? ".plans" + PopulationFiles.BINARY_EXTENSION : ".plans.xml.gz";
+
+			for (Map.Entry<String, PersonAlgorithm> e : stages.entrySet()) {
+				log.info("Running stage {}", e.getKey());
+				parallel.run(population, e.getValue());
+
+				if (e.getValue() == locations)
+					locations.assignCommuters();
+
+				write(population, snapshots.resolve(e.getKey() + ext));
+			}
+
+		} else {
+			// All stages are applied to each person before continuing with the next one
+			parallel.run(population, person -> {
+				for (PersonAlgorithm stage : stages.values()) {
+					stage.run(person);
+				}
+			});
+
+			locations.assignCommuters();
+		}
+
+		// Attributes are needed until commuters have been assigned
+		if (cleanAttributes)
+			parallel.run(population, new CleanAttributes());
+
+		write(population, output);
+
+		return 0;
+	}
+
+	private static void write(Population population, Path path) {
+		PopulationUtils.sortPersons(population);
+		ProjectionUtils.putCRS(population, RunOpenBerlinScenario.CRS);
+		PopulationFiles.write(population, path);
+	}
+
+}
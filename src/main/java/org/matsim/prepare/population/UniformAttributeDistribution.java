@@ -15,8 +15,12 @@ public class UniformAttributeDistribution<T> implements AttributeDistribution<T>
 	}
 
 	public UniformAttributeDistribution(Collection<T> attributes) {
+		this(attributes, 0);
+	}
+
+	public UniformAttributeDistribution(Collection<T> attributes, long seed) {
 		this.attributes = new ArrayList<>(attributes);
-		this.rnd = new Random(0);
+		this.rnd = new Random(seed);
 	}
 
 	@Override
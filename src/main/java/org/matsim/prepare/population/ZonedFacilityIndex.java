@@ -0,0 +1,112 @@
+package org.matsim.prepare.population;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.core.utils.geometry.geotools.MGC;
+import org.matsim.facilities.ActivityFacility;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Spatial index of facilities, grouped by the zone (ARS) they are located in.
+ * The zone of each facility is determined only once, so that sampling within a zone does not need any point-in-polygon tests.
+ */
+final class ZonedFacilityIndex {
+
+	private static final Logger log = LogManager.getLogger(ZonedFacilityIndex.class);
+
+	/**
+	 * Maps zone to the facilities located within.
+	 */
+	private final Long2ObjectMap<Zone> index = new Long2ObjectOpenHashMap<>();
+
+	ZonedFacilityIndex(Long2ObjectMap<SimpleFeature> zones, Collection<? extends ActivityFacility> facilities) {
+
+		STRtree zoneIndex = new STRtree();
+		for (Long2ObjectMap.Entry<SimpleFeature> e : zones.long2ObjectEntrySet()) {
+			Geometry geom = (Geometry) e.getValue().getDefaultGeometry();
+			zoneIndex.insert(geom.getEnvelopeInternal(), new PreparedZone(e.getLongKey(), PreparedGeometryFactory.prepare(geom)));
+		}
+
+		zoneIndex.build();
+
+		int unassigned = 0;
+		for (ActivityFacility af : facilities) {
+
+			Point p = MGC.coord2Point(af.getCoord());
+			List<PreparedZone> candidates = zoneIndex.query(p.getEnvelopeInternal());
+
+			PreparedZone match = null;
+			for (PreparedZone candidate : candidates) {
+				if (candidate.geometry.contains(p)) {
+					match = candidate;
+					break;
+				}
+			}
+
+			if (match == null) {
+				unassigned++;
+				continue;
+			}
+
+			Zone zone = index.computeIfAbsent(match.ars, k -> new Zone());
+			zone.index.insert(p.getEnvelopeInternal(), af);
+			zone.bounds.expandToInclude(p.getCoordinate());
+		}
+
+		index.values().forEach(z -> z.index.build());
+
+		log.info("Assigned {} facilities to {} zones, {} facilities are outside of all zones",
+			facilities.size() - unassigned, index.size(), unassigned);
+	}
+
+	/**
+	 * Distance from coordinate to the bounding box of all facilities in the zone. This is only a lower bound of the distance to the nearest facility,
+	 * and zero if the coordinate is inside the box. Returns {@link Double#POSITIVE_INFINITY} if the zone contains no facilities.
+	 */
+	double distance(long ars, Coord coord) {
+		Zone zone = index.get(ars);
+		if (zone == null)
+			return Double.POSITIVE_INFINITY;
+
+		return zone.bounds.distance(new Envelope(coord.getX(), coord.getX(), coord.getY(), coord.getY()));
+	}
+
+	/**
+	 * Query all facilities of a zone within the given envelope.
+	 */
+	@SuppressWarnings("unchecked")
+	List<ActivityFacility> query(long ars, Envelope envelope) {
+		Zone zone = index.get(ars);
+		if (zone == null)
+			return List.of();
+
+		return zone.index.query(envelope);
+	}
+
+	private record PreparedZone(long ars, PreparedGeometry geometry) {
+	}
+
+	private static final class Zone {
+
+		private final STRtree index = new STRtree();
+
+		/**
+		 * Bounding box of all contained facilities.
+		 */
+		private final Envelope bounds = new Envelope();
+
+	}
+
+}
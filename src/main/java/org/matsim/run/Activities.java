@@ -1,7 +1,10 @@
 package org.matsim.run;
 
+import com.google.inject.Scopes;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.groups.PlanCalcScoreConfigGroup;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.scoring.functions.ScoringParametersForPerson;
 
 /**
  * Defines available activity types.
@@ -64,6 +67,9 @@ public enum Activities {
 
 	/**
 	 * Add required activity params for the scenario.
+	 *
+	 * @param splitTypes add params for all types split by typical duration to the config. If false, only the base types are added.
+	 *                   Split types can then be provided by binding {@link ActivityScoringParameters}, see {@link #createScoringModule()}.
 	 */
 	public static void addScoringParams(Config config, boolean splitTypes) {
 
@@ -72,7 +78,7 @@ public enum Activities {
 			config.planCalcScore().addActivityParams(value.apply(new PlanCalcScoreConfigGroup.ActivityParams(value.name())).setTypicalDuration(6 * 3600));
 
 			if (splitTypes)
-				for (long ii = 600; ii <= 97200; ii += 600) {
+				for (long ii = ActivityScoringParameters.BIN_SIZE; ii <= ActivityScoringParameters.MAX_DURATION; ii += ActivityScoringParameters.BIN_SIZE) {
 					config.planCalcScore().addActivityParams(value.apply(new PlanCalcScoreConfigGroup.ActivityParams(value.name() + "_" + ii).setTypicalDuration(ii)));
 				}
 		}
@@ -88,4 +94,16 @@ public enum Activities {
 
 	}
 
+	/**
+	 * Module providing scoring parameters of split activity types, which are not defined in the config.
+	 */
+	public static AbstractModule createScoringModule() {
+		return new AbstractModule() {
+			@Override
+			public void install() {
+				bind(ScoringParametersForPerson.class).to(ActivityScoringParameters.class).in(Scopes.SINGLETON);
+			}
+		};
+	}
+
 }
@@ -0,0 +1,151 @@
+package org.matsim.run;
+
+import com.google.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.groups.PlanCalcScoreConfigGroup;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.scoring.functions.ActivityUtilityParameters;
+import org.matsim.core.scoring.functions.ScoringParameters;
+import org.matsim.core.scoring.functions.ScoringParametersForPerson;
+import org.matsim.pt.PtConstants;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Provides scoring parameters for activity types that are split by their typical duration, e.g. "work_3600".
+ * Instead of adding parameters for all types and durations to the config, parameters are derived from the base activity type and the duration suffix.
+ * They are created on demand, only for types present in the population, and cached in an array indexed by type and duration bin.
+ */
+public final class ActivityScoringParameters implements ScoringParametersForPerson {
+
+	/**
+	 * Size of the duration bins in seconds.
+	 */
+	static final int BIN_SIZE = 600;
+
+	/**
+	 * Largest typical duration of split types in seconds.
+	 */
+	static final int MAX_DURATION = 97200;
+
+	private static final int BINS = MAX_DURATION / BIN_SIZE;
+
+	private static final Logger log = LogManager.getLogger(ActivityScoringParameters.class);
+
+	private final Config config;
+	private final Scenario scenario;
+
+	/**
+	 * Parameters of split types, index is type ordinal * BINS + bin.
+	 */
+	private final ActivityUtilityParameters[] cache = new ActivityUtilityParameters[Activities.values().length * BINS];
+
+	private final Map<String, ScoringParameters> params = new ConcurrentHashMap<>();
+
+	/**
+	 * Split types used in the population.
+	 */
+	private Set<String> types;
+
+	@Inject
+	ActivityScoringParameters(Scenario scenario) {
+		this.scenario = scenario;
+		this.config = scenario.getConfig();
+	}
+
+	/**
+	 * Index of a split type, e.g. "work_3600", in the parameter array. Returns -1 if the type is not split by duration.
+	 */
+	static int index(String type) {
+
+		int idx = type.lastIndexOf('_');
+		if (idx < 0)
+			return -1;
+
+		Activities base;
+		long duration;
+		try {
+			base = Activities.valueOf(type.substring(0, idx));
+			duration = Long.parseLong(type.substring(idx + 1));
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+
+		if (duration < BIN_SIZE || duration > MAX_DURATION || duration % BIN_SIZE != 0)
+			return -1;
+
+		return base.ordinal() * BINS + (int) (duration / BIN_SIZE) - 1;
+	}
+
+	@Override
+	public ScoringParameters getScoringParameters(Person person) {
+		// Persons without subpopulation use the default parameters, the map does not allow null keys
+		String subpopulation = PopulationUtils.getSubpopulation(person);
+		return params.computeIfAbsent(subpopulation == null ? "" : subpopulation, k -> build(subpopulation));
+	}
+
+	private synchronized ScoringParameters build(String subpopulation) {
+
+		if (types == null) {
+			types = new TreeSet<>();
+			for (Person person : scenario.getPopulation().getPersons().values()) {
+				for (Plan plan : person.getPlans()) {
+					for (Activity act : TripStructureUtils.getActivities(plan, TripStructureUtils.StageActivityHandling.ExcludeStageActivities)) {
+						if (index(act.getType()) >= 0)
+							types.add(act.getType());
+					}
+				}
+			}
+
+			log.info("Population contains {} activity types split by duration", types.size());
+		}
+
+		PlanCalcScoreConfigGroup scoring = config.planCalcScore();
+		ScoringParameters.Builder builder = new ScoringParameters.Builder(scoring, scoring.getScoringParameters(subpopulation), config.scenario());
+
+		if (config.transit().isUseTransit()) {
+			PlanCalcScoreConfigGroup.ActivityParams transit = new PlanCalcScoreConfigGroup.ActivityParams(PtConstants.TRANSIT_ACTIVITY_TYPE);
+			transit.setTypicalDuration(120.0);
+			transit.setOpeningTime(0.);
+			transit.setClosingTime(0.);
+
+			ActivityUtilityParameters.Builder transitBuilder = new ActivityUtilityParameters.Builder(transit);
+			transitBuilder.setScoreAtAll(false);
+			builder.setActivityParameters(PtConstants.TRANSIT_ACTIVITY_TYPE, transitBuilder);
+		}
+
+		for (String type : types) {
+			// Explicitly configured parameters take precedence
+			if (scoring.getScoringParameters(subpopulation).getActivityParams(type) == null)
+				builder.setActivityParameters(type, getActivityParams(type));
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Return the cached parameters of a split type. Parameters are derived from the base type and the duration bin.
+	 */
+	private ActivityUtilityParameters getActivityParams(String type) {
+
+		int i = index(type);
+		if (cache[i] == null) {
+			Activities base = Activities.values()[i / BINS];
+			double duration = (i % BINS + 1) * BIN_SIZE;
+			cache[i] = new ActivityUtilityParameters.Builder(base.apply(new PlanCalcScoreConfigGroup.ActivityParams(type).setTypicalDuration(duration))).build();
+		}
+
+		return cache[i];
+	}
+
+}
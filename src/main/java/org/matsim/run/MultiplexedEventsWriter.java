@@ -0,0 +1,188 @@
+package org.matsim.run;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.events.algorithms.EventWriter;
+import org.matsim.core.events.algorithms.EventWriterXML;
+import org.matsim.core.events.handler.BasicEventHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Predicate;
+
+/**
+ * Takes each event once and routes it to several filtered output files.
+ * Formatting and compression is done by one background thread per output, so that the event handling thread is not slowed down.
+ * Events are passed in batches through bounded queues, if a writer falls behind the event handling thread waits for it.
+ */
+final class MultiplexedEventsWriter implements BasicEventHandler, EventWriter {
+
+	private static final Logger log = LogManager.getLogger(MultiplexedEventsWriter.class);
+
+	/**
+	 * Number of events passed to a writer at once.
+	 */
+	private static final int BATCH_SIZE = 1024;
+
+	/**
+	 * Number of batches buffered per writer.
+	 */
+	private static final int CAPACITY = 64;
+
+	/**
+	 * Interval of progress messages in milliseconds.
+	 */
+	private static final long PROGRESS_INTERVAL = 30_000;
+
+	private static final List<Event> END = List.of();
+
+	private final List<Output> outputs = new ArrayList<>();
+
+	/**
+	 * Add an output file, which receives all events matching the filter.
+	 */
+	void addOutput(Predicate<Event> filter, String filename) {
+		Output output = new Output(filter, filename);
+		output.thread.start();
+		outputs.add(output);
+	}
+
+	@Override
+	public synchronized void handleEvent(Event event) {
+		for (Output output : outputs) {
+			if (output.error != null)
+				throw new IllegalStateException("Error writing events to " + output.filename, output.error);
+
+			if (output.filter.test(event)) {
+				output.batch.add(event);
+				if (output.batch.size() >= BATCH_SIZE)
+					output.flush();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void closeFile() {
+
+		for (Output output : outputs) {
+			output.flush();
+			output.put(END);
+		}
+
+		for (Output output : outputs) {
+			try {
+				output.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for event writers", e);
+			}
+
+			if (output.error != null)
+				throw new IllegalStateException("Error writing events to " + output.filename, output.error);
+		}
+
+		outputs.clear();
+	}
+
+	/**
+	 * One filtered output file with its queue and writer thread.
+	 */
+	private static final class Output {
+
+		private final Predicate<Event> filter;
+		private final String filename;
+		private final BlockingQueue<List<Event>> queue = new ArrayBlockingQueue<>(CAPACITY);
+		private final Thread thread;
+
+		/**
+		 * Events collected by the event handling thread, which are not yet passed to the writer.
+		 */
+		private List<Event> batch = new ArrayList<>(BATCH_SIZE);
+
+		private volatile RuntimeException error;
+
+		Output(Predicate<Event> filter, String filename) {
+			this.filter = filter;
+			this.filename = filename;
+			this.thread = new Thread(this::write, "events-" + filename);
+			this.thread.setDaemon(true);
+		}
+
+		private void flush() {
+			if (!batch.isEmpty()) {
+				put(batch);
+				batch = new ArrayList<>(BATCH_SIZE);
+			}
+		}
+
+		private void put(List<Event> events) {
+			try {
+				queue.put(events);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while passing events to writer", e);
+			}
+		}
+
+		@SuppressWarnings("IllegalCatch")
+		private void write() {
+
+			EventWriterXML writer = new EventWriterXML(filename);
+
+			long start = System.currentTimeMillis();
+			long lastLog = start;
+			long written = 0;
+			long lastWritten = 0;
+
+			try {
+				while (true) {
+					List<Event> events = queue.take();
+					if (events == END)
+						break;
+
+					for (Event event : events) {
+						writer.handleEvent(event);
+					}
+
+					written += events.size();
+
+					long now = System.currentTimeMillis();
+					if (now - lastLog >= PROGRESS_INTERVAL) {
+						log.info("{}: {} events, {} events/s, {} of {} batches queued", filename, written,
+							Math.round((written - lastWritten) * 1000.0 / (now - lastLog)), queue.size(), CAPACITY);
+						lastLog = now;
+						lastWritten = written;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				error = e;
+				drain();
+			} finally {
+				writer.closeFile();
+			}
+
+			long duration = Math.max(1, System.currentTimeMillis() - start);
+			log.info("{}: written {} events, {} events/s on average", filename, written, Math.round(written * 1000.0 / duration));
+		}
+
+		/**
+		 * Discard remaining events after an error, so that the event handling thread is never blocked.
+		 */
+		private void drain() {
+			try {
+				List<Event> events;
+				do {
+					events = queue.take();
+				} while (events != END);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
@@ -5,6 +5,7 @@ import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.population.Activity;
 import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PopulationFactory;
 import org.matsim.application.MATSimApplication;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.groups.StrategyConfigGroup;
@@ -13,10 +14,11 @@ import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.replanning.strategies.DefaultPlanStrategiesModule;
 import org.matsim.core.router.TripStructureUtils;
 import org.matsim.facilities.ActivityFacilitiesFactoryImpl;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.prepare.ParallelOptions;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class RunMosaik extends RunOpenBerlinScenario {
 
@@ -64,16 +66,11 @@ public class RunMosaik extends RunOpenBerlinScenario {
 
 		log.info("Removing references to old network, because we have switched the network.");
 
-		// remove linkids from activities
-		scenario.getPopulation().getPersons().values().parallelStream()
-			.flatMap(person -> person.getPlans().stream())
-			.flatMap(plan -> plan.getPlanElements().stream())
-			.filter(element -> element instanceof Activity)
-			.map(element -> (Activity) element)
-			.forEach(activity -> activity.setLinkId(null));
+		ParallelOptions parallel = new ParallelOptions();
+		PopulationFactory populationFactory = scenario.getPopulation().getFactory();
 
-		// replace trips in plans with single empty legs which only have a main mode
-		for (var person : scenario.getPopulation().getPersons().values()) {
+		// Persons are independent, link ids are removed and plans are rebuilt in one parallel pass
+		parallel.run(scenario.getPopulation(), person -> {
 
 			// copy plans
 			List<Plan> plans = new ArrayList<>(person.getPlans());
@@ -84,28 +81,36 @@ public class RunMosaik extends RunOpenBerlinScenario {
 
 			for (var plan : plans) {
 
+				// remove linkids from activities
+				for (var element : plan.getPlanElements()) {
+					if (element instanceof Activity activity)
+						activity.setLinkId(null);
+				}
+
+				// replace trips in plans with single empty legs which only have a main mode
 				var trips = TripStructureUtils.getTrips(plan);
-				var newPlan = scenario.getPopulation().getFactory().createPlan();
+				var newPlan = populationFactory.createPlan();
 				newPlan.addActivity(PopulationUtils.getFirstActivity(plan));
 
 				for (var trip : trips) {
 
 					var mainMode = TripStructureUtils.getRoutingModeIdentifier().identifyMainMode(trip.getTripElements());
-					var leg = scenario.getPopulation().getFactory().createLeg(mainMode);
+					var leg = populationFactory.createLeg(mainMode);
 					newPlan.addLeg(leg);
 					newPlan.addActivity(trip.getDestinationActivity());
 				}
 
 				person.addPlan(newPlan);
 			}
-		}
+		});
 
 		// remove linkids from facilities
 		// facilities are basically immutable. Create new facilities without link references
+		// new facilities are created in parallel, but added in the original order in one batch
 		var factory = new ActivityFacilitiesFactoryImpl();
-		var facilities = scenario.getActivityFacilities().getFacilities().values().parallelStream()
+		List<ActivityFacility> facilities = scenario.getActivityFacilities().getFacilities().values().parallelStream()
 			.map(facility -> factory.createActivityFacility(facility.getId(), facility.getCoord()))
-			.collect(Collectors.toSet());
+			.toList();
 
 		// throw out old facilities
 		scenario.getActivityFacilities().getFacilities().clear();
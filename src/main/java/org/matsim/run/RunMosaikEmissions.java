@@ -7,7 +7,6 @@ import org.locationtech.jts.geom.prep.PreparedGeometry;
 import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.TransportMode;
-import org.matsim.api.core.v01.events.Event;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.application.MATSimApplication;
 import org.matsim.contrib.emissions.EmissionModule;
@@ -31,8 +30,6 @@ import org.matsim.core.controler.listener.BeforeMobsimListener;
 import org.matsim.core.controler.listener.ShutdownListener;
 import org.matsim.core.events.EventsManagerImpl;
 import org.matsim.core.events.algorithms.EventWriter;
-import org.matsim.core.events.algorithms.EventWriterXML;
-import org.matsim.core.events.handler.BasicEventHandler;
 import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.core.utils.gis.ShapeFileReader;
 import org.matsim.vis.snapshotwriters.PositionEvent;
@@ -43,8 +40,6 @@ import picocli.CommandLine;
 import java.nio.file.Path;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Predicate;
 
 public class RunMosaikEmissions extends RunOpenBerlinScenario {
 
@@ -154,8 +149,11 @@ public class RunMosaikEmissions extends RunOpenBerlinScenario {
             var emissionEventsFile = outputDirectoryHierarchy.getIterationFilename(event.getIteration(), "emission-events.xml.gz");
             var allEvents = outputDirectoryHierarchy.getIterationFilename(event.getIteration(), "all_events.xml.gz");
 
+            // each event is handled once, formatting and compression happen on one background thread per file
+            var writer = new MultiplexedEventsWriter();
+
             // write everything except: positions, position-emissions, warm-emissions, cold-emissions
-            var normalWriter = new FilterEventsWriter(
+            writer.addOutput(
                     e -> (
                             !e.getEventType().equals(PositionEvent.EVENT_TYPE)
                                     && !e.getEventType().equals(PositionEmissionsModule.PositionEmissionEvent.EVENT_TYPE)
@@ -165,18 +163,12 @@ public class RunMosaikEmissions extends RunOpenBerlinScenario {
                     ), eventsFile);
 
             // write only position-emissions
-            var positionEmissionWriter = new FilterEventsWriter(e -> e.getEventType().equals(PositionEmissionsModule.PositionEmissionEvent.EVENT_TYPE), positionEmissionEventsFile);
-            var emissionWriter = new FilterEventsWriter(e -> e.getEventType().equals(WarmEmissionEvent.EVENT_TYPE) || e.getEventType().equals(ColdEmissionEvent.EVENT_TYPE), emissionEventsFile);
-            var allWriter = new EventWriterXML(allEvents);
-
-            eventsManager.addHandler(normalWriter);
-            eventsManager.addHandler(emissionWriter);
-            eventsManager.addHandler(positionEmissionWriter);
-            eventsManager.addHandler(allWriter);
-            writers.add(normalWriter);
-            writers.add(emissionWriter);
-            writers.add(positionEmissionWriter);
-            writers.add(allWriter);
+            writer.addOutput(e -> e.getEventType().equals(PositionEmissionsModule.PositionEmissionEvent.EVENT_TYPE), positionEmissionEventsFile);
+            writer.addOutput(e -> e.getEventType().equals(WarmEmissionEvent.EVENT_TYPE) || e.getEventType().equals(ColdEmissionEvent.EVENT_TYPE), emissionEventsFile);
+            writer.addOutput(e -> true, allEvents);
+
+            eventsManager.addHandler(writer);
+            writers.add(writer);
         }
 
         @Override
@@ -195,37 +187,7 @@ public class RunMosaikEmissions extends RunOpenBerlinScenario {
             for (EventWriter writer : writers) {
                 writer.closeFile();
             }
-        }
-    }
-
-    private static class FilterEventsWriter implements BasicEventHandler, EventWriter {
-
-        private final Predicate<Event> filter;
-        private final EventWriterXML writer;
-        private final String filename;
-
-        private final AtomicInteger counter = new AtomicInteger();
-
-        public FilterEventsWriter(Predicate<Event> filter, String outFilename) {
-            this.filter = filter;
-            this.writer = new EventWriterXML(outFilename);
-            this.filename = outFilename;
-        }
-
-        @Override
-        public void closeFile() {
-            writer.closeFile();
-        }
-
-        @Override
-        public void handleEvent(Event event) {
-
-            if (filter.test(event)) {
-                if (counter.incrementAndGet() % 10000 == 0) {
-                    System.out.println(filename + ": " + counter);
-                }
-                writer.handleEvent(event);
-            }
+            writers.clear();
         }
     }
 }
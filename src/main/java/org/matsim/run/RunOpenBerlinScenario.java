@@ -1,5 +1,8 @@
 package org.matsim.run;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.application.MATSimApplication;
 import org.matsim.application.options.SampleOptions;
@@ -15,16 +18,24 @@ import org.matsim.simwrapper.SimWrapperConfigGroup;
 import org.matsim.simwrapper.SimWrapperModule;
 import picocli.CommandLine;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.List;
 
 @CommandLine.Command(header = ":: Open Berlin Scenario ::", version = RunOpenBerlinScenario.VERSION, mixinStandardHelpOptions = true)
 public class RunOpenBerlinScenario extends MATSimApplication {
 
+	private static final Logger log = LogManager.getLogger(RunOpenBerlinScenario.class);
+
 	public static final String VERSION = "6.0";
 	public static final String CRS = "EPSG:25832";
 	@CommandLine.Mixin
 	private final SampleOptions sample = new SampleOptions(25, 10, 1);
 
+	@CommandLine.Option(names = "--snapshot", description = "Directory of a binary scenario snapshot. It is used if the inputs did not change, otherwise it is created.")
+	private Path snapshot;
+
 	public RunOpenBerlinScenario() {
 		super(String.format("input/v%s/berlin-v%s.config.xml", VERSION, VERSION));
 	}
@@ -63,7 +74,8 @@ public class RunOpenBerlinScenario extends MATSimApplication {
 			config.plans().setInputFile(sample.adjustName(config.plans().getInputFile()));
 		}
 
-		Activities.addScoringParams(config, true);
+		// Params for types split by duration are provided by the scoring module
+		Activities.addScoringParams(config, false);
 
 		// Required for all calibration strategies
 		for (String subpopulation : List.of("person", "freight", "goodsTraffic", "commercialPersonTraffic", "commercialPersonTraffic_service")) {
@@ -99,10 +111,41 @@ public class RunOpenBerlinScenario extends MATSimApplication {
 		return config;
 	}
 
+	@Override
+	protected Scenario createScenario(Config config) {
+
+		if (snapshot == null)
+			return super.createScenario(config);
+
+		try {
+			String hash = ScenarioSnapshot.hash(config);
+			if (hash == null)
+				return super.createScenario(config);
+
+			Scenario scenario = ScenarioSnapshot.load(config, snapshot, hash);
+			if (scenario != null)
+				return scenario;
+
+			scenario = super.createScenario(config);
+
+			try {
+				ScenarioSnapshot.write(scenario, snapshot, hash);
+			} catch (IOException | IllegalArgumentException e) {
+				log.warn("Could not write scenario snapshot", e);
+			}
+
+			return scenario;
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	@Override
 	protected void prepareControler(Controler controler) {
 
 		controler.addOverridingModule(new SimWrapperModule());
+		controler.addOverridingModule(Activities.createScoringModule());
 		controler.addOverridingModule(new AbstractModule() {
 			@Override
 			public void install() {
@@ -0,0 +1,407 @@
+package org.matsim.run;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.config.groups.FacilitiesConfigGroup;
+import org.matsim.core.network.NetworkChangeEvent;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.io.NetworkChangeEventsParser;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.facilities.FacilitiesWriter;
+import org.matsim.prepare.population.BinaryPopulationReader;
+import org.matsim.prepare.population.BinaryPopulationWriter;
+import org.matsim.pt.transitSchedule.api.TransitScheduleWriter;
+import org.matsim.utils.objectattributes.ObjectAttributesConverter;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+import org.matsim.vehicles.MatsimVehicleWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores a loaded scenario in a directory, so that following runs with the same inputs do not need to parse the compressed xml files again.
+ * Population and network are stored in binary formats, the population one is indexed by person id, see {@link BinaryPopulationWriter}.
+ * Facilities, transit schedule and vehicles are stored as uncompressed xml. A snapshot is only used if the hash of the inputs matches.
+ * Network change events and lanes are not part of the snapshot, they are read from their original files.
+ * Remote inputs are hashed by their url together with the ETag and modification time reported by the server.
+ */
+public final class ScenarioSnapshot {
+
+	private static final Logger log = LogManager.getLogger(ScenarioSnapshot.class);
+
+	private static final int MAGIC = 0x4d4e4554;
+	private static final int VERSION = 2;
+
+	private static final String HASH = "inputs.sha";
+	private static final String NETWORK = "network.bin";
+	private static final String POPULATION = "population.bin";
+	private static final String FACILITIES = "facilities.xml";
+	private static final String SCHEDULE = "transitSchedule.xml";
+	private static final String TRANSIT_VEHICLES = "transitVehicles.xml";
+	private static final String VEHICLES = "vehicles.xml";
+
+	private ScenarioSnapshot() {
+	}
+
+	/**
+	 * Hash of all input files and settings that are relevant for loading the scenario. Local files are hashed by their content.
+	 *
+	 * @return the hash, or null if a remote input can not be validated and a snapshot must not be used
+	 */
+	public static String hash(Config config) throws IOException {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+
+		List<String> settings = Arrays.asList(String.valueOf(VERSION), config.global().getCoordinateSystem(),
+			config.network().getInputCRS(), config.plans().getInputCRS(), config.facilities().getInputCRS(), config.transit().getInputScheduleCRS(),
+			String.valueOf(config.facilities().getFacilitiesSource()), String.valueOf(config.transit().isUseTransit()),
+			String.valueOf(config.network().isTimeVariantNetwork()), String.valueOf(config.qsim().isUseLanes()));
+
+		digest.update(String.join(";", settings).getBytes(StandardCharsets.UTF_8));
+
+		for (String file : List.of(nullToEmpty(config.network().getInputFile()), nullToEmpty(config.plans().getInputFile()),
+			nullToEmpty(config.facilities().getInputFile()), nullToEmpty(config.transit().getTransitScheduleFile()),
+			nullToEmpty(config.transit().getVehiclesFile()), nullToEmpty(config.vehicles().getVehiclesFile()),
+			nullToEmpty(config.network().getChangeEventsInputFile()), nullToEmpty(config.network().getLaneDefinitionsFile()),
+			nullToEmpty(config.plans().getInputPersonAttributeFile()))) {
+
+			digest.update((byte) 0);
+			if (file.isEmpty())
+				continue;
+
+			URL url = ConfigGroup.getInputFileURL(config.getContext(), file);
+
+			// Remote inputs are identified by their url and validators, they would need to be downloaded otherwise
+			if (!url.getProtocol().equals("file")) {
+				String validator = validator(url);
+				if (validator == null) {
+					log.warn("Remote input {} has no ETag or modification time, scenario snapshots are not used", url);
+					return null;
+				}
+
+				digest.update(url.toString().getBytes(StandardCharsets.UTF_8));
+				digest.update(validator.getBytes(StandardCharsets.UTF_8));
+				continue;
+			}
+
+			try (InputStream in = new DigestInputStream(url.openStream(), digest)) {
+				in.transferTo(OutputStream.nullOutputStream());
+			}
+		}
+
+		return String.format("%064x", new BigInteger(1, digest.digest()));
+	}
+
+	/**
+	 * ETag, modification time and length of a remote file, or null if the server reports neither ETag nor modification time.
+	 */
+	private static String validator(URL url) throws IOException {
+
+		if (!(url.openConnection() instanceof HttpURLConnection conn))
+			return null;
+
+		try {
+			conn.setRequestMethod("HEAD");
+			if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+				throw new IOException("Could not check remote input " + url + ", status " + conn.getResponseCode());
+
+			String etag = conn.getHeaderField("ETag");
+			long modified = conn.getLastModified();
+			if (etag == null && modified == 0)
+				return null;
+
+			return etag + ";" + modified + ";" + conn.getContentLengthLong();
+
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private static String nullToEmpty(String s) {
+		return s == null ? "" : s;
+	}
+
+	/**
+	 * Load a scenario from the snapshot, or return null if there is no snapshot for the inputs of this config.
+	 */
+	public static Scenario load(Config config, Path dir, String hash) throws IOException {
+
+		Path hashFile = dir.resolve(HASH);
+		if (!Files.exists(hashFile) || !Files.readString(hashFile).strip().equals(hash))
+			return null;
+
+		log.info("Loading scenario snapshot from {}", dir);
+		long t = System.currentTimeMillis();
+
+		String network = config.network().getInputFile();
+		String plans = config.plans().getInputFile();
+		String facilities = config.facilities().getInputFile();
+		String schedule = config.transit().getTransitScheduleFile();
+		String transitVehicles = config.transit().getVehiclesFile();
+		String vehicles = config.vehicles().getVehiclesFile();
+
+		String networkCrs = config.network().getInputCRS();
+		String plansCrs = config.plans().getInputCRS();
+		String facilitiesCrs = config.facilities().getInputCRS();
+		String scheduleCrs = config.transit().getInputScheduleCRS();
+
+		// Inputs are redirected to the snapshot while loading, the snapshot is already in the target crs
+		Scenario scenario;
+		try {
+			config.network().setInputFile(null);
+			config.plans().setInputFile(null);
+			config.facilities().setInputFile(existing(dir.resolve(FACILITIES)));
+			config.transit().setTransitScheduleFile(existing(dir.resolve(SCHEDULE)));
+			config.transit().setVehiclesFile(existing(dir.resolve(TRANSIT_VEHICLES)));
+			config.vehicles().setVehiclesFile(existing(dir.resolve(VEHICLES)));
+
+			config.network().setInputCRS(null);
+			config.plans().setInputCRS(null);
+			config.facilities().setInputCRS(null);
+			config.transit().setInputScheduleCRS(null);
+
+			scenario = ScenarioUtils.loadScenario(config);
+
+		} finally {
+			config.network().setInputFile(network);
+			config.plans().setInputFile(plans);
+			config.facilities().setInputFile(facilities);
+			config.transit().setTransitScheduleFile(schedule);
+			config.transit().setVehiclesFile(transitVehicles);
+			config.vehicles().setVehiclesFile(vehicles);
+
+			config.network().setInputCRS(networkCrs);
+			config.plans().setInputCRS(plansCrs);
+			config.facilities().setInputCRS(facilitiesCrs);
+			config.transit().setInputScheduleCRS(scheduleCrs);
+		}
+
+		if (Files.exists(dir.resolve(NETWORK)))
+			readNetwork(scenario.getNetwork(), dir.resolve(NETWORK));
+
+		// The scenario loader only reads change events together with the network input file
+		if (config.network().isTimeVariantNetwork() && config.network().getChangeEventsInputFile() != null) {
+			List<NetworkChangeEvent> events = new ArrayList<>();
+			new NetworkChangeEventsParser(scenario.getNetwork(), events)
+				.parse(config.network().getChangeEventsInputFileUrl(config.getContext()));
+			NetworkUtils.setNetworkChangeEvents(scenario.getNetwork(), events);
+		}
+
+		if (Files.exists(dir.resolve(POPULATION))) {
+			try (BinaryPopulationReader reader = new BinaryPopulationReader(dir.resolve(POPULATION), scenario.getPopulation().getFactory())) {
+				reader.readInto(scenario.getPopulation());
+			}
+		}
+
+		log.info("Loaded snapshot with {} persons and {} links in {}s", scenario.getPopulation().getPersons().size(),
+			scenario.getNetwork().getLinks().size(), (System.currentTimeMillis() - t) / 1000);
+
+		return scenario;
+	}
+
+	private static String existing(Path path) {
+		return Files.exists(path) ? path.toAbsolutePath().toString() : null;
+	}
+
+	/**
+	 * Write a loaded scenario to the snapshot directory.
+	 */
+	public static void write(Scenario scenario, Path dir, String hash) throws IOException {
+
+		log.info("Writing scenario snapshot to {}", dir);
+
+		Files.createDirectories(dir);
+
+		// The hash is written last, an incomplete snapshot is never used
+		Files.deleteIfExists(dir.resolve(HASH));
+
+		Config config = scenario.getConfig();
+
+		if (config.network().getInputFile() != null)
+			writeNetwork(scenario.getNetwork(), dir.resolve(NETWORK));
+		else
+			Files.deleteIfExists(dir.resolve(NETWORK));
+
+		if (config.plans().getInputFile() != null)
+			new BinaryPopulationWriter().write(scenario.getPopulation(), dir.resolve(POPULATION));
+		else
+			Files.deleteIfExists(dir.resolve(POPULATION));
+
+		if (config.facilities().getInputFile() != null && config.facilities().getFacilitiesSource() == FacilitiesConfigGroup.FacilitiesSource.fromFile)
+			new FacilitiesWriter(scenario.getActivityFacilities()).write(dir.resolve(FACILITIES).toString());
+		else
+			Files.deleteIfExists(dir.resolve(FACILITIES));
+
+		if (config.transit().isUseTransit() && config.transit().getTransitScheduleFile() != null)
+			new TransitScheduleWriter(scenario.getTransitSchedule()).writeFile(dir.resolve(SCHEDULE).toString());
+		else
+			Files.deleteIfExists(dir.resolve(SCHEDULE));
+
+		if (config.transit().isUseTransit() && config.transit().getVehiclesFile() != null)
+			new MatsimVehicleWriter(scenario.getTransitVehicles()).writeFile(dir.resolve(TRANSIT_VEHICLES).toString());
+		else
+			Files.deleteIfExists(dir.resolve(TRANSIT_VEHICLES));
+
+		if (config.vehicles().getVehiclesFile() != null)
+			new MatsimVehicleWriter(scenario.getVehicles()).writeFile(dir.resolve(VEHICLES).toString());
+		else
+			Files.deleteIfExists(dir.resolve(VEHICLES));
+
+		Files.writeString(dir.resolve(HASH), hash);
+	}
+
+	/**
+	 * Write nodes and links. Links reference their nodes by index, modes and attributes are stored as strings.
+	 */
+	static void writeNetwork(Network network, Path path) throws IOException {
+
+		ObjectAttributesConverter converter = new ObjectAttributesConverter();
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeDouble(network.getCapacityPeriod());
+			out.writeDouble(network.getEffectiveLaneWidth());
+			writeAttributes(out, network.getAttributes(), converter);
+
+			Object2IntMap<Id<Node>> index = new Object2IntOpenHashMap<>();
+			out.writeInt(network.getNodes().size());
+			for (Node node : network.getNodes().values()) {
+				index.put(node.getId(), index.size());
+				out.writeUTF(node.getId().toString());
+				out.writeDouble(node.getCoord().getX());
+				out.writeDouble(node.getCoord().getY());
+				writeAttributes(out, node.getAttributes(), converter);
+			}
+
+			out.writeInt(network.getLinks().size());
+			for (Link link : network.getLinks().values()) {
+				out.writeUTF(link.getId().toString());
+				out.writeInt(index.getInt(link.getFromNode().getId()));
+				out.writeInt(index.getInt(link.getToNode().getId()));
+				out.writeDouble(link.getLength());
+				out.writeDouble(link.getFreespeed());
+				out.writeDouble(link.getCapacity());
+				out.writeDouble(link.getNumberOfLanes());
+				out.writeUTF(String.join(",", link.getAllowedModes()));
+				writeAttributes(out, link.getAttributes(), converter);
+			}
+		}
+	}
+
+	static void readNetwork(Network network, Path path) throws IOException {
+
+		ObjectAttributesConverter converter = new ObjectAttributesConverter();
+		NetworkFactory f = network.getFactory();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Unknown network snapshot format: " + path);
+
+			network.setCapacityPeriod(in.readDouble());
+			network.setEffectiveLaneWidth(in.readDouble());
+			readAttributes(in, network.getAttributes(), converter);
+
+			Node[] nodes = new Node[in.readInt()];
+			for (int i = 0; i < nodes.length; i++) {
+				nodes[i] = f.createNode(Id.createNodeId(in.readUTF()), new Coord(in.readDouble(), in.readDouble()));
+				readAttributes(in, nodes[i].getAttributes(), converter);
+				network.addNode(nodes[i]);
+			}
+
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				Link link = f.createLink(Id.createLinkId(in.readUTF()), nodes[in.readInt()], nodes[in.readInt()]);
+				link.setLength(in.readDouble());
+				link.setFreespeed(in.readDouble());
+				link.setCapacity(in.readDouble());
+				link.setNumberOfLanes(in.readDouble());
+
+				String modes = in.readUTF();
+				link.setAllowedModes(modes.isEmpty() ? Set.of() : new HashSet<>(Arrays.asList(modes.split(","))));
+
+				readAttributes(in, link.getAttributes(), converter);
+				network.addLink(link);
+			}
+		}
+	}
+
+	private static void writeAttributes(DataOutputStream out, Attributes attributes, ObjectAttributesConverter converter) throws IOException {
+
+		Map<String, Object> map = attributes.getAsMap();
+		out.writeInt(map.size());
+		for (Map.Entry<String, Object> e : map.entrySet()) {
+			String value = converter.convertToString(e.getValue());
+			if (value == null)
+				throw new IllegalArgumentException("No converter for attribute " + e.getKey() + " of " + e.getValue().getClass());
+
+			out.writeUTF(e.getKey());
+			out.writeUTF(e.getValue().getClass().getName());
+			writeLongString(out, value);
+		}
+	}
+
+	private static void readAttributes(DataInputStream in, Attributes attributes, ObjectAttributesConverter converter) throws IOException {
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			String key = in.readUTF();
+			String type = in.readUTF();
+			attributes.putAttribute(key, converter.convert(type, readLongString(in)));
+		}
+	}
+
+	/**
+	 * Strings written with {@link DataOutputStream#writeUTF(String)} are limited to 64kb, which attributes may exceed.
+	 */
+	private static void writeLongString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readLongString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,129 @@
+package org.matsim.prepare;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.prepare.population.PopulationFiles;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MergePlansTest {
+
+	private static final String CRS = "EPSG:25832";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * Create a population with one selected plan per person, which is identified by its score.
+	 */
+	private Path createInput(String name, double score, String... ids) {
+
+		Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+		PopulationFactory f = population.getFactory();
+
+		if (score == 1)
+			population.getAttributes().putAttribute("coordinateReferenceSystem", CRS);
+
+		for (String id : ids) {
+			Person person = f.createPerson(Id.createPersonId(id));
+
+			Plan plan = f.createPlan();
+			plan.addActivity(f.createActivityFromCoord("home", new Coord(0, 0)));
+			plan.setScore(score);
+			person.addPlan(plan);
+
+			// Not selected plans are dropped
+			Plan other = f.createPlan();
+			other.addActivity(f.createActivityFromCoord("work", new Coord(1, 1)));
+			other.setScore(-1.0);
+			person.addPlan(other);
+
+			person.setSelectedPlan(plan);
+			population.addPerson(person);
+		}
+
+		Path path = tmp.getRoot().toPath().resolve(name);
+		PopulationFiles.write(population, path);
+		return path;
+	}
+
+	private int merge(Path output, Path... inputs) {
+
+		List<String> args = new ArrayList<>();
+		for (Path input : inputs) {
+			args.add(input.toString());
+		}
+
+		args.addAll(List.of("--output", output.toString(), "--tmp", tmp.getRoot().toString(), "--chunk-size", "2"));
+
+		return new CommandLine(new MergePlans()).execute(args.toArray(String[]::new));
+	}
+
+	private static void assertMerged(Population population, String... ids) {
+
+		assertThat(population.getPersons().keySet())
+			.extracting(Object::toString)
+			.containsExactly(ids);
+
+		for (Person person : population.getPersons().values()) {
+			assertThat(person.getPlans())
+				.extracting(Plan::getScore)
+				.containsExactly(1.0, 2.0);
+
+			assertThat(person.getSelectedPlan().getScore())
+				.isEqualTo(1.0);
+		}
+	}
+
+	@Test
+	public void sorted() throws IOException {
+
+		Path a = createInput("a.plans.xml.gz", 1, "p1", "p2", "p3");
+		Path b = createInput("b.plans.xml.gz", 2, "p1", "p2", "p3");
+
+		Path output = tmp.getRoot().toPath().resolve("merged.plans.xml.gz");
+		assertThat(merge(output, a, b)).isEqualTo(0);
+
+		Population merged = PopulationUtils.readPopulation(output.toString());
+
+		assertMerged(merged, "p1", "p2", "p3");
+		assertThat(merged.getAttributes().getAttribute("coordinateReferenceSystem"))
+			.isEqualTo(CRS);
+	}
+
+	@Test
+	public void unsorted() throws IOException {
+
+		Path a = createInput("a.plans.bin", 1, "p3", "p1", "p4", "p2");
+		Path b = createInput("b.plans.xml.gz", 2, "p2", "p4", "p3", "p1", "p5");
+
+		Path output = tmp.getRoot().toPath().resolve("merged.plans.bin");
+		assertThat(merge(output, a, b)).isEqualTo(0);
+
+		Population merged = PopulationFiles.read(output);
+
+		// Persons only in the second input are not added
+		assertMerged(merged, "p1", "p2", "p3", "p4");
+		assertThat(merged.getAttributes().getAttribute("coordinateReferenceSystem"))
+			.isEqualTo(CRS);
+
+		assertThat(PersonStreams.attributes(output).getAttribute("coordinateReferenceSystem"))
+			.isEqualTo(CRS);
+	}
+
+}
@@ -0,0 +1,176 @@
+package org.matsim.prepare;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.router.FastDijkstraFactory;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RouteCacheOptionsTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * Network with nodes on a line, connected by links in both directions.
+	 */
+	private static Network createNetwork(int n) {
+
+		Network network = NetworkUtils.createNetwork();
+		NetworkFactory f = network.getFactory();
+
+		for (int i = 0; i < n; i++) {
+			network.addNode(f.createNode(Id.createNodeId(i), new Coord(i * 100, 0)));
+		}
+
+		for (int i = 0; i < n - 1; i++) {
+			Node a = network.getNodes().get(Id.createNodeId(i));
+			Node b = network.getNodes().get(Id.createNodeId(i + 1));
+			network.addLink(f.createLink(Id.createLinkId(i + "_" + (i + 1)), a, b));
+			network.addLink(f.createLink(Id.createLinkId((i + 1) + "_" + i), b, a));
+		}
+
+		for (Link link : network.getLinks().values()) {
+			link.setLength(100);
+			link.setFreespeed(10);
+			link.setCapacity(1000);
+		}
+
+		return network;
+	}
+
+	private static LeastCostPathCalculator createRouter(Network network) {
+		TravelTime tt = new FreeSpeedTravelTime();
+		return new FastDijkstraFactory(false).createPathCalculator(network, new OnlyTimeDependentTravelDisutility(tt), tt);
+	}
+
+	private static LeastCostPathCalculator.Path route(RouteCacheOptions cache, Network network, int from, int to) {
+		return cache.route("freespeed", createRouter(network),
+			network.getNodes().get(Id.createNodeId(from)), network.getNodes().get(Id.createNodeId(to)), 0);
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+
+		Network network = createNetwork(5);
+		Path path = tmp.getRoot().toPath().resolve("routes.bin");
+
+		RouteCacheOptions cache = new RouteCacheOptions(path, 1000, 3600);
+		cache.init(network);
+
+		LeastCostPathCalculator.Path expected = route(cache, network, 0, 4);
+		route(cache, network, 4, 1);
+
+		assertThat(route(cache, network, 0, 4).links)
+			.isEqualTo(expected.links);
+
+		assertThat(cache.getHitRate()).isEqualTo(1 / 3d);
+
+		cache.close();
+
+		RouteCacheOptions loaded = new RouteCacheOptions(path, 1000, 3600);
+		loaded.init(network);
+
+		LeastCostPathCalculator.Path actual = route(loaded, network, 0, 4);
+		route(loaded, network, 4, 1);
+
+		assertThat(loaded.getHitRate()).isEqualTo(1);
+
+		assertThat(actual.links).isEqualTo(expected.links);
+		assertThat(actual.nodes).isEqualTo(expected.nodes);
+		assertThat(actual.travelTime).isEqualTo(expected.travelTime);
+		assertThat(actual.travelCost).isEqualTo(expected.travelCost);
+	}
+
+	@Test
+	public void changedNetwork() throws IOException {
+
+		Network network = createNetwork(5);
+		Path path = tmp.getRoot().toPath().resolve("routes.bin");
+
+		RouteCacheOptions cache = new RouteCacheOptions(path, 1000, 3600);
+		cache.init(network);
+		route(cache, network, 0, 4);
+		cache.close();
+
+		Network changed = createNetwork(5);
+		changed.getLinks().get(Id.createLinkId("1_2")).setFreespeed(5);
+
+		assertThat(RouteCacheOptions.hash(changed))
+			.isNotEqualTo(RouteCacheOptions.hash(network));
+
+		// Same content results in the same hash
+		assertThat(RouteCacheOptions.hash(createNetwork(5)))
+			.isEqualTo(RouteCacheOptions.hash(network));
+
+		RouteCacheOptions loaded = new RouteCacheOptions(path, 1000, 3600);
+		loaded.init(changed);
+		route(loaded, changed, 0, 4);
+
+		assertThat(loaded.getHitRate()).isEqualTo(0);
+	}
+
+	@Test
+	public void disabled() throws IOException {
+
+		Network network = createNetwork(3);
+
+		RouteCacheOptions cache = new RouteCacheOptions(null, 1000, 3600);
+		cache.init(network);
+
+		route(cache, network, 0, 2);
+		route(cache, network, 0, 2);
+
+		assertThat(cache.getHitRate()).isEqualTo(0);
+
+		cache.close();
+	}
+
+	@Test
+	public void eviction() {
+
+		RouteCacheOptions.Segment segment = new RouteCacheOptions.Segment(5);
+
+		RouteCacheOptions.Key a = new RouteCacheOptions.Key("freespeed", Id.createNodeId("a"), Id.createNodeId("b"), 0);
+		RouteCacheOptions.Key b = new RouteCacheOptions.Key("freespeed", Id.createNodeId("b"), Id.createNodeId("c"), 0);
+		RouteCacheOptions.Key c = new RouteCacheOptions.Key("freespeed", Id.createNodeId("c"), Id.createNodeId("d"), 0);
+
+		segment.put(a, new RouteCacheOptions.Route(new Link[3], 0, 0));
+		segment.put(b, new RouteCacheOptions.Route(new Link[2], 0, 0));
+
+		assertThat(segment.links()).isEqualTo(5);
+
+		// Access makes the first route the most recently used one
+		assertThat(segment.get(a)).isNotNull();
+
+		segment.put(c, new RouteCacheOptions.Route(new Link[1], 0, 0));
+
+		assertThat(segment.keySet()).containsExactly(a, c);
+		assertThat(segment.links()).isEqualTo(4);
+
+		// Replacing a route updates the number of links
+		segment.put(c, new RouteCacheOptions.Route(new Link[2], 0, 0));
+		assertThat(segment.links()).isEqualTo(5);
+
+		// Routes larger than the capacity are still cached, but evict all others
+		segment.put(b, new RouteCacheOptions.Route(new Link[6], 0, 0));
+		assertThat(segment.keySet()).containsExactly(b);
+		assertThat(segment.links()).isEqualTo(6);
+	}
+
+}
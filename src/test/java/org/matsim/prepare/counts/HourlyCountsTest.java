@@ -0,0 +1,111 @@
+package org.matsim.prepare.counts;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+public class HourlyCountsTest {
+
+	private static double mean(List<double[]> obs, int v) {
+		return obs.stream().mapToDouble(o -> o[v]).average().orElseThrow();
+	}
+
+	private static double variance(List<double[]> obs, int v) {
+		double mean = mean(obs, v);
+		return obs.stream().mapToDouble(o -> (o[v] - mean) * (o[v] - mean)).sum() / (obs.size() - 1);
+	}
+
+	private static List<double[]> sample(SplittableRandom rnd, int n) {
+		List<double[]> obs = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			obs.add(new double[]{1000 + rnd.nextDouble() * 500, rnd.nextInt(100)});
+		}
+		return obs;
+	}
+
+	@Test
+	public void addAndMerge() {
+
+		SplittableRandom rnd = new SplittableRandom(0);
+
+		HourlyCounts all = new HourlyCounts(2, 2);
+		HourlyCounts a = new HourlyCounts(2, 2);
+		HourlyCounts b = new HourlyCounts(2, 2);
+
+		List<double[]> obs = sample(rnd, 50);
+		for (int i = 0; i < obs.size(); i++) {
+			all.add(1, 8, obs.get(i));
+
+			// Uneven split between the accumulators
+			if (i < 13)
+				a.add(1, 8, obs.get(i));
+			else
+				b.add(1, 8, obs.get(i));
+		}
+
+		// Hour only present in the merged accumulator
+		List<double[]> other = sample(rnd, 5);
+		other.forEach(o -> b.add(0, 17, o));
+
+		a.merge(b);
+
+		for (int v = 0; v < 2; v++) {
+			assertThat(all.mean(1, 8, v)).isCloseTo(mean(obs, v), within(1e-9));
+			assertThat(all.variance(1, 8, v)).isCloseTo(variance(obs, v), within(1e-6));
+
+			assertThat(a.mean(1, 8, v)).isCloseTo(mean(obs, v), within(1e-9));
+			assertThat(a.variance(1, 8, v)).isCloseTo(variance(obs, v), within(1e-6));
+
+			assertThat(a.mean(0, 17, v)).isCloseTo(mean(other, v), within(1e-9));
+			assertThat(a.variance(0, 17, v)).isCloseTo(variance(other, v), within(1e-6));
+		}
+
+		assertThat(a.count(1, 8)).isEqualTo(50);
+		assertThat(a.count(0, 17)).isEqualTo(5);
+		assertThat(a.count(0, 8)).isEqualTo(0);
+		assertThat(a.isComplete(1)).isFalse();
+	}
+
+	@Test
+	public void singleObservation() {
+
+		HourlyCounts counts = new HourlyCounts(1, 1);
+
+		assertThat(counts.variance(0, 0, 0)).isNaN();
+
+		counts.add(0, 0, 42);
+
+		assertThat(counts.mean(0, 0, 0)).isEqualTo(42);
+		assertThat(counts.variance(0, 0, 0)).isNaN();
+
+		HourlyCounts other = new HourlyCounts(1, 1);
+		other.add(0, 0, 44);
+		counts.merge(other);
+
+		assertThat(counts.mean(0, 0, 0)).isEqualTo(43);
+		assertThat(counts.variance(0, 0, 0)).isEqualTo(2);
+	}
+
+	@Test
+	public void invalidHour() {
+
+		HourlyCounts counts = new HourlyCounts(2, 1);
+
+		assertThatThrownBy(() -> counts.add(0, HourlyCounts.HOURS, 1))
+			.isInstanceOf(IllegalArgumentException.class);
+
+		assertThatThrownBy(() -> counts.add(1, -1, 1))
+			.isInstanceOf(IllegalArgumentException.class);
+
+		// Neighbouring station is not affected
+		assertThat(counts.count(1, 0)).isEqualTo(0);
+		assertThat(counts.count(0, HourlyCounts.HOURS - 1)).isEqualTo(0);
+	}
+
+}
@@ -0,0 +1,116 @@
+package org.matsim.prepare.counts;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StationMappingTest {
+
+	private static final GeometryFactory GEOMETRY = new GeometryFactory();
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * Network with parallel links at the given y coordinates.
+	 */
+	private static Network createNetwork(String... links) {
+
+		Network network = NetworkUtils.createNetwork();
+		NetworkFactory f = network.getFactory();
+
+		for (int i = 0; i < links.length; i++) {
+			double y = i * 10;
+			Node from = f.createNode(Id.createNodeId(links[i] + "_from"), new Coord(-50, y));
+			Node to = f.createNode(Id.createNodeId(links[i] + "_to"), new Coord(50, y));
+			network.addNode(from);
+			network.addNode(to);
+			network.addLink(f.createLink(Id.createLinkId(links[i]), from, to));
+		}
+
+		return network;
+	}
+
+	private static List<Id<Link>> match(StationMapping mapping, Network network, AtomicInteger created, List<Station> stations) {
+
+		List<Link> links = mapping.match(network, () -> {
+				created.incrementAndGet();
+				return new LinkMatcher(network, Map.of(), 50);
+			}, stations, Station::id, st -> StationMapping.hashOf(st.y), Station::geometry, st -> Double.NaN,
+			(c, st) -> true, st -> null, true);
+
+		return links.stream().map(l -> l == null ? null : l.getId()).toList();
+	}
+
+	@Test
+	public void sameAsFullMatch() throws IOException {
+
+		Network network = createNetwork("a", "b", "c");
+		Path path = tmp.getRoot().toPath().resolve("mapping.csv");
+		AtomicInteger created = new AtomicInteger();
+
+		List<Station> stations = List.of(new Station("s1", 1), new Station("s2", 2));
+
+		StationMapping first = new StationMapping(path);
+		first.init(1, 1);
+
+		// Second station gets the next best link
+		assertThat(match(first, network, created, stations))
+			.containsExactly(Id.createLinkId("a"), Id.createLinkId("b"));
+
+		first.save();
+
+		// First station moves to another link and frees the one preferred by the second station
+		List<Station> changed = List.of(new Station("s1", 19.5), new Station("s2", 2));
+
+		StationMapping second = new StationMapping(path);
+		second.init(1, 2);
+
+		List<Id<Link>> result = match(second, network, created, changed);
+		second.save();
+
+		StationMapping full = new StationMapping();
+		full.init(1, 2);
+
+		assertThat(result)
+			.isEqualTo(match(full, network, created, changed))
+			.containsExactly(Id.createLinkId("c"), Id.createLinkId("a"));
+
+		// Unchanged inputs are reused without building the matcher
+		created.set(0);
+
+		StationMapping third = new StationMapping(path);
+		third.init(1, 2);
+
+		assertThat(match(third, network, created, changed))
+			.isEqualTo(result);
+
+		assertThat(created.get())
+			.isEqualTo(0);
+	}
+
+	private record Station(String id, double y) {
+		Geometry geometry() {
+			return GEOMETRY.createPoint(new Coordinate(0, y));
+		}
+	}
+
+}
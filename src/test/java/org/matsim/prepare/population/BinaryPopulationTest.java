@@ -0,0 +1,249 @@
+package org.matsim.prepare.population;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.*;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.utils.misc.OptionalTime;
+import org.matsim.facilities.ActivityFacility;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BinaryPopulationTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static Population createPopulation() {
+
+		Population population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+		PopulationFactory f = population.getFactory();
+
+		population.getAttributes().putAttribute("coordinateReferenceSystem", "EPSG:25832");
+
+		Person p1 = f.createPerson(Id.createPersonId("p1"));
+		p1.getAttributes().putAttribute("age", 42);
+		p1.getAttributes().putAttribute("income", 1234.5);
+		p1.getAttributes().putAttribute("id", 5_000_000_000L);
+		p1.getAttributes().putAttribute("employed", true);
+		p1.getAttributes().putAttribute("sex", "f");
+		p1.getAttributes().putAttribute("weight", 0.25f);
+
+		Plan plan = f.createPlan();
+		plan.setType("initial");
+		plan.setScore(-12.5);
+		plan.getAttributes().putAttribute("source", "survey");
+
+		// Coordinates on the grid, with negative deltas, off the grid and in 3D
+		Activity home = f.createActivityFromCoord("home", new Coord(1000.25, 2000.5));
+		home.setEndTime(8 * 3600);
+		home.getAttributes().putAttribute("n", -3);
+		plan.addActivity(home);
+
+		Leg car = f.createLeg(TransportMode.car);
+		car.setRoutingMode(TransportMode.car);
+		car.setDepartureTime(8 * 3600);
+		car.setTravelTime(600.5);
+		NetworkRoute route = RouteUtils.createLinkNetworkRouteImpl(Id.createLinkId("l1"),
+			List.of(Id.createLinkId("l2"), Id.createLinkId("l3")), Id.createLinkId("l4"));
+		route.setDistance(1523.7);
+		route.setTravelTime(600);
+		car.setRoute(route);
+		car.getAttributes().putAttribute("speed", 2.5);
+		plan.addLeg(car);
+
+		Activity work = f.createActivityFromCoord("work_3600", new Coord(999.123, 1500.987));
+		work.setLinkId(Id.createLinkId("l4"));
+		work.setFacilityId(Id.create("f1", ActivityFacility.class));
+		work.setStartTime(8 * 3600 + 600.5);
+		work.setMaximumDuration(3600);
+		plan.addActivity(work);
+
+		plan.addLeg(f.createLeg(TransportMode.walk));
+
+		Activity shop = f.createActivityFromCoord("shop", new Coord(10, 20, 30));
+		shop.setStartTime(7 * 3600);
+		plan.addActivity(shop);
+
+		plan.addLeg(f.createLeg(TransportMode.pt));
+		plan.addActivity(f.createActivityFromLinkId("other", Id.createLinkId("l1")));
+
+		p1.addPlan(plan);
+
+		Plan second = f.createPlan();
+		second.addActivity(f.createActivityFromActivityFacilityId("home", Id.create("f2", ActivityFacility.class)));
+		p1.addPlan(second);
+
+		p1.setSelectedPlan(second);
+		population.addPerson(p1);
+
+		Person p2 = f.createPerson(Id.createPersonId("p2"));
+		Plan plan2 = f.createPlan();
+		plan2.addActivity(f.createActivityFromCoord("home", new Coord(-5.5, 3)));
+		p2.addPlan(plan2);
+		p2.setSelectedPlan(plan2);
+		population.addPerson(p2);
+
+		return population;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+
+		Population expected = createPopulation();
+
+		Path path = tmp.newFile("population.bin").toPath();
+		new BinaryPopulationWriter().write(expected, path);
+
+		Population actual = BinaryPopulationReader.read(path);
+
+		assertThat(actual.getAttributes().getAsMap())
+			.isEqualTo(expected.getAttributes().getAsMap());
+
+		assertThat(actual.getPersons().keySet())
+			.containsExactlyElementsOf(expected.getPersons().keySet());
+
+		for (Person p : expected.getPersons().values()) {
+			assertPerson(actual.getPersons().get(p.getId()), p);
+		}
+	}
+
+	@Test
+	public void randomAccess() throws IOException {
+
+		Population expected = createPopulation();
+
+		Path path = tmp.newFile("population.bin").toPath();
+		new BinaryPopulationWriter().write(expected, path);
+
+		try (BinaryPopulationReader reader = new BinaryPopulationReader(path, expected.getFactory())) {
+
+			assertThat(reader.getPersonIds())
+				.containsExactly("p1", "p2");
+
+			// Read in reverse order, so that the reader needs to seek backwards
+			assertPerson(reader.readPerson(Id.createPersonId("p2")), expected.getPersons().get(Id.createPersonId("p2")));
+			assertPerson(reader.readPerson(Id.createPersonId("p1")), expected.getPersons().get(Id.createPersonId("p1")));
+
+			assertThat(reader.readPerson(Id.createPersonId("unknown")))
+				.isNull();
+		}
+	}
+
+	@Test
+	public void truncated() throws IOException {
+
+		Path path = tmp.newFile("population.bin").toPath();
+		new BinaryPopulationWriter().write(createPopulation(), path);
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 4);
+		}
+
+		assertThatThrownBy(() -> new BinaryPopulationReader(path, createPopulation().getFactory()))
+			.isInstanceOf(IOException.class);
+
+		Files.write(path, new byte[5]);
+
+		assertThatThrownBy(() -> new BinaryPopulationReader(path, createPopulation().getFactory()))
+			.isInstanceOf(IOException.class)
+			.hasMessageContaining("Truncated");
+	}
+
+	private static void assertPerson(Person actual, Person expected) {
+
+		assertThat(actual.getId()).isEqualTo(expected.getId());
+		assertThat(actual.getAttributes().getAsMap())
+			.isEqualTo(expected.getAttributes().getAsMap());
+
+		assertThat(actual.getPlans()).hasSameSizeAs(expected.getPlans());
+		assertThat(actual.getPlans().indexOf(actual.getSelectedPlan()))
+			.isEqualTo(expected.getPlans().indexOf(expected.getSelectedPlan()));
+
+		for (int i = 0; i < expected.getPlans().size(); i++) {
+			Plan e = expected.getPlans().get(i);
+			Plan a = actual.getPlans().get(i);
+
+			assertThat(a.getType()).isEqualTo(e.getType());
+			assertThat(a.getScore()).isEqualTo(e.getScore());
+			assertThat(a.getAttributes().getAsMap())
+				.isEqualTo(e.getAttributes().getAsMap());
+
+			assertThat(a.getPlanElements()).hasSameSizeAs(e.getPlanElements());
+			for (int j = 0; j < e.getPlanElements().size(); j++) {
+				if (e.getPlanElements().get(j) instanceof Activity act)
+					assertActivity((Activity) a.getPlanElements().get(j), act);
+				else
+					assertLeg((Leg) a.getPlanElements().get(j), (Leg) e.getPlanElements().get(j));
+			}
+		}
+	}
+
+	private static void assertActivity(Activity actual, Activity expected) {
+
+		assertThat(actual.getType()).isEqualTo(expected.getType());
+		assertThat(actual.getCoord()).isEqualTo(expected.getCoord());
+		if (expected.getCoord() != null && expected.getCoord().hasZ())
+			assertThat(actual.getCoord().getZ()).isEqualTo(expected.getCoord().getZ());
+
+		assertThat(actual.getLinkId()).isEqualTo(expected.getLinkId());
+		assertThat(actual.getFacilityId()).isEqualTo(expected.getFacilityId());
+
+		assertTime(actual.getStartTime(), expected.getStartTime());
+		assertTime(actual.getEndTime(), expected.getEndTime());
+		assertTime(actual.getMaximumDuration(), expected.getMaximumDuration());
+
+		assertThat(actual.getAttributes().getAsMap())
+			.isEqualTo(expected.getAttributes().getAsMap());
+	}
+
+	private static void assertLeg(Leg actual, Leg expected) {
+
+		assertThat(actual.getMode()).isEqualTo(expected.getMode());
+		assertThat(actual.getRoutingMode()).isEqualTo(expected.getRoutingMode());
+		assertTime(actual.getDepartureTime(), expected.getDepartureTime());
+		assertTime(actual.getTravelTime(), expected.getTravelTime());
+
+		assertThat(actual.getAttributes().getAsMap())
+			.isEqualTo(expected.getAttributes().getAsMap());
+
+		Route e = expected.getRoute();
+		Route a = actual.getRoute();
+		if (e == null) {
+			assertThat(a).isNull();
+			return;
+		}
+
+		assertThat(a.getRouteType()).isEqualTo(e.getRouteType());
+		assertThat(a.getStartLinkId()).isEqualTo(e.getStartLinkId());
+		assertThat(a.getEndLinkId()).isEqualTo(e.getEndLinkId());
+		assertThat(a.getDistance()).isEqualTo(e.getDistance());
+		assertTime(a.getTravelTime(), e.getTravelTime());
+		assertThat(a.getRouteDescription()).isEqualTo(e.getRouteDescription());
+
+		if (e instanceof NetworkRoute nr)
+			assertThat(((NetworkRoute) a).getLinkIds()).isEqualTo(nr.getLinkIds());
+	}
+
+	private static void assertTime(OptionalTime actual, OptionalTime expected) {
+		assertThat(actual.isDefined()).isEqualTo(expected.isDefined());
+		if (expected.isDefined())
+			assertThat(actual.seconds()).isEqualTo(expected.seconds());
+	}
+
+}
@@ -0,0 +1,102 @@
+package org.matsim.prepare.population;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.FacilitiesUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommuterAssignmentTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void budget() throws IOException {
+
+		Path csv = tmp.newFile("commuter.csv").toPath();
+		Files.writeString(csv, "from,to,n\n1,2,30\n1,3,10\n2,1,5\n");
+
+		ActivityFacility af = FacilitiesUtils.createActivityFacilities().getFactory()
+			.createActivityFacility(Id.create("f", ActivityFacility.class), new Coord(0, 0));
+
+		CommuterAssignment commuter = new CommuterAssignment(csv, 0.5);
+
+		ConcurrentHashMap<Long, AtomicInteger> sampled = new ConcurrentHashMap<>();
+
+		long assigned = IntStream.range(0, 1000).parallel()
+			.mapToObj(i -> commuter.selectTarget(new SplittableRandom(i), 1, zone -> {
+				sampled.computeIfAbsent(zone, k -> new AtomicInteger()).incrementAndGet();
+				return af;
+			}))
+			.filter(Objects::nonNull)
+			.count();
+
+		// 40 commuters with sample size 0.5
+		assertThat(assigned)
+			.isEqualTo(20);
+
+		assertThat(sampled.keySet())
+			.containsExactlyInAnyOrder(2L, 3L);
+
+		assertThat(commuter.selectTarget(new SplittableRandom(0), 1, zone -> af))
+			.isNull();
+
+		assertThat(commuter.selectTarget(new SplittableRandom(0), 4, zone -> af))
+			.isNull();
+
+		// Samplers that return nothing must not use up the budget
+		assertThat(commuter.selectTarget(new SplittableRandom(0), 2, zone -> null))
+			.isNull();
+
+		assertThat(commuter.selectTarget(new SplittableRandom(0), 2, zone -> af))
+			.isSameAs(af);
+	}
+
+	@Test
+	public void initialBudget() throws IOException {
+
+		Path csv = tmp.newFile("commuter.csv").toPath();
+		Files.writeString(csv, "from,to,n\n1,2,1\n1,3,3\n");
+
+		ActivityFacility af = FacilitiesUtils.createActivityFacilities().getFactory()
+			.createActivityFacility(Id.create("f", ActivityFacility.class), new Coord(0, 0));
+
+		CommuterAssignment commuter = new CommuterAssignment(csv, 1);
+
+		// Sampling does not use up the budget, and only depends on the random generator
+		for (int i = 0; i < 100; i++) {
+			CommuterAssignment.Target target = commuter.sampleTarget(new SplittableRandom(i), 1, zone -> af);
+			assertThat(target.facility()).isSameAs(af);
+			assertThat(target.entry())
+				.isEqualTo(commuter.sampleTarget(new SplittableRandom(i), 1, zone -> af).entry());
+		}
+
+		CommuterAssignment.Target target = commuter.sampleTarget(new SplittableRandom(0), 1, zone -> zone == 2 ? af : null);
+
+		assertThat(commuter.consume(target.entry())).isTrue();
+		assertThat(commuter.consume(target.entry())).isFalse();
+
+		// The entry can not be sampled from the remaining budget anymore
+		assertThat(commuter.selectTarget(new SplittableRandom(0), 1, zone -> zone == 2 ? af : null))
+			.isNull();
+
+		// But still from the initial budget
+		assertThat(commuter.sampleTarget(new SplittableRandom(0), 1, zone -> zone == 2 ? af : null))
+			.isEqualTo(target);
+	}
+
+}
@@ -0,0 +1,95 @@
+package org.matsim.run;
+
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.scoring.functions.ActivityUtilityParameters;
+import org.matsim.core.scoring.functions.ScoringParameters;
+import org.matsim.core.scoring.functions.SubpopulationScoringParameters;
+import org.matsim.pt.PtConstants;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ActivityScoringParametersTest {
+
+	private static final List<String> TYPES = List.of("home_43200", "work_3600", "leisure_5400", "shop_daily_600", "home",
+		"car interaction", PtConstants.TRANSIT_ACTIVITY_TYPE);
+
+	private static Scenario createScenario(boolean splitTypes) {
+
+		Config config = ConfigUtils.createConfig();
+		config.transit().setUseTransit(true);
+		Activities.addScoringParams(config, splitTypes);
+
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		PopulationFactory f = scenario.getPopulation().getFactory();
+
+		// Person without subpopulation, which uses the default parameters
+		Person person = f.createPerson(Id.createPersonId("p"));
+
+		Plan plan = f.createPlan();
+		plan.addActivity(f.createActivityFromCoord("home_43200", new Coord(0, 0)));
+		plan.addLeg(f.createLeg(TransportMode.car));
+		plan.addActivity(f.createActivityFromCoord("work_3600", new Coord(100, 0)));
+		plan.addLeg(f.createLeg(TransportMode.walk));
+		plan.addActivity(f.createActivityFromCoord(PtConstants.TRANSIT_ACTIVITY_TYPE, new Coord(150, 0)));
+		plan.addLeg(f.createLeg(TransportMode.pt));
+		plan.addActivity(f.createActivityFromCoord("leisure_5400", new Coord(200, 0)));
+		plan.addLeg(f.createLeg(TransportMode.walk));
+		plan.addActivity(f.createActivityFromCoord("shop_daily_600", new Coord(250, 0)));
+		plan.addLeg(f.createLeg(TransportMode.car));
+		plan.addActivity(f.createActivityFromCoord("home", new Coord(0, 0)));
+
+		person.addPlan(plan);
+		scenario.getPopulation().addPerson(person);
+
+		return scenario;
+	}
+
+	@Test
+	public void sameAsConfig() {
+
+		Scenario derived = createScenario(false);
+		Scenario configured = createScenario(true);
+
+		ActivityScoringParameters module = new ActivityScoringParameters(derived);
+		SubpopulationScoringParameters reference = new SubpopulationScoringParameters(configured);
+
+		for (Person person : derived.getPopulation().getPersons().values()) {
+
+			ScoringParameters actual = module.getScoringParameters(person);
+			ScoringParameters expected = reference.getScoringParameters(configured.getPopulation().getPersons().get(person.getId()));
+
+			for (String type : TYPES) {
+				assertThat(actual.utilParams)
+					.containsKey(type);
+
+				assertParams(actual.utilParams.get(type), expected.utilParams.get(type));
+			}
+		}
+	}
+
+	private static void assertParams(ActivityUtilityParameters actual, ActivityUtilityParameters expected) {
+
+		assertThat(actual.getType()).isEqualTo(expected.getType());
+		assertThat(actual.isScoreAtAll()).isEqualTo(expected.isScoreAtAll());
+		assertThat(actual.getTypicalDuration()).isEqualTo(expected.getTypicalDuration());
+		assertThat(actual.getZeroUtilityDuration_h()).isEqualTo(expected.getZeroUtilityDuration_h());
+		assertThat(actual.getMinimalDuration()).isEqualTo(expected.getMinimalDuration());
+		assertThat(actual.getOpeningTime()).isEqualTo(expected.getOpeningTime());
+		assertThat(actual.getClosingTime()).isEqualTo(expected.getClosingTime());
+		assertThat(actual.getLatestStartTime()).isEqualTo(expected.getLatestStartTime());
+		assertThat(actual.getEarliestEndTime()).isEqualTo(expected.getEarliestEndTime());
+	}
+
+}
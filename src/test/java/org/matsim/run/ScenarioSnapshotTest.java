@@ -0,0 +1,124 @@
+package org.matsim.run;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ScenarioSnapshotTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static Network createNetwork() {
+
+		Network network = NetworkUtils.createNetwork();
+		NetworkFactory f = network.getFactory();
+
+		network.setCapacityPeriod(1800);
+		network.setEffectiveLaneWidth(3.5);
+		network.getAttributes().putAttribute("coordinateReferenceSystem", "EPSG:25832");
+
+		Node a = f.createNode(Id.createNodeId("a"), new Coord(0, 0));
+		Node b = f.createNode(Id.createNodeId("b"), new Coord(100.5, -20.25));
+		b.getAttributes().putAttribute("signal", true);
+		network.addNode(a);
+		network.addNode(b);
+
+		Link ab = f.createLink(Id.createLinkId("ab"), a, b);
+		ab.setLength(102.3);
+		ab.setFreespeed(13.89);
+		ab.setCapacity(1500);
+		ab.setNumberOfLanes(2);
+		ab.setAllowedModes(Set.of(TransportMode.car, TransportMode.ride, "freight"));
+		ab.getAttributes().putAttribute("type", "primary");
+		ab.getAttributes().putAttribute("lanes", 2);
+		ab.getAttributes().putAttribute("speed", 0.85);
+		ab.getAttributes().putAttribute("long", "x".repeat(70_000));
+		network.addLink(ab);
+
+		// Links without any modes need to be preserved as well
+		Link ba = f.createLink(Id.createLinkId("ba"), b, a);
+		ba.setAllowedModes(Set.of());
+		network.addLink(ba);
+
+		return network;
+	}
+
+	@Test
+	public void network() throws IOException {
+
+		Network expected = createNetwork();
+		Path path = tmp.getRoot().toPath().resolve("network.bin");
+
+		ScenarioSnapshot.writeNetwork(expected, path);
+
+		Network actual = NetworkUtils.createNetwork();
+		ScenarioSnapshot.readNetwork(actual, path);
+
+		assertThat(actual.getCapacityPeriod()).isEqualTo(expected.getCapacityPeriod());
+		assertThat(actual.getEffectiveLaneWidth()).isEqualTo(expected.getEffectiveLaneWidth());
+		assertThat(actual.getAttributes().getAsMap()).isEqualTo(expected.getAttributes().getAsMap());
+
+		assertThat(actual.getNodes().keySet()).containsExactlyElementsOf(expected.getNodes().keySet());
+		for (Node e : expected.getNodes().values()) {
+			Node a = actual.getNodes().get(e.getId());
+			assertThat(a.getCoord()).isEqualTo(e.getCoord());
+			assertThat(a.getAttributes().getAsMap()).isEqualTo(e.getAttributes().getAsMap());
+		}
+
+		assertThat(actual.getLinks().keySet()).containsExactlyElementsOf(expected.getLinks().keySet());
+		for (Link e : expected.getLinks().values()) {
+			Link a = actual.getLinks().get(e.getId());
+			assertThat(a.getFromNode().getId()).isEqualTo(e.getFromNode().getId());
+			assertThat(a.getToNode().getId()).isEqualTo(e.getToNode().getId());
+			assertThat(a.getLength()).isEqualTo(e.getLength());
+			assertThat(a.getFreespeed()).isEqualTo(e.getFreespeed());
+			assertThat(a.getCapacity()).isEqualTo(e.getCapacity());
+			assertThat(a.getNumberOfLanes()).isEqualTo(e.getNumberOfLanes());
+			assertThat(a.getAllowedModes()).isEqualTo(e.getAllowedModes());
+			assertThat(a.getAttributes().getAsMap()).isEqualTo(e.getAttributes().getAsMap());
+		}
+
+		assertThat(actual.getLinks().get(Id.createLinkId("ba")).getAllowedModes())
+			.isEmpty();
+	}
+
+	@Test
+	public void hash() throws IOException {
+
+		Path network = tmp.getRoot().toPath().resolve("network.xml");
+		NetworkUtils.writeNetwork(createNetwork(), network.toString());
+
+		Config config = ConfigUtils.createConfig();
+		config.network().setInputFile(network.toString());
+
+		String hash = ScenarioSnapshot.hash(config);
+
+		assertThat(ScenarioSnapshot.hash(config))
+			.isEqualTo(hash);
+
+		// Same url with changed content
+		Files.writeString(network, Files.readString(network).replace("primary", "secondary"));
+
+		assertThat(ScenarioSnapshot.hash(config))
+			.isNotEqualTo(hash);
+	}
+
+}